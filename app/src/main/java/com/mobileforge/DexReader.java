@@ -0,0 +1,403 @@
+package com.mobileforge;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Zero-copy reader over a .dex file. Only the header is decoded up front; ID
+ * entries, class_defs, class_data and code_items are read from the buffer on
+ * request, so a large file can be inspected (or a single method's code found)
+ * in constant memory.
+ */
+public class DexReader {
+
+    private final ByteBuffer dex;
+
+    private final int fileSize;
+    private final int mapOff;
+    private final int stringIdsSize, stringIdsOff;
+    private final int typeIdsSize, typeIdsOff;
+    private final int protoIdsSize, protoIdsOff;
+    private final int fieldIdsSize, fieldIdsOff;
+    private final int methodIdsSize, methodIdsOff;
+    private final int classDefsSize, classDefsOff;
+    private final int dataSize, dataOff;
+
+    /** A class_def_item, read on demand. Type and string references are indexes; -1 means none. */
+    public static class ClassDef {
+        public int index;
+        public int classIdx;
+        public int accessFlags;
+        public int superclassIdx;
+        public int interfacesOff;
+        public int sourceFileIdx;
+        public int annotationsOff;
+        public int classDataOff;
+        public int staticValuesOff;
+    }
+
+    /** An encoded_field of a class_data_item, with the field index already un-delta'd. */
+    public static class EncodedField {
+        public int fieldIdx;
+        public int accessFlags;
+    }
+
+    /** An encoded_method of a class_data_item, with the method index already un-delta'd. */
+    public static class EncodedMethod {
+        public int methodIdx;
+        public int accessFlags;
+        public int codeOff;
+    }
+
+    /** A decoded class_data_item. */
+    public static class ClassData {
+        public List<EncodedField> staticFields = new ArrayList<>();
+        public List<EncodedField> instanceFields = new ArrayList<>();
+        public List<EncodedMethod> directMethods = new ArrayList<>();
+        public List<EncodedMethod> virtualMethods = new ArrayList<>();
+    }
+
+    /** A code_item header. The instructions stay in the mapped file and are exposed as a slice. */
+    public static class Code {
+        public int offset;
+        public int registersSize;
+        public int insSize;
+        public int outsSize;
+        public int triesSize;
+        public int debugInfoOff;
+        public int insnsSize;
+        /** Encoded length in bytes, including tries and the catch handler list. */
+        public int byteSize;
+        /** Little-endian view of the insns array; no bytes are copied. */
+        public ByteBuffer insns;
+    }
+
+    /** Maps a .dex file read-only. The mapping stays valid after the file is closed. */
+    public static DexReader open(File dexFile) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(dexFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return new DexReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Reads a complete .dex file held in a buffer (mapped, direct or heap). */
+    public DexReader(ByteBuffer dex) throws Exception {
+        this.dex = dex.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (this.dex.limit() < PureCodeDEXGenerator.DexHeader.HEADER_SIZE) {
+            throw new Exception("Not a dex file: shorter than the header");
+        }
+        byte[] magic = PureCodeDEXGenerator.DexHeader.DEX_FILE_MAGIC;
+        for (int i = 0; i < 4; i++) {
+            if (this.dex.get(i) != magic[i]) throw new Exception("Not a dex file: bad magic");
+        }
+        if (u4(40) != PureCodeDEXGenerator.DexHeader.ENDIAN_CONSTANT) {
+            throw new Exception("Unsupported dex endian_tag");
+        }
+        fileSize = u4(32);
+        mapOff = u4(52);
+        stringIdsSize = u4(56); stringIdsOff = u4(60);
+        typeIdsSize = u4(64); typeIdsOff = u4(68);
+        protoIdsSize = u4(72); protoIdsOff = u4(76);
+        fieldIdsSize = u4(80); fieldIdsOff = u4(84);
+        methodIdsSize = u4(88); methodIdsOff = u4(92);
+        classDefsSize = u4(96); classDefsOff = u4(100);
+        dataSize = u4(104); dataOff = u4(108);
+        if (fileSize > this.dex.limit()) throw new Exception("Truncated dex file");
+    }
+
+    /** Returns a read-only little-endian view of the whole file. */
+    public ByteBuffer buffer() {
+        return dex.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int getFileSize() { return fileSize; }
+    public int getMapOff() { return mapOff; }
+    public int getDataOff() { return dataOff; }
+    public int getDataSize() { return dataSize; }
+    public int getClassDefsOff() { return classDefsOff; }
+
+    public int getStringCount() { return stringIdsSize; }
+    public int getTypeCount() { return typeIdsSize; }
+    public int getProtoCount() { return protoIdsSize; }
+    public int getFieldCount() { return fieldIdsSize; }
+    public int getMethodCount() { return methodIdsSize; }
+    public int getClassDefCount() { return classDefsSize; }
+
+    int u1(int offset) { return dex.get(offset) & 0xFF; }
+    int u2(int offset) { return dex.getShort(offset) & 0xFFFF; }
+    int u4(int offset) { return dex.getInt(offset); }
+
+    /** Reads a uleb128 at cursor[0] and advances the cursor. */
+    int readUleb128(int[] cursor) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = u1(cursor[0]++);
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        return result;
+    }
+
+    /** Reads a sleb128 at cursor[0] and advances the cursor. */
+    int readSleb128(int[] cursor) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = u1(cursor[0]++);
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        if (shift < 32 && (b & 0x40) != 0) result |= -1 << shift;
+        return result;
+    }
+
+    // --- map_list ---
+
+    public int getMapItemCount() { return u4(mapOff); }
+    public int getMapItemType(int item) { return u2(mapOff + 4 + item * 12); }
+    public int getMapItemSize(int item) { return u4(mapOff + 4 + item * 12 + 4); }
+    public int getMapItemOffset(int item) { return u4(mapOff + 4 + item * 12 + 8); }
+
+    /** Returns the map_list entry number of a section type, or -1 if the file has none. */
+    public int findMapItem(int type) {
+        int count = getMapItemCount();
+        for (int i = 0; i < count; i++) {
+            if (getMapItemType(i) == type) return i;
+        }
+        return -1;
+    }
+
+    // --- ID sections ---
+
+    /** Returns the offset of a string's string_data_item. */
+    public int getStringDataOff(int stringIdx) {
+        return u4(stringIdsOff + stringIdx * 4);
+    }
+
+    /** Decodes a string from its MUTF-8 string_data_item. */
+    public String getString(int stringIdx) throws Exception {
+        int[] cursor = { getStringDataOff(stringIdx) };
+        int utf16Size = readUleb128(cursor);
+        char[] chars = new char[utf16Size];
+        int offset = cursor[0];
+        for (int i = 0; i < utf16Size; i++) {
+            int b = u1(offset++);
+            if ((b & 0x80) == 0) {
+                chars[i] = (char) b;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[i] = (char) (((b & 0x1F) << 6) | (u1(offset++) & 0x3F));
+            } else if ((b & 0xF0) == 0xE0) {
+                int b2 = u1(offset++);
+                int b3 = u1(offset++);
+                chars[i] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+            } else {
+                throw new Exception("Bad MUTF-8 in string " + stringIdx);
+            }
+        }
+        return new String(chars);
+    }
+
+    /** Returns the descriptor_idx of a type. */
+    public int getTypeDescriptorIdx(int typeIdx) {
+        return u4(typeIdsOff + typeIdx * 4);
+    }
+
+    /** Returns a type's descriptor, e.g. "Landroid/app/Activity;". */
+    public String getType(int typeIdx) throws Exception {
+        return getString(getTypeDescriptorIdx(typeIdx));
+    }
+
+    public int getProtoShortyIdx(int protoIdx) { return u4(protoIdsOff + protoIdx * 12); }
+    public int getProtoReturnTypeIdx(int protoIdx) { return u4(protoIdsOff + protoIdx * 12 + 4); }
+    public int getProtoParametersOff(int protoIdx) { return u4(protoIdsOff + protoIdx * 12 + 8); }
+
+    /** Returns the type indexes of a prototype's parameters. */
+    public int[] getProtoParameters(int protoIdx) {
+        return getTypeList(getProtoParametersOff(protoIdx));
+    }
+
+    /** Reads a type_list; offset 0 is the empty list. */
+    public int[] getTypeList(int offset) {
+        if (offset == 0) return new int[0];
+        int[] types = new int[u4(offset)];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = u2(offset + 4 + i * 2);
+        }
+        return types;
+    }
+
+    public int getFieldClassIdx(int fieldIdx) { return u2(fieldIdsOff + fieldIdx * 8); }
+    public int getFieldTypeIdx(int fieldIdx) { return u2(fieldIdsOff + fieldIdx * 8 + 2); }
+    public int getFieldNameIdx(int fieldIdx) { return u4(fieldIdsOff + fieldIdx * 8 + 4); }
+
+    public int getMethodClassIdx(int methodIdx) { return u2(methodIdsOff + methodIdx * 8); }
+    public int getMethodProtoIdx(int methodIdx) { return u2(methodIdsOff + methodIdx * 8 + 2); }
+    public int getMethodNameIdx(int methodIdx) { return u4(methodIdsOff + methodIdx * 8 + 4); }
+
+    /** Binary-searches the sorted string_ids, decoding only the strings it visits. Returns -1 if absent. */
+    public int findString(String value) throws Exception {
+        int low = 0;
+        int high = stringIdsSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = getString(mid).compareTo(value);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /** Finds a type by descriptor. type_ids are sorted by string index. Returns -1 if absent. */
+    public int findType(String descriptor) throws Exception {
+        int stringIdx = findString(descriptor);
+        if (stringIdx == -1) return -1;
+        int low = 0;
+        int high = typeIdsSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int descriptorIdx = getTypeDescriptorIdx(mid);
+            if (descriptorIdx < stringIdx) low = mid + 1;
+            else if (descriptorIdx > stringIdx) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    // --- class_defs ---
+
+    /** Reads class_def_item number {@code index}. */
+    public ClassDef getClassDef(int index) {
+        int offset = classDefsOff + index * 32;
+        ClassDef classDef = new ClassDef();
+        classDef.index = index;
+        classDef.classIdx = u4(offset);
+        classDef.accessFlags = u4(offset + 4);
+        classDef.superclassIdx = u4(offset + 8);
+        classDef.interfacesOff = u4(offset + 12);
+        classDef.sourceFileIdx = u4(offset + 16);
+        classDef.annotationsOff = u4(offset + 20);
+        classDef.classDataOff = u4(offset + 24);
+        classDef.staticValuesOff = u4(offset + 28);
+        return classDef;
+    }
+
+    /** Finds the class_def of a class by descriptor, or null if it is not defined in this file. */
+    public ClassDef findClassDef(String descriptor) throws Exception {
+        int typeIdx = findType(descriptor);
+        if (typeIdx == -1) return null;
+        for (int i = 0; i < classDefsSize; i++) {
+            if (u4(classDefsOff + i * 32) == typeIdx) return getClassDef(i);
+        }
+        return null;
+    }
+
+    /** Decodes a class's class_data_item; an empty ClassData if it has none. */
+    public ClassData getClassData(ClassDef classDef) {
+        ClassData classData = new ClassData();
+        if (classDef.classDataOff == 0) return classData;
+        int[] cursor = { classDef.classDataOff };
+        int staticFieldsSize = readUleb128(cursor);
+        int instanceFieldsSize = readUleb128(cursor);
+        int directMethodsSize = readUleb128(cursor);
+        int virtualMethodsSize = readUleb128(cursor);
+        readEncodedFields(cursor, staticFieldsSize, classData.staticFields);
+        readEncodedFields(cursor, instanceFieldsSize, classData.instanceFields);
+        readEncodedMethods(cursor, directMethodsSize, classData.directMethods);
+        readEncodedMethods(cursor, virtualMethodsSize, classData.virtualMethods);
+        return classData;
+    }
+
+    private void readEncodedFields(int[] cursor, int count, List<EncodedField> fields) {
+        int fieldIdx = 0;
+        for (int i = 0; i < count; i++) {
+            EncodedField field = new EncodedField();
+            fieldIdx += readUleb128(cursor);
+            field.fieldIdx = fieldIdx;
+            field.accessFlags = readUleb128(cursor);
+            fields.add(field);
+        }
+    }
+
+    private void readEncodedMethods(int[] cursor, int count, List<EncodedMethod> methods) {
+        int methodIdx = 0;
+        for (int i = 0; i < count; i++) {
+            EncodedMethod method = new EncodedMethod();
+            methodIdx += readUleb128(cursor);
+            method.methodIdx = methodIdx;
+            method.accessFlags = readUleb128(cursor);
+            method.codeOff = readUleb128(cursor);
+            methods.add(method);
+        }
+    }
+
+    // --- code_items ---
+
+    /** Reads the code_item at {@code codeOff}, or null for an abstract/native method (offset 0). */
+    public Code getCode(int codeOff) {
+        if (codeOff == 0) return null;
+        Code code = new Code();
+        code.offset = codeOff;
+        code.registersSize = u2(codeOff);
+        code.insSize = u2(codeOff + 2);
+        code.outsSize = u2(codeOff + 4);
+        code.triesSize = u2(codeOff + 6);
+        code.debugInfoOff = u4(codeOff + 8);
+        code.insnsSize = u4(codeOff + 12);
+
+        ByteBuffer insns = dex.duplicate();
+        insns.position(codeOff + 16);
+        insns.limit(codeOff + 16 + code.insnsSize * 2);
+        code.insns = insns.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+        int end = codeOff + 16 + code.insnsSize * 2;
+        if (code.triesSize > 0) {
+            if ((code.insnsSize & 1) != 0) end += 2;
+            end += code.triesSize * 8;
+            int[] cursor = { end };
+            int listSize = readUleb128(cursor);
+            for (int i = 0; i < listSize; i++) {
+                int handlerCount = readSleb128(cursor);
+                for (int h = 0; h < Math.abs(handlerCount); h++) {
+                    readUleb128(cursor);
+                    readUleb128(cursor);
+                }
+                if (handlerCount <= 0) readUleb128(cursor);
+            }
+            end = cursor[0];
+        }
+        code.byteSize = end - codeOff;
+        return code;
+    }
+
+    /**
+     * Looks up a method's code by class descriptor and method name, touching only
+     * that class's class_def and class_data. Returns null if the class or method is
+     * not defined here or the method has no code. With overloads, the first match wins.
+     */
+    public Code findMethodCode(String classDescriptor, String methodName) throws Exception {
+        ClassDef classDef = findClassDef(classDescriptor);
+        if (classDef == null) return null;
+        int nameIdx = findString(methodName);
+        if (nameIdx == -1) return null;
+        ClassData classData = getClassData(classDef);
+        for (EncodedMethod method : classData.directMethods) {
+            if (getMethodNameIdx(method.methodIdx) == nameIdx) return getCode(method.codeOff);
+        }
+        for (EncodedMethod method : classData.virtualMethods) {
+            if (getMethodNameIdx(method.methodIdx) == nameIdx) return getCode(method.codeOff);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,812 @@
+package com.mobileforge;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * Structural verifier for .dex files. It checks the header, map_list, section
+ * ordering and alignment, ID sorting, and every code_item's bounds, registers
+ * (including both halves of wide pairs), invoke argument counts against
+ * outs_size and the callee's proto, and branch targets, so a malformed build
+ * fails right after conversion instead of at install or class load time on a
+ * device.
+ */
+public class DexVerifier {
+
+    // --- Dalvik instruction formats (see "Dalvik bytecode" format IDs) ---
+    private static final int F10X = 0, F12X = 1, F11N = 2, F11X = 3, F10T = 4, F20T = 5,
+                             F22X = 6, F21T = 7, F21S = 8, F21H = 9, F21C = 10, F23X = 11,
+                             F22B = 12, F22T = 13, F22S = 14, F22C = 15, F32X = 16, F30T = 17,
+                             F31T = 18, F31I = 19, F31C = 20, F35C = 21, F3RC = 22, F45CC = 23,
+                             F4RCC = 24, F51L = 25;
+
+    /** Width in 16-bit code units of each format. */
+    private static final int[] FORMAT_WIDTH = {
+        1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 3, 3, 3, 3, 3, 3, 3, 4, 4, 5
+    };
+
+    // --- What the index operand of an instruction refers to ---
+    private static final int INDEX_NONE = 0, INDEX_STRING = 1, INDEX_TYPE = 2,
+                             INDEX_FIELD = 3, INDEX_METHOD = 4;
+
+    // --- Which register operands of an instruction are wide (a vN, vN+1 pair) ---
+    private static final int WIDE_A = 1, WIDE_B = 2, WIDE_C = 4;
+
+    private static final int[] FORMATS = new int[256];
+    private static final int[] INDEX_KINDS = new int[256];
+    private static final int[] WIDE_OPERANDS = new int[256];
+
+    static {
+        setFormat(0x00, 0x00, F10X);
+        setFormat(0x01, 0x01, F12X); setFormat(0x02, 0x02, F22X); setFormat(0x03, 0x03, F32X);
+        setFormat(0x04, 0x04, F12X); setFormat(0x05, 0x05, F22X); setFormat(0x06, 0x06, F32X);
+        setFormat(0x07, 0x07, F12X); setFormat(0x08, 0x08, F22X); setFormat(0x09, 0x09, F32X);
+        setFormat(0x0a, 0x0d, F11X);
+        setFormat(0x0e, 0x0e, F10X);
+        setFormat(0x0f, 0x11, F11X);
+        setFormat(0x12, 0x12, F11N); setFormat(0x13, 0x13, F21S); setFormat(0x14, 0x14, F31I);
+        setFormat(0x15, 0x15, F21H); setFormat(0x16, 0x16, F21S); setFormat(0x17, 0x17, F31I);
+        setFormat(0x18, 0x18, F51L); setFormat(0x19, 0x19, F21H);
+        setFormat(0x1a, 0x1a, F21C); setFormat(0x1b, 0x1b, F31C); setFormat(0x1c, 0x1c, F21C);
+        setFormat(0x1d, 0x1e, F11X);
+        setFormat(0x1f, 0x1f, F21C); setFormat(0x20, 0x20, F22C); setFormat(0x21, 0x21, F12X);
+        setFormat(0x22, 0x22, F21C); setFormat(0x23, 0x23, F22C);
+        setFormat(0x24, 0x24, F35C); setFormat(0x25, 0x25, F3RC); setFormat(0x26, 0x26, F31T);
+        setFormat(0x27, 0x27, F11X);
+        setFormat(0x28, 0x28, F10T); setFormat(0x29, 0x29, F20T); setFormat(0x2a, 0x2a, F30T);
+        setFormat(0x2b, 0x2c, F31T);
+        setFormat(0x2d, 0x31, F23X);
+        setFormat(0x32, 0x37, F22T);
+        setFormat(0x38, 0x3d, F21T);
+        setFormat(0x3e, 0x43, F10X);
+        setFormat(0x44, 0x51, F23X);
+        setFormat(0x52, 0x5f, F22C);
+        setFormat(0x60, 0x6d, F21C);
+        setFormat(0x6e, 0x72, F35C); setFormat(0x73, 0x73, F10X); setFormat(0x74, 0x78, F3RC);
+        setFormat(0x79, 0x7a, F10X);
+        setFormat(0x7b, 0x8f, F12X);
+        setFormat(0x90, 0xaf, F23X);
+        setFormat(0xb0, 0xcf, F12X);
+        setFormat(0xd0, 0xd7, F22S);
+        setFormat(0xd8, 0xe2, F22B);
+        setFormat(0xe3, 0xf9, F10X);
+        setFormat(0xfa, 0xfa, F45CC); setFormat(0xfb, 0xfb, F4RCC);
+        setFormat(0xfc, 0xfc, F35C); setFormat(0xfd, 0xfd, F3RC);
+        setFormat(0xfe, 0xff, F21C);
+
+        INDEX_KINDS[0x1a] = INDEX_STRING;
+        INDEX_KINDS[0x1b] = INDEX_STRING;
+        INDEX_KINDS[0x1c] = INDEX_TYPE;
+        INDEX_KINDS[0x1f] = INDEX_TYPE;
+        INDEX_KINDS[0x20] = INDEX_TYPE;
+        INDEX_KINDS[0x22] = INDEX_TYPE;
+        INDEX_KINDS[0x23] = INDEX_TYPE;
+        INDEX_KINDS[0x24] = INDEX_TYPE;
+        INDEX_KINDS[0x25] = INDEX_TYPE;
+        for (int op = 0x52; op <= 0x6d; op++) INDEX_KINDS[op] = INDEX_FIELD;
+        for (int op = 0x6e; op <= 0x78; op++) if (op != 0x73) INDEX_KINDS[op] = INDEX_METHOD;
+        INDEX_KINDS[0xfa] = INDEX_METHOD;
+        INDEX_KINDS[0xfb] = INDEX_METHOD;
+
+        setWide(0x04, 0x06, WIDE_A | WIDE_B);           // move-wide
+        setWide(0x0b, 0x0b, WIDE_A);                    // move-result-wide
+        setWide(0x10, 0x10, WIDE_A);                    // return-wide
+        setWide(0x16, 0x19, WIDE_A);                    // const-wide
+        setWide(0x2f, 0x31, WIDE_B | WIDE_C);           // cmpl-double, cmpg-double, cmp-long
+        setWide(0x45, 0x45, WIDE_A);                    // aget-wide
+        setWide(0x4c, 0x4c, WIDE_A);                    // aput-wide
+        setWide(0x53, 0x53, WIDE_A);                    // iget-wide
+        setWide(0x5a, 0x5a, WIDE_A);                    // iput-wide
+        setWide(0x61, 0x61, WIDE_A);                    // sget-wide
+        setWide(0x68, 0x68, WIDE_A);                    // sput-wide
+        setWide(0x7d, 0x7e, WIDE_A | WIDE_B);           // neg-long, not-long
+        setWide(0x80, 0x80, WIDE_A | WIDE_B);           // neg-double
+        setWide(0x81, 0x81, WIDE_A);                    // int-to-long
+        setWide(0x83, 0x83, WIDE_A);                    // int-to-double
+        setWide(0x84, 0x85, WIDE_B);                    // long-to-int, long-to-float
+        setWide(0x86, 0x86, WIDE_A | WIDE_B);           // long-to-double
+        setWide(0x88, 0x89, WIDE_A);                    // float-to-long, float-to-double
+        setWide(0x8a, 0x8a, WIDE_B);                    // double-to-int
+        setWide(0x8b, 0x8b, WIDE_A | WIDE_B);           // double-to-long
+        setWide(0x8c, 0x8c, WIDE_B);                    // double-to-float
+        setWide(0x9b, 0xa2, WIDE_A | WIDE_B | WIDE_C);  // add-long .. xor-long
+        setWide(0xa3, 0xa5, WIDE_A | WIDE_B);           // shl-long, shr-long, ushr-long (int shift)
+        setWide(0xab, 0xaf, WIDE_A | WIDE_B | WIDE_C);  // add-double .. rem-double
+        setWide(0xbb, 0xc2, WIDE_A | WIDE_B);           // add-long/2addr .. xor-long/2addr
+        setWide(0xc3, 0xc5, WIDE_A);                    // shl-long/2addr .. ushr-long/2addr
+        setWide(0xcb, 0xcf, WIDE_A | WIDE_B);           // add-double/2addr .. rem-double/2addr
+    }
+
+    private static void setFormat(int firstOpcode, int lastOpcode, int format) {
+        for (int op = firstOpcode; op <= lastOpcode; op++) FORMATS[op] = format;
+    }
+
+    private static void setWide(int firstOpcode, int lastOpcode, int operands) {
+        for (int op = firstOpcode; op <= lastOpcode; op++) WIDE_OPERANDS[op] = operands;
+    }
+
+    private final ByteBuffer dex;
+    private final int fileSize;
+
+    private int stringIdsSize, stringIdsOff;
+    private int typeIdsSize, typeIdsOff;
+    private int protoIdsSize, protoIdsOff;
+    private int fieldIdsSize, fieldIdsOff;
+    private int methodIdsSize, methodIdsOff;
+    private int classDefsSize, classDefsOff;
+    private int dataSize, dataOff;
+    private int mapOff;
+    private int codeItemsOff = -1, codeItemsEnd = -1;
+
+    private DexVerifier(ByteBuffer dex) {
+        this.dex = dex.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.fileSize = dex.limit();
+    }
+
+    /** Maps a .dex file read-only and verifies it. */
+    public static void verify(File dexFile) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(dexFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            verify(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            file.close();
+        }
+    }
+
+    /** Verifies a complete .dex file held in a buffer, throwing on the first problem. */
+    public static void verify(ByteBuffer dex) throws Exception {
+        DexVerifier verifier = new DexVerifier(dex);
+        try {
+            verifier.verifyHeader();
+            verifier.verifyMapList();
+            verifier.verifyStringIds();
+            verifier.verifyTypeIds();
+            verifier.verifyProtoIds();
+            verifier.verifyFieldIds();
+            verifier.verifyMethodIds();
+            verifier.verifyClassDefs();
+        } catch (IndexOutOfBoundsException e) {
+            throw new Exception("Invalid dex: structure points past the end of the file");
+        }
+    }
+
+    private static void fail(String message) throws Exception {
+        throw new Exception("Invalid dex: " + message);
+    }
+
+    private int u1(int offset) { return dex.get(offset) & 0xFF; }
+    private int u2(int offset) { return dex.getShort(offset) & 0xFFFF; }
+    private int u4(int offset) { return dex.getInt(offset); }
+
+    /** Reads a uleb128 at cursor[0] and advances the cursor. */
+    private int readUleb128(int[] cursor) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = u1(cursor[0]++);
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        return result;
+    }
+
+    /** Reads a sleb128 at cursor[0] and advances the cursor. */
+    private int readSleb128(int[] cursor) {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = u1(cursor[0]++);
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        if (shift < 32 && (b & 0x40) != 0) result |= -1 << shift;
+        return result;
+    }
+
+    private void checkSection(String name, int size, int offset, int itemSize) throws Exception {
+        if (size < 0) fail(name + " size is negative");
+        if (size == 0) {
+            if (offset != 0) fail(name + " is empty but has a non-zero offset");
+            return;
+        }
+        if ((offset & 3) != 0) fail(name + " is not 4-byte aligned");
+        if (offset < PureCodeDEXGenerator.DexHeader.HEADER_SIZE || (long) offset + (long) size * itemSize > fileSize) {
+            fail(name + " lies outside the file");
+        }
+    }
+
+    // --- Header ---
+
+    private void verifyHeader() throws Exception {
+        if (fileSize < PureCodeDEXGenerator.DexHeader.HEADER_SIZE) fail("file is shorter than the header");
+        byte[] magic = PureCodeDEXGenerator.DexHeader.DEX_FILE_MAGIC;
+        for (int i = 0; i < 4; i++) {
+            if (dex.get(i) != magic[i]) fail("bad magic");
+        }
+        for (int i = 4; i < 7; i++) {
+            int digit = u1(i);
+            if (digit < '0' || digit > '9') fail("bad magic version");
+        }
+        if (dex.get(7) != 0) fail("bad magic");
+        if (u4(32) != fileSize) fail("file_size " + u4(32) + " does not match actual size " + fileSize);
+        if (u4(36) != PureCodeDEXGenerator.DexHeader.HEADER_SIZE) fail("unexpected header_size");
+        if (u4(40) != PureCodeDEXGenerator.DexHeader.ENDIAN_CONSTANT) fail("unsupported endian_tag");
+
+        Adler32 adler = new Adler32();
+        ByteBuffer body = dex.duplicate();
+        body.position(12);
+        adler.update(body);
+        if ((int) adler.getValue() != u4(8)) fail("checksum mismatch");
+
+        boolean signed = false;
+        for (int i = 12; i < 32; i++) signed |= dex.get(i) != 0;
+        if (signed) {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            ByteBuffer signedPart = dex.duplicate();
+            signedPart.position(32);
+            sha1.update(signedPart);
+            byte[] signature = sha1.digest();
+            for (int i = 0; i < 20; i++) {
+                if (signature[i] != dex.get(12 + i)) fail("signature mismatch");
+            }
+        }
+
+        mapOff = u4(52);
+        stringIdsSize = u4(56); stringIdsOff = u4(60);
+        typeIdsSize = u4(64); typeIdsOff = u4(68);
+        protoIdsSize = u4(72); protoIdsOff = u4(76);
+        fieldIdsSize = u4(80); fieldIdsOff = u4(84);
+        methodIdsSize = u4(88); methodIdsOff = u4(92);
+        classDefsSize = u4(96); classDefsOff = u4(100);
+        dataSize = u4(104); dataOff = u4(108);
+
+        checkSection("string_ids", stringIdsSize, stringIdsOff, 4);
+        checkSection("type_ids", typeIdsSize, typeIdsOff, 4);
+        checkSection("proto_ids", protoIdsSize, protoIdsOff, 12);
+        checkSection("field_ids", fieldIdsSize, fieldIdsOff, 8);
+        checkSection("method_ids", methodIdsSize, methodIdsOff, 8);
+        checkSection("class_defs", classDefsSize, classDefsOff, 32);
+        if (typeIdsSize > 65536) fail("more than 65536 type IDs");
+        if (protoIdsSize > 65536) fail("more than 65536 proto IDs");
+        if (dataOff < 0 || dataSize < 0 || (long) dataOff + dataSize > fileSize) fail("data section lies outside the file");
+    }
+
+    // --- map_list ---
+
+    private void verifyMapList() throws Exception {
+        if (mapOff == 0 || (mapOff & 3) != 0) fail("map_off is missing or not 4-byte aligned");
+        if (mapOff < dataOff || mapOff + 4 > dataOff + dataSize) fail("map_list lies outside the data section");
+        int count = u4(mapOff);
+        if (count < 0 || (long) mapOff + 4 + (long) count * 12 > fileSize) fail("map_list runs past the end of the file");
+
+        boolean[] seen = new boolean[0x2007];
+        int previousOffset = -1;
+        boolean sawMapList = false;
+        for (int i = 0; i < count; i++) {
+            int entry = mapOff + 4 + i * 12;
+            int type = u2(entry);
+            int size = u4(entry + 4);
+            int offset = u4(entry + 8);
+            if (type >= seen.length || seen[type]) fail("map_list has an unknown or repeated type 0x" + Integer.toHexString(type));
+            seen[type] = true;
+            if (offset <= previousOffset) fail("map_list entries are not in increasing offset order");
+            previousOffset = offset;
+            if (size <= 0) fail("map_list entry 0x" + Integer.toHexString(type) + " is empty");
+
+            switch (type) {
+                case PureCodeDEXGenerator.TYPE_HEADER_ITEM:
+                    if (offset != 0 || size != 1) fail("header_item map entry is wrong");
+                    break;
+                case PureCodeDEXGenerator.TYPE_STRING_ID_ITEM:
+                    checkMapMatchesHeader("string_ids", size, offset, stringIdsSize, stringIdsOff);
+                    break;
+                case PureCodeDEXGenerator.TYPE_TYPE_ID_ITEM:
+                    checkMapMatchesHeader("type_ids", size, offset, typeIdsSize, typeIdsOff);
+                    break;
+                case PureCodeDEXGenerator.TYPE_PROTO_ID_ITEM:
+                    checkMapMatchesHeader("proto_ids", size, offset, protoIdsSize, protoIdsOff);
+                    break;
+                case PureCodeDEXGenerator.TYPE_FIELD_ID_ITEM:
+                    checkMapMatchesHeader("field_ids", size, offset, fieldIdsSize, fieldIdsOff);
+                    break;
+                case PureCodeDEXGenerator.TYPE_METHOD_ID_ITEM:
+                    checkMapMatchesHeader("method_ids", size, offset, methodIdsSize, methodIdsOff);
+                    break;
+                case PureCodeDEXGenerator.TYPE_CLASS_DEF_ITEM:
+                    checkMapMatchesHeader("class_defs", size, offset, classDefsSize, classDefsOff);
+                    break;
+                case PureCodeDEXGenerator.TYPE_MAP_LIST:
+                    if (offset != mapOff || size != 1) fail("map_list map entry does not match map_off");
+                    sawMapList = true;
+                    break;
+                case PureCodeDEXGenerator.TYPE_TYPE_LIST:
+                case PureCodeDEXGenerator.TYPE_CODE_ITEM:
+                    if ((offset & 3) != 0) fail("map entry 0x" + Integer.toHexString(type) + " is not 4-byte aligned");
+                    checkInData(type, offset);
+                    if (type == PureCodeDEXGenerator.TYPE_CODE_ITEM) codeItemsOff = offset;
+                    break;
+                default:
+                    checkInData(type, offset);
+                    break;
+            }
+        }
+        if (!seen[PureCodeDEXGenerator.TYPE_HEADER_ITEM]) fail("map_list has no header_item entry");
+        if (!sawMapList) fail("map_list has no map_list entry");
+
+        // code_items run up to the next map entry
+        if (codeItemsOff != -1) {
+            codeItemsEnd = fileSize;
+            for (int i = 0; i < count; i++) {
+                int offset = u4(mapOff + 4 + i * 12 + 8);
+                if (offset > codeItemsOff && offset < codeItemsEnd) codeItemsEnd = offset;
+            }
+        }
+    }
+
+    private void checkMapMatchesHeader(String name, int size, int offset, int headerSize, int headerOff) throws Exception {
+        if (size != headerSize || offset != headerOff) fail(name + " map entry does not match the header");
+    }
+
+    private void checkInData(int type, int offset) throws Exception {
+        if (offset < dataOff || offset >= dataOff + dataSize) {
+            fail("map entry 0x" + Integer.toHexString(type) + " lies outside the data section");
+        }
+    }
+
+    // --- ID sections ---
+
+    private void verifyStringIds() throws Exception {
+        int previous = -1;
+        for (int i = 0; i < stringIdsSize; i++) {
+            int dataOffset = u4(stringIdsOff + i * 4);
+            if (dataOffset < dataOff || dataOffset >= dataOff + dataSize) fail("string_data_off of string " + i + " lies outside the data section");
+            if (previous != -1 && compareStrings(previous, dataOffset) >= 0) fail("string_ids are not sorted at " + i);
+            previous = dataOffset;
+        }
+    }
+
+    /** Compares two string_data_items by UTF-16 code units without decoding them to Strings. */
+    private int compareStrings(int offsetA, int offsetB) throws Exception {
+        int[] a = { offsetA };
+        int[] b = { offsetB };
+        readUleb128(a);
+        readUleb128(b);
+        while (true) {
+            int charA = nextMutf8Char(a);
+            int charB = nextMutf8Char(b);
+            if (charA != charB) return (charA == -1) ? -1 : (charB == -1) ? 1 : charA - charB;
+            if (charA == -1) return 0;
+        }
+    }
+
+    /** Decodes the next UTF-16 unit of a MUTF-8 string, or -1 at the terminator. */
+    private int nextMutf8Char(int[] cursor) throws Exception {
+        int b = u1(cursor[0]++);
+        if (b == 0) return -1;
+        if (b < 0x80) return b;
+        if ((b & 0xE0) == 0xC0) return ((b & 0x1F) << 6) | (u1(cursor[0]++) & 0x3F);
+        if ((b & 0xF0) == 0xE0) {
+            int c = ((b & 0x0F) << 12) | ((u1(cursor[0]++) & 0x3F) << 6);
+            return c | (u1(cursor[0]++) & 0x3F);
+        }
+        fail("bad MUTF-8 byte in string data");
+        return -1;
+    }
+
+    private void verifyTypeIds() throws Exception {
+        int previous = -1;
+        for (int i = 0; i < typeIdsSize; i++) {
+            int descriptorIdx = u4(typeIdsOff + i * 4);
+            if (descriptorIdx < 0 || descriptorIdx >= stringIdsSize) fail("type " + i + " has an invalid descriptor_idx");
+            if (descriptorIdx <= previous) fail("type_ids are not sorted at " + i);
+            previous = descriptorIdx;
+        }
+    }
+
+    private void verifyProtoIds() throws Exception {
+        for (int i = 0; i < protoIdsSize; i++) {
+            int proto = protoIdsOff + i * 12;
+            if (u4(proto) < 0 || u4(proto) >= stringIdsSize) fail("proto " + i + " has an invalid shorty_idx");
+            if (u4(proto + 4) < 0 || u4(proto + 4) >= typeIdsSize) fail("proto " + i + " has an invalid return_type_idx");
+            int parameters = u4(proto + 8);
+            if (parameters != 0) verifyTypeList("proto " + i, parameters);
+            if (i > 0 && compareProtos(proto - 12, proto) >= 0) fail("proto_ids are not sorted at " + i);
+        }
+    }
+
+    private void verifyTypeList(String owner, int offset) throws Exception {
+        if ((offset & 3) != 0 || offset < dataOff || offset + 4 > dataOff + dataSize) fail(owner + " has a bad type_list offset");
+        int size = u4(offset);
+        if (size < 0 || offset + 4 + size * 2 > dataOff + dataSize) fail(owner + " type_list runs past the data section");
+        for (int j = 0; j < size; j++) {
+            if (u2(offset + 4 + j * 2) >= typeIdsSize) fail(owner + " type_list has an invalid type_idx");
+        }
+    }
+
+    /** Orders protos by return type, then by parameter list (shorter lists first on a tie). */
+    private int compareProtos(int protoA, int protoB) {
+        int result = Integer.compare(u4(protoA + 4), u4(protoB + 4));
+        if (result != 0) return result;
+        int listA = u4(protoA + 8);
+        int listB = u4(protoB + 8);
+        int sizeA = (listA == 0) ? 0 : u4(listA);
+        int sizeB = (listB == 0) ? 0 : u4(listB);
+        for (int j = 0; j < Math.min(sizeA, sizeB); j++) {
+            result = Integer.compare(u2(listA + 4 + j * 2), u2(listB + 4 + j * 2));
+            if (result != 0) return result;
+        }
+        return Integer.compare(sizeA, sizeB);
+    }
+
+    private void verifyFieldIds() throws Exception {
+        long previous = -1;
+        for (int i = 0; i < fieldIdsSize; i++) {
+            int field = fieldIdsOff + i * 8;
+            int classIdx = u2(field), typeIdx = u2(field + 2), nameIdx = u4(field + 4);
+            if (classIdx >= typeIdsSize || typeIdx >= typeIdsSize || nameIdx < 0 || nameIdx >= stringIdsSize) {
+                fail("field " + i + " has an invalid index");
+            }
+            long key = ((long) classIdx << 48) | ((long) nameIdx << 16) | typeIdx;
+            if (key <= previous) fail("field_ids are not sorted at " + i);
+            previous = key;
+        }
+    }
+
+    private void verifyMethodIds() throws Exception {
+        long previous = -1;
+        for (int i = 0; i < methodIdsSize; i++) {
+            int method = methodIdsOff + i * 8;
+            int classIdx = u2(method), protoIdx = u2(method + 2), nameIdx = u4(method + 4);
+            if (classIdx >= typeIdsSize || protoIdx >= protoIdsSize || nameIdx < 0 || nameIdx >= stringIdsSize) {
+                fail("method " + i + " has an invalid index");
+            }
+            long key = ((long) classIdx << 48) | ((long) nameIdx << 16) | protoIdx;
+            if (key <= previous) fail("method_ids are not sorted at " + i);
+            previous = key;
+        }
+    }
+
+    // --- class_defs and class_data ---
+
+    private void verifyClassDefs() throws Exception {
+        int[] definedAt = new int[typeIdsSize];
+        for (int i = 0; i < classDefsSize; i++) {
+            int classIdx = u4(classDefsOff + i * 32);
+            if (classIdx < 0 || classIdx >= typeIdsSize) fail("class_def " + i + " has an invalid class_idx");
+            if (definedAt[classIdx] != 0) fail("class_def " + i + " defines a class twice");
+            definedAt[classIdx] = i + 1;
+        }
+
+        for (int i = 0; i < classDefsSize; i++) {
+            int classDef = classDefsOff + i * 32;
+            String owner = "class_def " + i;
+            int superclassIdx = u4(classDef + 8);
+            if (superclassIdx != PureCodeDEXGenerator.ClassDefItem.NO_INDEX) {
+                if (superclassIdx < 0 || superclassIdx >= typeIdsSize) fail(owner + " has an invalid superclass_idx");
+                if (definedAt[superclassIdx] > i) fail(owner + " appears before its superclass");
+            }
+            int interfacesOff = u4(classDef + 12);
+            if (interfacesOff != 0) {
+                verifyTypeList(owner + " interfaces", interfacesOff);
+                for (int j = 0; j < u4(interfacesOff); j++) {
+                    if (definedAt[u2(interfacesOff + 4 + j * 2)] > i) fail(owner + " appears before one of its interfaces");
+                }
+            }
+            int sourceFileIdx = u4(classDef + 16);
+            if (sourceFileIdx != PureCodeDEXGenerator.ClassDefItem.NO_INDEX &&
+                (sourceFileIdx < 0 || sourceFileIdx >= stringIdsSize)) fail(owner + " has an invalid source_file_idx");
+            int classDataOff = u4(classDef + 24);
+            if (classDataOff != 0) {
+                if (classDataOff < dataOff || classDataOff >= dataOff + dataSize) fail(owner + " class_data lies outside the data section");
+                verifyClassData(owner, classDataOff);
+            }
+        }
+    }
+
+    private void verifyClassData(String owner, int offset) throws Exception {
+        int[] cursor = { offset };
+        int staticFields = readUleb128(cursor);
+        int instanceFields = readUleb128(cursor);
+        int directMethods = readUleb128(cursor);
+        int virtualMethods = readUleb128(cursor);
+        verifyEncodedFields(owner, cursor, staticFields);
+        verifyEncodedFields(owner, cursor, instanceFields);
+        verifyEncodedMethods(owner, cursor, directMethods);
+        verifyEncodedMethods(owner, cursor, virtualMethods);
+    }
+
+    private void verifyEncodedFields(String owner, int[] cursor, int count) throws Exception {
+        int fieldIdx = 0;
+        for (int i = 0; i < count; i++) {
+            int diff = readUleb128(cursor);
+            if (i > 0 && diff == 0) fail(owner + " lists a field twice");
+            fieldIdx += diff;
+            readUleb128(cursor);
+            if (fieldIdx < 0 || fieldIdx >= fieldIdsSize) fail(owner + " has an invalid field_idx");
+        }
+    }
+
+    private void verifyEncodedMethods(String owner, int[] cursor, int count) throws Exception {
+        int methodIdx = 0;
+        for (int i = 0; i < count; i++) {
+            int diff = readUleb128(cursor);
+            if (i > 0 && diff == 0) fail(owner + " lists a method twice");
+            methodIdx += diff;
+            readUleb128(cursor);
+            int codeOff = readUleb128(cursor);
+            if (methodIdx < 0 || methodIdx >= methodIdsSize) fail(owner + " has an invalid method_idx");
+            if (codeOff != 0) verifyCodeItem("method " + methodIdx, codeOff);
+        }
+    }
+
+    // --- code_item ---
+
+    private void verifyCodeItem(String owner, int offset) throws Exception {
+        if ((offset & 3) != 0) fail(owner + " code_item is not 4-byte aligned");
+        if (codeItemsOff == -1 || offset < codeItemsOff || offset + 16 > codeItemsEnd) fail(owner + " code_item lies outside the code section");
+        int registers = u2(offset);
+        int ins = u2(offset + 2);
+        int outs = u2(offset + 4);
+        int triesSize = u2(offset + 6);
+        int insnsSize = u4(offset + 12);
+        if (ins > registers) fail(owner + " has more ins than registers");
+        int insnsOff = offset + 16;
+        if (insnsSize < 0 || (long) insnsOff + insnsSize * 2L > codeItemsEnd) fail(owner + " insns run past the code section");
+
+        boolean[] starts = new boolean[insnsSize + 1];
+        int[] branchFrom = new int[insnsSize];
+        int[] branchTo = new int[insnsSize];
+        int branches = 0;
+        int pc = 0;
+        while (pc < insnsSize) {
+            int unit = u2(insnsOff + pc * 2);
+            int op = unit & 0xFF;
+            if (op == 0 && unit != 0) {
+                pc += payloadWidth(owner, insnsOff, pc, insnsSize);
+                continue;
+            }
+            int format = FORMATS[op];
+            int width = FORMAT_WIDTH[format];
+            if (pc + width > insnsSize) fail(owner + " instruction at " + pc + " runs past insns");
+            starts[pc] = true;
+            int at = insnsOff + pc * 2;
+            verifyRegisters(owner, pc, format, at, unit, registers);
+            verifyWideRegisters(owner, pc, op, format, at, unit, registers);
+            verifyIndex(owner, pc, op, format, at);
+            verifyInvoke(owner, pc, op, format, at, unit, outs);
+            int target = branchTarget(format, at, unit);
+            if (target != Integer.MIN_VALUE) {
+                branchFrom[branches] = pc;
+                branchTo[branches] = pc + target;
+                branches++;
+            }
+            pc += width;
+        }
+        if (pc != insnsSize) fail(owner + " last instruction runs past insns");
+
+        for (int i = 0; i < branches; i++) {
+            int from = branchFrom[i];
+            int to = branchTo[i];
+            int op = u1(insnsOff + from * 2);
+            if (FORMATS[op] == F31T) {
+                verifyPayload(owner, insnsOff, insnsSize, starts, op, from, to);
+            } else if (to < 0 || to >= insnsSize || !starts[to]) {
+                fail(owner + " branch at " + from + " targets " + to + ", which is not an instruction");
+            }
+        }
+
+        if (triesSize > 0) verifyTries(owner, offset, insnsOff, insnsSize, triesSize, starts);
+    }
+
+    /** Returns the width of a switch or array-data payload starting at pc. */
+    private int payloadWidth(String owner, int insnsOff, int pc, int insnsSize) throws Exception {
+        int at = insnsOff + pc * 2;
+        int ident = u2(at);
+        long width;
+        if (ident == 0x0100) {
+            width = u2(at + 2) * 2L + 4;
+        } else if (ident == 0x0200) {
+            width = u2(at + 2) * 4L + 2;
+        } else if (ident == 0x0300) {
+            width = ((long) u2(at + 2) * (u4(at + 4) & 0xFFFFFFFFL) + 1) / 2 + 4;
+        } else {
+            fail(owner + " has an unknown pseudo-instruction at " + pc);
+            return 0;
+        }
+        if ((pc & 1) != 0) fail(owner + " payload at " + pc + " is not 4-byte aligned");
+        if (pc + width > insnsSize) fail(owner + " payload at " + pc + " runs past insns");
+        return (int) width;
+    }
+
+    /** Checks a switch or fill-array-data payload and every switch target it holds. */
+    private void verifyPayload(String owner, int insnsOff, int insnsSize, boolean[] starts,
+                               int op, int from, int payload) throws Exception {
+        if (payload < 0 || payload >= insnsSize || starts[payload] || (payload & 1) != 0) {
+            fail(owner + " instruction at " + from + " has a bad payload offset");
+        }
+        int at = insnsOff + payload * 2;
+        int expected = (op == 0x2b) ? 0x0100 : (op == 0x2c) ? 0x0200 : 0x0300;
+        if (u2(at) != expected) fail(owner + " instruction at " + from + " points at the wrong payload type");
+        if (op == 0x26) return;
+
+        int size = u2(at + 2);
+        int targets = (op == 0x2b) ? at + 8 : at + 4 + size * 4;
+        for (int j = 0; j < size; j++) {
+            int to = from + u4(targets + j * 4);
+            if (to < 0 || to >= insnsSize || !starts[to]) fail(owner + " switch at " + from + " targets " + to + ", which is not an instruction");
+        }
+    }
+
+    private void verifyRegisters(String owner, int pc, int format, int at, int unit, int registers) throws Exception {
+        int a = (unit >> 8) & 0xFF;
+        switch (format) {
+            case F12X: case F22T: case F22S: case F22C:
+                checkRegister(owner, pc, a & 0xF, registers);
+                checkRegister(owner, pc, a >> 4, registers);
+                break;
+            case F11N:
+                checkRegister(owner, pc, a & 0xF, registers);
+                break;
+            case F11X: case F21T: case F21S: case F21H: case F21C: case F31T: case F31I: case F31C: case F51L:
+                checkRegister(owner, pc, a, registers);
+                break;
+            case F22X:
+                checkRegister(owner, pc, a, registers);
+                checkRegister(owner, pc, u2(at + 2), registers);
+                break;
+            case F32X:
+                checkRegister(owner, pc, u2(at + 2), registers);
+                checkRegister(owner, pc, u2(at + 4), registers);
+                break;
+            case F23X:
+                checkRegister(owner, pc, a, registers);
+                checkRegister(owner, pc, u1(at + 2), registers);
+                checkRegister(owner, pc, u1(at + 3), registers);
+                break;
+            case F22B:
+                checkRegister(owner, pc, a, registers);
+                checkRegister(owner, pc, u1(at + 2), registers);
+                break;
+            case F35C: case F45CC: {
+                int count = a >> 4;
+                if (count > 5) fail(owner + " instruction at " + pc + " passes more than 5 registers");
+                int packed = u2(at + 4);
+                for (int j = 0; j < Math.min(count, 4); j++) checkRegister(owner, pc, (packed >> (j * 4)) & 0xF, registers);
+                if (count == 5) checkRegister(owner, pc, a & 0xF, registers);
+                break;
+            }
+            case F3RC: case F4RCC: {
+                int first = u2(at + 4);
+                if (a > 0) checkRegister(owner, pc, first + a - 1, registers);
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /** Checks that the second register of every wide operand exists too. */
+    private void verifyWideRegisters(String owner, int pc, int op, int format, int at, int unit,
+                                     int registers) throws Exception {
+        int wide = WIDE_OPERANDS[op];
+        if (wide == 0) return;
+        int a = (unit >> 8) & 0xFF;
+        int regA, regB = -1, regC = -1;
+        switch (format) {
+            case F12X: case F22C: regA = a & 0xF; regB = a >> 4; break;
+            case F22X: regA = a; regB = u2(at + 2); break;
+            case F32X: regA = u2(at + 2); regB = u2(at + 4); break;
+            case F23X: regA = a; regB = u1(at + 2); regC = u1(at + 3); break;
+            default: regA = a; break;
+        }
+        if ((wide & WIDE_A) != 0) checkRegister(owner, pc, regA + 1, registers);
+        if ((wide & WIDE_B) != 0) checkRegister(owner, pc, regB + 1, registers);
+        if ((wide & WIDE_C) != 0) checkRegister(owner, pc, regC + 1, registers);
+    }
+
+    /**
+     * Checks that an invoke passes as many argument words as its callee's proto
+     * takes (plus 'this' unless it is invoke-static) and no more than outs_size.
+     */
+    private void verifyInvoke(String owner, int pc, int op, int format, int at, int unit,
+                              int outs) throws Exception {
+        if (INDEX_KINDS[op] != INDEX_METHOD || op >= 0xfa) return;
+        int count = (format == F35C) ? (unit >> 12) & 0xF : (unit >> 8) & 0xFF;
+        if (count > outs) {
+            fail(owner + " instruction at " + pc + " passes " + count + " argument words but outs_size is " + outs);
+        }
+        boolean isStatic = (op == 0x71 || op == 0x77);
+        int expected = parameterWords(u2(at + 2)) + (isStatic ? 0 : 1);
+        if (count != expected) {
+            fail(owner + " instruction at " + pc + " passes " + count + " argument words, its callee takes " + expected);
+        }
+    }
+
+    /** Counts the argument words of a method's proto from its shorty; J and D take two. */
+    private int parameterWords(int methodIdx) throws Exception {
+        int protoIdx = u2(methodIdsOff + methodIdx * 8 + 2);
+        int shortyIdx = u4(protoIdsOff + protoIdx * 12);
+        int[] cursor = { u4(stringIdsOff + shortyIdx * 4) };
+        int length = readUleb128(cursor);
+        int words = 0;
+        for (int i = 1; i < length; i++) { // skip the return type
+            char c = (char) u1(cursor[0] + i);
+            words += (c == 'J' || c == 'D') ? 2 : 1;
+        }
+        return words;
+    }
+
+    private void checkRegister(String owner, int pc, int register, int registers) throws Exception {
+        if (register >= registers) {
+            fail(owner + " instruction at " + pc + " uses v" + register + " but has only " + registers + " registers");
+        }
+    }
+
+    private void verifyIndex(String owner, int pc, int op, int format, int at) throws Exception {
+        int kind = INDEX_KINDS[op];
+        if (kind == INDEX_NONE) return;
+        long index = (format == F31C) ? (u4(at + 2) & 0xFFFFFFFFL) : u2(at + 2);
+        int limit = (kind == INDEX_STRING) ? stringIdsSize : (kind == INDEX_TYPE) ? typeIdsSize
+                  : (kind == INDEX_FIELD) ? fieldIdsSize : methodIdsSize;
+        if (index >= limit) fail(owner + " instruction at " + pc + " has an out-of-range index " + index);
+    }
+
+    /** Returns the relative branch offset of an instruction, or MIN_VALUE if it does not branch. */
+    private int branchTarget(int format, int at, int unit) {
+        switch (format) {
+            case F10T: return (byte) (unit >> 8);
+            case F20T: case F21T: case F22T: return dex.getShort(at + 2);
+            case F30T: case F31T: return u4(at + 2);
+            default: return Integer.MIN_VALUE;
+        }
+    }
+
+    private void verifyTries(String owner, int codeOff, int insnsOff, int insnsSize,
+                             int triesSize, boolean[] starts) throws Exception {
+        int triesOff = insnsOff + insnsSize * 2;
+        if ((triesOff & 3) != 0) triesOff += 2;
+        int handlersOff = triesOff + triesSize * 8;
+        if (handlersOff > codeItemsEnd) fail(owner + " try_items run past the code section");
+
+        // Walk the handler list once to learn where each encoded_catch_handler starts
+        int[] cursor = { handlersOff };
+        int listSize = readUleb128(cursor);
+        int[] handlerOffsets = new int[listSize];
+        for (int h = 0; h < listSize; h++) {
+            handlerOffsets[h] = cursor[0] - handlersOff;
+            int size = readSleb128(cursor);
+            for (int j = 0; j < Math.abs(size); j++) {
+                int typeIdx = readUleb128(cursor);
+                int address = readUleb128(cursor);
+                if (typeIdx >= typeIdsSize) fail(owner + " catch handler has an invalid type_idx");
+                if (address >= insnsSize || !starts[address]) fail(owner + " catch handler targets " + address + ", which is not an instruction");
+            }
+            if (size <= 0) {
+                int address = readUleb128(cursor);
+                if (address >= insnsSize || !starts[address]) fail(owner + " catch-all handler targets " + address + ", which is not an instruction");
+            }
+        }
+        if (cursor[0] > codeItemsEnd) fail(owner + " catch handlers run past the code section");
+
+        int previousEnd = 0;
+        for (int t = 0; t < triesSize; t++) {
+            int tryItem = triesOff + t * 8;
+            int start = u4(tryItem);
+            int count = u2(tryItem + 4);
+            int handlerOff = u2(tryItem + 6);
+            if (start < previousEnd) fail(owner + " try_items overlap or are unsorted");
+            if (count == 0 || start + count > insnsSize || !starts[start]) fail(owner + " try_item " + t + " has a bad range");
+            if (Arrays.binarySearch(handlerOffsets, handlerOff) < 0) fail(owner + " try_item " + t + " has a bad handler_off");
+            previousEnd = start + count;
+        }
+    }
+}
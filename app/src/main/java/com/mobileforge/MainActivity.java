@@ -18,7 +18,12 @@ import java.io.PrintStream;
 import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class MainActivity extends Activity {
     private static final String TAG = "MobileForge";
@@ -143,6 +148,11 @@ public class MainActivity extends Activity {
     public class BuildAPI {
         private File buildDir;
         private File mfnlGenDir;
+        // Generated class bytes (by internal name), library jars and dex files of the
+        // last .class-path build, for incremental patching
+        private Map<String, byte[]> lastDexInputs;
+        private String lastLibraryJars;
+        private List<File> lastDexFiles;
 
         public BuildAPI() {
             buildDir = new File(getExternalFilesDir(null), "build");
@@ -165,7 +175,16 @@ public class MainActivity extends Activity {
                 List<File> mfnlFiles = new ArrayList<>();
                 findMFNLFiles(workDir, mfnlFiles);
 
+                // Library jars need the .class pipeline; without them MFNL compiles straight to Dalvik
+                List<File> libraryJars = new ArrayList<>();
+                findJarFiles(workDir, libraryJars);
+                boolean direct = libraryJars.isEmpty();
+
                 // Step 2: Compile MFNL to Java if MFNL files exist
+                PureCodeDEXGenerator.StartupProfile startupProfile = new PureCodeDEXGenerator.StartupProfile();
+                // A later file generating the same class replaces it, as its .class file would
+                Map<String, PureCodeDEXGenerator.DalvikClass> dalvikClasses = new LinkedHashMap<>();
+                Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
                 if (!mfnlFiles.isEmpty()) {
                     Log.d(TAG, "Found " + mfnlFiles.size() + " MFNL files");
                     resultLog.append("=== MFNL Compilation ===\n");
@@ -175,14 +194,22 @@ public class MainActivity extends Activity {
                         Log.d(TAG, "Compiling MFNL: " + mfnlFile.getName());
                         resultLog.append("Compiling " + mfnlFile.getName() + "...\n");
 
-                        com.mobileforge.compiler.MFNLCompiler.CompileResult mfnlResult =
-                            com.mobileforge.compiler.MFNLCompiler.compile(mfnlFile, mfnlGenDir);
+                        com.mobileforge.compiler.MFNLCompiler.CompileResult mfnlResult = direct
+                            ? com.mobileforge.compiler.MFNLCompiler.compileToDalvik(mfnlFile)
+                            : com.mobileforge.compiler.MFNLCompiler.compile(mfnlFile, mfnlGenDir);
 
                         resultLog.append(mfnlResult.message).append("\n");
 
                         if (!mfnlResult.success) {
                             return resultLog.toString();
                         }
+                        for (String rule : mfnlResult.startupMethods) {
+                            startupProfile.addRule(rule);
+                        }
+                        for (PureCodeDEXGenerator.DalvikClass dalvikClass : mfnlResult.dalvikClasses) {
+                            dalvikClasses.put(dalvikClass.descriptor, dalvikClass);
+                        }
+                        generatedClasses.putAll(mfnlResult.generatedClasses);
                     }
 
                     resultLog.append("\n");
@@ -190,58 +217,68 @@ public class MainActivity extends Activity {
                     return "ERROR: No .mfnl files found. Please create a .mfnl file first.";
                 }
 
-                // Step 3: Find generated .class files
-                List<File> classFiles = new ArrayList<>();
-                findClassFiles(mfnlGenDir, classFiles);
+                if (direct) {
+                    return buildDirectDex(new ArrayList<>(dalvikClasses.values()), startupProfile, resultLog);
+                }
 
-                if (classFiles.isEmpty()) {
+                // Step 3: Take the generated classes straight from the compiler;
+                // mfnl_generated only receives a background copy
+                List<byte[]> classes = new ArrayList<>(generatedClasses.values());
+
+                if (classes.isEmpty()) {
                     return resultLog.toString() + "ERROR: No .class files generated";
                 }
 
-                Log.d(TAG, "Found " + classFiles.size() + " .class files");
+                Log.d(TAG, "Generated " + classes.size() + " classes");
                 resultLog.append("=== DEX Conversion ===\n");
-                resultLog.append("Found " + classFiles.size() + " .class file(s)\n\n");
-
-                // Step 4: Prepare output directory for .dex files
-                File dexDir = new File(buildDir, "dex");
-                if (dexDir.exists()) {
-                    deleteRecursive(dexDir);
+                resultLog.append("Generated " + classes.size() + " class(es)\n\n");
+
+                // Step 4: Add the library jars
+                Log.d(TAG, "Found " + libraryJars.size() + " library jars");
+                resultLog.append("Found " + libraryJars.size() + " library jar(s)\n");
+
+                PureCodeDEXGenerator.DexOptions dexOptions = newDexOptions(startupProfile);
+                // The generated activities and their click dispatchers are the entry points;
+                // library classes they don't reference directly may go into classes2.dex on
+                dexOptions.mainDexClasses = new LinkedHashSet<>();
+                for (String internalName : generatedClasses.keySet()) {
+                    dexOptions.mainDexClasses.add("L" + internalName + ";");
                 }
-                dexDir.mkdirs();
 
-                // Step 5: Convert each .class to .dex
-                int converted = 0;
-                for (File classFile : classFiles) {
+                // Step 5: Patch the previous classes.dex if only method bodies changed,
+                // otherwise convert everything into classes.dex (+ classes2.dex, ...)
+                File dexDir = new File(buildDir, "dex");
+                String jarStamp = libraryJarStamp(libraryJars);
+                List<File> dexFiles = patchPreviousDex(dexDir, generatedClasses, jarStamp, resultLog);
+                if (dexFiles == null) {
+                    lastDexInputs = null;
+                    dexDir = newDexDir();
                     try {
-                        Log.d(TAG, "Converting: " + classFile.getName());
-
-                        // Read .class file
-                        FileInputStream fis = new FileInputStream(classFile);
-                        byte[] classData = new byte[(int) classFile.length()];
-                        fis.read(classData);
-                        fis.close();
-
-                        // Convert to .dex
-                        byte[] dexData = PureCodeDEXGenerator.convertClassToDex(classData);
-
-                        // Write .dex file
-                        String dexFileName = classFile.getName().replace(".class", ".dex");
-                        File dexFile = new File(dexDir, dexFileName);
-                        FileOutputStream fos = new FileOutputStream(dexFile);
-                        fos.write(dexData);
-                        fos.close();
-
-                        converted++;
-                        Log.d(TAG, "Converted: " + classFile.getName() + " -> " + dexFileName);
-
+                        dexFiles = PureCodeDEXGenerator.convertClassesToMultiDex(classes, libraryJars, dexDir,
+                            dexOptions);
+                        Log.d(TAG, "Converted " + classes.size() + " classes -> " + dexFiles.size() + " dex file(s)");
+                        String stats = dexOptions.stats.summary();
+                        Log.d(TAG, stats);
+                        resultLog.append(stats).append("\n");
                     } catch (Exception e) {
-                        Log.e(TAG, "Failed to convert " + classFile.getName(), e);
-                        resultLog.append("ERROR converting " + classFile.getName() + ": " + e.getMessage() + "\n");
+                        Log.e(TAG, "Failed to convert classes", e);
+                        resultLog.append("ERROR converting classes: " + e.getMessage() + "\n");
                         return resultLog.toString();
                     }
+                    lastDexInputs = generatedClasses;
+                    lastLibraryJars = jarStamp;
+                    lastDexFiles = dexFiles;
                 }
 
-                resultLog.append("SUCCESS: Converted " + converted + " .class file(s) to .dex\n");
+                // Step 6: Verify the generated .dex files before they reach the device
+                if (!verifyDexFiles(dexFiles, resultLog)) {
+                    lastDexInputs = null;
+                    return resultLog.toString();
+                }
+
+                resultLog.append("SUCCESS: Converted " + classes.size() + " class(es)");
+                resultLog.append(" and " + libraryJars.size() + " library jar(s)");
+                resultLog.append(" to " + dexFiles.size() + " .dex file(s)\n");
                 resultLog.append("DEX files saved to: " + dexDir.getAbsolutePath());
                 return resultLog.toString();
             } catch (Exception e) {
@@ -252,6 +289,133 @@ public class MainActivity extends Activity {
             }
         }
 
+        /**
+         * Patches the changed method bodies into the classes.dex of the previous build.
+         * The classes whose bytes changed and every generated class that refers to one
+         * of them go to patchDex. Returns null when that is not possible and a full
+         * conversion is needed.
+         */
+        private List<File> patchPreviousDex(File dexDir, Map<String, byte[]> dexInputs, String libraryJars,
+                                            StringBuilder resultLog) {
+            File dexFile = new File(dexDir, "classes.dex");
+            if (lastDexInputs == null || !dexFile.exists() || !libraryJars.equals(lastLibraryJars)
+                    || !lastDexInputs.keySet().equals(dexInputs.keySet())) {
+                return null;
+            }
+            Set<String> changed = new LinkedHashSet<>();
+            for (Map.Entry<String, byte[]> input : dexInputs.entrySet()) {
+                if (!Arrays.equals(input.getValue(), lastDexInputs.get(input.getKey()))) {
+                    changed.add("L" + input.getKey() + ";");
+                }
+            }
+            try {
+                Set<String> reconvert = PureCodeDEXGenerator.classesToReconvert(
+                    PureCodeDEXGenerator.scanDependencyGraph(new ArrayList<>(dexInputs.values())), changed);
+                List<byte[]> changedClasses = new ArrayList<>();
+                for (Map.Entry<String, byte[]> input : dexInputs.entrySet()) {
+                    if (reconvert.contains("L" + input.getKey() + ";")) {
+                        changedClasses.add(input.getValue());
+                    }
+                }
+                int patched = PureCodeDEXGenerator.patchDex(dexFile, changedClasses,
+                    new PureCodeDEXGenerator.DexOptions());
+                if (patched < 0) {
+                    return null;
+                }
+                Log.d(TAG, "Patched " + patched + " method(s) in " + dexFile.getName());
+                resultLog.append("Patched " + patched + " changed method(s) into the previous classes.dex\n");
+            } catch (Exception e) {
+                Log.e(TAG, "Incremental dex patch failed, rebuilding", e);
+                return null;
+            }
+            lastDexInputs = dexInputs;
+            return lastDexFiles;
+        }
+
+        /** Identifies the library jars by path, size and modification time. */
+        private String libraryJarStamp(List<File> libraryJars) {
+            StringBuilder stamp = new StringBuilder();
+            for (File jar : libraryJars) {
+                stamp.append(jar.getAbsolutePath()).append(':').append(jar.length())
+                     .append(':').append(jar.lastModified()).append('\n');
+            }
+            return stamp.toString();
+        }
+
+        /**
+         * Writes the MFNL classes straight to classes.dex: no .class files, no
+         * parsing and no stack translation in between.
+         */
+        private String buildDirectDex(List<PureCodeDEXGenerator.DalvikClass> dalvikClasses,
+                                      PureCodeDEXGenerator.StartupProfile startupProfile,
+                                      StringBuilder resultLog) throws Exception {
+            resultLog.append("=== DEX Generation ===\n");
+            PureCodeDEXGenerator.DexOptions dexOptions = newDexOptions(startupProfile);
+            // The direct build replaces the dex files a later .class build could patch
+            lastDexInputs = null;
+            File dexDir = newDexDir();
+            List<File> dexFiles = new ArrayList<>();
+            dexFiles.add(new File(dexDir, "classes.dex"));
+            try {
+                PureCodeDEXGenerator.convertDalvikClassesToDex(dalvikClasses, dexFiles.get(0), dexOptions);
+                Log.d(TAG, "Generated " + dalvikClasses.size() + " classes -> classes.dex");
+                String stats = dexOptions.stats.summary();
+                Log.d(TAG, stats);
+                resultLog.append(stats).append("\n");
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to generate dex", e);
+                resultLog.append("ERROR generating dex: " + e.getMessage() + "\n");
+                return resultLog.toString();
+            }
+
+            if (!verifyDexFiles(dexFiles, resultLog)) {
+                return resultLog.toString();
+            }
+
+            resultLog.append("SUCCESS: Compiled " + dalvikClasses.size() + " class(es) straight to classes.dex\n");
+            resultLog.append("DEX files saved to: " + dexDir.getAbsolutePath());
+            return resultLog.toString();
+        }
+
+        private PureCodeDEXGenerator.DexOptions newDexOptions(PureCodeDEXGenerator.StartupProfile startupProfile)
+                throws Exception {
+            // A startup-prof.txt in the project adds hand-picked startup methods
+            File profileFile = new File(workDir, "startup-prof.txt");
+            if (profileFile.exists()) {
+                startupProfile.addAll(PureCodeDEXGenerator.StartupProfile.read(profileFile));
+            }
+            PureCodeDEXGenerator.DexOptions dexOptions = new PureCodeDEXGenerator.DexOptions();
+            dexOptions.startupProfile = startupProfile;
+            dexOptions.stats = new PureCodeDEXGenerator.DexConversionStats();
+            // Keep dex bytes out of the Java heap so the editor WebView doesn't stall on GC
+            dexOptions.offHeapOutput = true;
+            return dexOptions;
+        }
+
+        /** Returns an empty build/dex directory. */
+        private File newDexDir() {
+            File dexDir = new File(buildDir, "dex");
+            if (dexDir.exists()) {
+                deleteRecursive(dexDir);
+            }
+            dexDir.mkdirs();
+            return dexDir;
+        }
+
+        /** Verifies the generated .dex files before they reach the device. */
+        private boolean verifyDexFiles(List<File> dexFiles, StringBuilder resultLog) {
+            for (File dexFile : dexFiles) {
+                try {
+                    DexVerifier.verify(dexFile);
+                } catch (Exception e) {
+                    Log.e(TAG, "Verification failed for " + dexFile.getName(), e);
+                    resultLog.append("ERROR verifying " + dexFile.getName() + ": " + e.getMessage() + "\n");
+                    return false;
+                }
+            }
+            return true;
+        }
+
         private void findMFNLFiles(File dir, List<File> mfnlFiles) {
             File[] files = dir.listFiles();
             if (files == null) return;
@@ -264,14 +428,14 @@ public class MainActivity extends Activity {
             }
         }
 
-        private void findClassFiles(File dir, List<File> classFiles) {
+        private void findJarFiles(File dir, List<File> jarFiles) {
             File[] files = dir.listFiles();
             if (files == null) return;
             for (File f : files) {
                 if (f.isDirectory()) {
-                    findClassFiles(f, classFiles);
-                } else if (f.getName().endsWith(".class")) {
-                    classFiles.add(f);
+                    findJarFiles(f, jarFiles);
+                } else if (f.getName().endsWith(".jar")) {
+                    jarFiles.add(f);
                 }
             }
         }
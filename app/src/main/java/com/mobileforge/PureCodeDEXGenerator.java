@@ -1,19 +1,41 @@
 package com.mobileforge;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.zip.Adler32;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * This is the complete, combined code for the .class to .dex converter.
@@ -25,31 +47,277 @@ public class PureCodeDEXGenerator {
      * Main entry point: converts a .class file byte array to a .dex file byte array.
      */
     public static byte[] convertClassToDex(byte[] classData) throws Exception {
-        ClassFile classFile = parseClassFile(classData);
-        ByteWriter writer = new ByteWriter(65536);
-        MapListBuilder mapBuilder = new MapListBuilder();
+        return convertClassToDex(classData, new DexOptions());
+    }
+
+    /**
+     * Converts a .class file byte array to a .dex file byte array using the given options.
+     */
+    public static byte[] convertClassToDex(byte[] classData, DexOptions options) throws Exception {
+        return ConversionContext.forCurrentThread().convertClassToDex(classData, options);
+    }
+
+    /**
+     * Converts a .class file and streams the .dex straight to a file channel,
+     * starting at the channel's current position.
+     */
+    public static void convertClassToDex(byte[] classData, FileChannel channel,
+                                         DexOptions options) throws Exception {
+        ConversionContext.forCurrentThread().convertClassToDex(classData, channel, options);
+    }
 
-        writeEmptyHeader(writer);
+    /**
+     * Converts a .class file straight into a .dex file on disk, replacing it.
+     * With offHeapOutput set, the dex bytes are written from direct buffers.
+     */
+    public static void convertClassToDex(byte[] classData, File dexFile, DexOptions options) throws Exception {
+        FileOutputStream fos = new FileOutputStream(dexFile);
+        try {
+            convertClassToDex(classData, fos.getChannel(), options);
+        } finally {
+            fos.close();
+        }
+    }
 
-        StringSection stringSection = writeStrings(writer, classFile.constantPool, mapBuilder);
-        TypeSection typeSection = writeTypes(writer, classFile.constantPool, stringSection, mapBuilder);
-        ProtoSection protoSection = writeProtos(writer, classFile.constantPool, stringSection, typeSection, mapBuilder);
-        FieldSection fieldSection = writeFields(writer, classFile.constantPool, stringSection, typeSection, mapBuilder);
-        MethodSection methodSection = writeMethods(writer, classFile.constantPool, stringSection, typeSection, protoSection, mapBuilder);
-        ClassDefSection classDefSection = writeClassDef(writer, classFile, typeSection, stringSection, mapBuilder);
+    /**
+     * Converts .class files and library jars into a single .dex file streamed to a
+     * file channel. Jar entries are read straight out of the archive and every class
+     * is parsed in parallel.
+     */
+    public static void convertClassesToDex(List<byte[]> classes, List<File> libraryJars,
+                                           FileChannel channel, DexOptions options) throws Exception {
+        ConversionContext context = ConversionContext.forCurrentThread();
+        DexPlan plan = planDex(parseClasses(classes, libraryJars, options), options, context);
+        checkIdLimits(plan, options);
+        context.writeDex(plan, channel, options);
+    }
 
-        writeClassData(writer, classFile, classDefSection, classFile.constantPool,
-                      stringSection, typeSection, protoSection, fieldSection, methodSection, mapBuilder);
+    /**
+     * Converts classes that are already Dalvik code into a single .dex file byte array.
+     */
+    public static byte[] convertDalvikClassesToDex(List<DalvikClass> classes, DexOptions options) throws Exception {
+        DexPlan plan = planDalvikDex(classes, options, ConversionContext.forCurrentThread());
+        checkIdLimits(plan, options);
+        HeapDexOutput output = new HeapDexOutput(plan.fileSize);
+        writeDex(plan, output, options);
+        return output.writer.buffer.array();
+    }
 
-        int mapListOffset = mapBuilder.write(writer);
-        writer.writeU4At(0x34, mapListOffset);
+    /**
+     * Converts classes that are already Dalvik code straight into a .dex file on disk,
+     * replacing it.
+     */
+    public static void convertDalvikClassesToDex(List<DalvikClass> classes, File dexFile,
+                                                 DexOptions options) throws Exception {
+        ConversionContext context = ConversionContext.forCurrentThread();
+        DexPlan plan = planDalvikDex(classes, options, context);
+        checkIdLimits(plan, options);
+        FileOutputStream fos = new FileOutputStream(dexFile);
+        try {
+            context.writeDex(plan, fos.getChannel(), options);
+        } finally {
+            fos.close();
+        }
+    }
 
-        finalizeFile(writer);
+    /**
+     * Converts every class in a jar or zip file into a single .dex file byte array.
+     */
+    public static byte[] convertJarToDex(File jar, DexOptions options) throws Exception {
+        DexPlan plan = planDex(parseClasses(Collections.<byte[]>emptyList(), Collections.singletonList(jar), options),
+                               options, ConversionContext.forCurrentThread());
+        checkIdLimits(plan, options);
+        HeapDexOutput output = new HeapDexOutput(plan.fileSize);
+        writeDex(plan, output, options);
+        return output.writer.buffer.array();
+    }
 
-        byte[] result = new byte[writer.getPosition()];
-        writer.buffer.position(0);
-        writer.buffer.get(result);
-        return result;
+    /**
+     * Converts .class files and library jars into classes.dex, classes2.dex, ... in
+     * an output directory, splitting whenever a shard would pass the ID limit. The
+     * main dex classes (see DexOptions.mainDexClasses) and the input classes they
+     * reference directly stay in classes.dex. Shards are planned and written in
+     * parallel.
+     */
+    public static List<File> convertClassesToMultiDex(List<byte[]> classes, List<File> libraryJars,
+                                                      File outputDir, DexOptions options) throws Exception {
+        List<ClassFile> classFiles = parseClasses(classes, libraryJars, options);
+        Set<String> mainDexClasses = options.mainDexClasses;
+        if (mainDexClasses == null) {
+            mainDexClasses = classes.isEmpty() ? Collections.<String>emptySet() : Collections.singleton(
+                classDescriptor(classFiles.get(0).constantPool, classFiles.get(0).identity.thisClassIndex));
+        }
+        List<List<ClassFile>> shards = shardClasses(classFiles, mainDexClasses, options.maxIdsPerDex);
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(shards.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            List<File> dexFiles = new ArrayList<>(shards.size());
+            List<Future<?>> written = new ArrayList<>(shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                List<ClassFile> shard = shards.get(i);
+                File dexFile = new File(outputDir, i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex");
+                dexFiles.add(dexFile);
+                written.add(executor.submit(() -> {
+                    ConversionContext context = ConversionContext.forCurrentThread();
+                    DexPlan plan = planDex(shard, options, context);
+                    checkIdLimits(plan, options);
+                    FileOutputStream fos = new FileOutputStream(dexFile);
+                    try {
+                        context.writeDex(plan, fos.getChannel(), options);
+                    } finally {
+                        fos.close();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : written) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw (cause instanceof Exception) ? (Exception) cause : e;
+                }
+            }
+            return dexFiles;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // =========================================================================
+    // CONVERSION CONTEXT
+    // =========================================================================
+
+    /**
+     * Scratch state for converting classes on one thread: the ID collectors' sets,
+     * the translator's instruction buffer, PC map, branch fixups and stack tracker,
+     * the stream output's section arena and the digest. Everything is cleared
+     * rather than reallocated, so a worker converting many classes settles into
+     * reusing the same buffers. A context must not be shared between threads.
+     */
+    public static final class ConversionContext {
+        private static final int OUTPUT_ARENA_SIZE = 512 * 1024;
+        private static final ThreadLocal<ConversionContext> CURRENT =
+            ThreadLocal.withInitial(ConversionContext::new);
+
+        // ID collection
+        final Set<String> strings = new HashSet<>();
+        final List<String> newStrings = new ArrayList<>();
+        final boolean[] usedFramework = new boolean[FrameworkDictionary.STRINGS.length];
+        final Set<String> typeNames = new HashSet<>();
+        boolean[] isType = new boolean[0];
+        final Set<MethodDescriptor> protos = new HashSet<>();
+        final Map<MethodDescriptor, int[]> protoSortKeys = new HashMap<>();
+        final Set<DexFieldId> fields = new TreeSet<>();
+        final Set<DexMethodId> methods = new TreeSet<>();
+
+        // Method translation
+        final InsnBuffer insns = new InsnBuffer();
+        final List<BranchFixup> fixups = new ArrayList<>();
+        final StackTracker stack = new StackTracker(0, 0, 0);
+        int[] javaPcToDalvikPc = new int[0];
+        boolean[] handlerStarts = new boolean[0];
+
+        // Statistics for the conversion in progress, or null
+        DexConversionStats stats;
+        String currentClass;
+
+        // Output
+        private ByteBuffer outputArena;
+        private ByteBuffer directOutputArena;
+        private DexDigest signedDigest;
+        private DexDigest unsignedDigest;
+
+        /** Returns this thread's context, creating it on first use. */
+        public static ConversionContext forCurrentThread() {
+            return CURRENT.get();
+        }
+
+        /** Clears all scratch state; called at the start of every conversion. */
+        public void reset() {
+            strings.clear();
+            newStrings.clear();
+            Arrays.fill(usedFramework, false);
+            typeNames.clear();
+            protos.clear();
+            protoSortKeys.clear();
+            fields.clear();
+            methods.clear();
+            insns.clear();
+            fixups.clear();
+        }
+
+        /** Converts a .class file byte array to a .dex file byte array. */
+        public byte[] convertClassToDex(byte[] classData, DexOptions options) throws Exception {
+            DexPlan plan = planDex(parseClassTimed(classData, options), options, this);
+            HeapDexOutput output = new HeapDexOutput(plan.fileSize);
+            output.digest = digest(options);
+            PureCodeDEXGenerator.writeDex(plan, output, options);
+            return output.writer.buffer.array();
+        }
+
+        /** Converts a .class file and streams the .dex to a file channel. */
+        public void convertClassToDex(byte[] classData, FileChannel channel, DexOptions options) throws Exception {
+            writeDex(planDex(parseClassTimed(classData, options), options, this), channel, options);
+        }
+
+        private static List<ClassFile> parseClassTimed(byte[] classData, DexOptions options) throws Exception {
+            long start = System.nanoTime();
+            ClassFile classFile = parseClassFile(classData);
+            if (options.stats != null) options.stats.addParseNanos(System.nanoTime() - start);
+            return Collections.singletonList(classFile);
+        }
+
+        /** Streams a planned .dex to a file channel through this context's section arena. */
+        public void writeDex(DexPlan plan, FileChannel channel, DexOptions options) throws Exception {
+            ByteBuffer arena;
+            if (options.offHeapOutput) {
+                if (directOutputArena == null) directOutputArena = ByteBuffer.allocateDirect(OUTPUT_ARENA_SIZE);
+                arena = directOutputArena;
+            } else {
+                if (outputArena == null) outputArena = ByteBuffer.allocate(OUTPUT_ARENA_SIZE);
+                arena = outputArena;
+            }
+            ChannelDexOutput output = new ChannelDexOutput(channel, arena);
+            output.digest = digest(options);
+            PureCodeDEXGenerator.writeDex(plan, output, options);
+        }
+
+        /** Returns the matching digest, reset for a new file. */
+        private DexDigest digest(DexOptions options) throws Exception {
+            DexDigest digest;
+            if (options.computeSignature) {
+                if (signedDigest == null) signedDigest = new DexDigest(true);
+                digest = signedDigest;
+            } else {
+                if (unsignedDigest == null) unsignedDigest = new DexDigest(false);
+                digest = unsignedDigest;
+            }
+            digest.reset();
+            return digest;
+        }
+
+        /** Returns a PC map of at least the given length with every entry set to -1. */
+        int[] javaPcToDalvikPc(int length) {
+            if (javaPcToDalvikPc.length < length) javaPcToDalvikPc = new int[Math.max(length, javaPcToDalvikPc.length * 2)];
+            Arrays.fill(javaPcToDalvikPc, 0, length, -1);
+            return javaPcToDalvikPc;
+        }
+
+        /** Returns a cleared handler-start table of at least the given length. */
+        boolean[] handlerStarts(int length) {
+            if (handlerStarts.length < length) handlerStarts = new boolean[Math.max(length, handlerStarts.length * 2)];
+            Arrays.fill(handlerStarts, 0, length, false);
+            return handlerStarts;
+        }
+
+        /** Returns a cleared type-marker table of at least the given length. */
+        boolean[] isType(int length) {
+            if (isType.length < length) isType = new boolean[Math.max(length, isType.length * 2)];
+            Arrays.fill(isType, 0, length, false);
+            return isType;
+        }
     }
 
     // =========================================================================
@@ -68,8 +336,15 @@ public class PureCodeDEXGenerator {
     final static int CONSTANT_Methodref = 10;
     final static int CONSTANT_InterfaceMethodref = 11;
     final static int CONSTANT_NameAndType = 12;
+    final static int CONSTANT_MethodHandle = 15;
+    final static int CONSTANT_MethodType = 16;
+    final static int CONSTANT_Dynamic = 17;
+    final static int CONSTANT_InvokeDynamic = 18;
+    final static int CONSTANT_Module = 19;
+    final static int CONSTANT_Package = 20;
 
     // --- .java Opcode Constants ---
+    final static int JAVA_ACONST_NULL = 0x01;
     final static int JAVA_ICONST_M1 = 0x02;
     final static int JAVA_ICONST_0 = 0x03;
     final static int JAVA_ICONST_1 = 0x04;
@@ -79,8 +354,13 @@ public class PureCodeDEXGenerator {
     final static int JAVA_ICONST_5 = 0x08;
     final static int JAVA_LCONST_0 = 0x09;
     final static int JAVA_LCONST_1 = 0x0a;
+    final static int JAVA_BIPUSH = 0x10;
+    final static int JAVA_SIPUSH = 0x11;
     final static int JAVA_LDC = 0x12;
+    final static int JAVA_LDC_W = 0x13;
     final static int JAVA_LDC2_W = 0x14;
+    final static int JAVA_ILOAD = 0x15;
+    final static int JAVA_ALOAD = 0x19;
     final static int JAVA_ILOAD_0 = 0x1a;
     final static int JAVA_ILOAD_1 = 0x1b;
     final static int JAVA_ILOAD_2 = 0x1c;
@@ -99,6 +379,8 @@ public class PureCodeDEXGenerator {
     final static int JAVA_ALOAD_3 = 0x2d;
     final static int JAVA_IALOAD = 0x2e;
     final static int JAVA_AALOAD = 0x32;
+    final static int JAVA_ISTORE = 0x36;
+    final static int JAVA_ASTORE = 0x3a;
     final static int JAVA_ISTORE_0 = 0x3b;
     final static int JAVA_ISTORE_1 = 0x3c;
     final static int JAVA_ISTORE_2 = 0x3d;
@@ -127,6 +409,7 @@ public class PureCodeDEXGenerator {
     final static int JAVA_IF_ICMPEQ = 0x9f;
     final static int JAVA_IF_ICMPNE = 0xa0;
     final static int JAVA_GOTO = 0xa7;
+    final static int JAVA_ATHROW = 0xbf;
     final static int JAVA_IRETURN = 0xac;
     final static int JAVA_LRETURN = 0xad;
     final static int JAVA_FRETURN = 0xae;
@@ -146,22 +429,116 @@ public class PureCodeDEXGenerator {
     final static int JAVA_ARRAYLENGTH = 0xbe;
     final static int JAVA_CHECKCAST = 0xc0;
     final static int JAVA_INSTANCEOF = 0xc1;
-    
+    final static int JAVA_IINC = 0x84;
+    final static int JAVA_TABLESWITCH = 0xaa;
+    final static int JAVA_LOOKUPSWITCH = 0xab;
+    final static int JAVA_WIDE = 0xc4;
+
+    /**
+     * Length in bytes of each fixed-size Java instruction, operands included.
+     * 0 marks tableswitch, lookupswitch and wide, whose length depends on the
+     * operands; see {@link #javaInstructionLength}. Reserved and undefined
+     * opcodes count as one byte.
+     */
+    private static final byte[] JAVA_INSTRUCTION_LENGTHS = new byte[256];
+    static {
+        Arrays.fill(JAVA_INSTRUCTION_LENGTHS, (byte) 1);
+        setJavaLength(0x10, 0x10, 2);  // bipush
+        setJavaLength(0x11, 0x11, 3);  // sipush
+        setJavaLength(0x12, 0x12, 2);  // ldc
+        setJavaLength(0x13, 0x14, 3);  // ldc_w, ldc2_w
+        setJavaLength(0x15, 0x19, 2);  // iload..aload
+        setJavaLength(0x36, 0x3a, 2);  // istore..astore
+        setJavaLength(0x84, 0x84, 3);  // iinc
+        setJavaLength(0x99, 0xa8, 3);  // if<cond>, if_<cmp>, goto, jsr
+        setJavaLength(0xa9, 0xa9, 2);  // ret
+        setJavaLength(0xaa, 0xab, 0);  // tableswitch, lookupswitch
+        setJavaLength(0xb2, 0xb8, 3);  // field access, invokevirtual..invokestatic
+        setJavaLength(0xb9, 0xba, 5);  // invokeinterface, invokedynamic
+        setJavaLength(0xbb, 0xbb, 3);  // new
+        setJavaLength(0xbc, 0xbc, 2);  // newarray
+        setJavaLength(0xbd, 0xbd, 3);  // anewarray
+        setJavaLength(0xc0, 0xc1, 3);  // checkcast, instanceof
+        setJavaLength(0xc4, 0xc4, 0);  // wide
+        setJavaLength(0xc5, 0xc5, 4);  // multianewarray
+        setJavaLength(0xc6, 0xc7, 3);  // ifnull, ifnonnull
+        setJavaLength(0xc8, 0xc9, 5);  // goto_w, jsr_w
+    }
+
+    private static void setJavaLength(int first, int last, int length) {
+        for (int op = first; op <= last; op++) JAVA_INSTRUCTION_LENGTHS[op] = (byte) length;
+    }
+
+    /**
+     * Returns the length of the Java instruction at {@code codeStart + pc}, including
+     * switch padding. {@code pc} is relative to the start of the method's code.
+     */
+    static int javaInstructionLength(byte[] code, int codeStart, int pc) {
+        int at = codeStart + pc;
+        int opcode = code[at] & 0xFF;
+        int length = JAVA_INSTRUCTION_LENGTHS[opcode];
+        if (length != 0) return length;
+        if (opcode == JAVA_WIDE) {
+            // wide iinc carries a two-byte index and a two-byte constant
+            return (code[at + 1] & 0xFF) == JAVA_IINC ? 6 : 4;
+        }
+        // Switch operands start at the next four-byte boundary of the method's code
+        int padding = 3 - (pc & 3);
+        int operands = at + 1 + padding;
+        if (opcode == JAVA_TABLESWITCH) {
+            int low = readJavaS4(code, operands + 4);
+            int high = readJavaS4(code, operands + 8);
+            return 1 + padding + 12 + (high - low + 1) * 4;
+        }
+        int pairs = readJavaS4(code, operands + 4);
+        return 1 + padding + 8 + pairs * 8;
+    }
+
+    /** Returns the array descriptor for a newarray atype operand, or null if it is not one. */
+    static String primitiveArrayDescriptor(int arrayType) {
+        switch (arrayType) {
+            case 4: return "[Z";   // T_BOOLEAN
+            case 5: return "[C";   // T_CHAR
+            case 6: return "[F";   // T_FLOAT
+            case 7: return "[D";   // T_DOUBLE
+            case 8: return "[B";   // T_BYTE
+            case 9: return "[S";   // T_SHORT
+            case 10: return "[I";  // T_INT
+            case 11: return "[J";  // T_LONG
+            default: return null;
+        }
+    }
+
+    private static int readJavaS4(byte[] code, int at) {
+        return ((code[at] & 0xFF) << 24) | ((code[at + 1] & 0xFF) << 16) |
+               ((code[at + 2] & 0xFF) << 8) | (code[at + 3] & 0xFF);
+    }
+
     // --- .dex Opcode Constants ---
     final static int DALVIK_NOP = 0x00;
     final static int DALVIK_MOVE = 0x01;
     final static int DALVIK_MOVE_FROM16 = 0x02;
+    final static int DALVIK_MOVE_16 = 0x03;
     final static int DALVIK_MOVE_WIDE_FROM16 = 0x05;
+    final static int DALVIK_MOVE_WIDE_16 = 0x06;
     final static int DALVIK_MOVE_OBJECT = 0x07;
     final static int DALVIK_MOVE_OBJECT_FROM16 = 0x08;
+    final static int DALVIK_MOVE_OBJECT_16 = 0x09;
+    final static int DALVIK_MOVE_RESULT = 0x0a;
+    final static int DALVIK_MOVE_RESULT_WIDE = 0x0b;
+    final static int DALVIK_MOVE_RESULT_OBJECT = 0x0c;
+    final static int DALVIK_MOVE_EXCEPTION = 0x0d;
+    final static int DALVIK_THROW = 0x27;
     final static int DALVIK_RETURN_VOID = 0x0e;
     final static int DALVIK_RETURN = 0x0f;
     final static int DALVIK_RETURN_WIDE = 0x10;
     final static int DALVIK_RETURN_OBJECT = 0x11;
     final static int DALVIK_CONST_4 = 0x12;
     final static int DALVIK_CONST_16 = 0x13;
-    final static int DALVIK_CONST_WIDE_16 = 0x15;
+    final static int DALVIK_CONST = 0x14;
+    final static int DALVIK_CONST_WIDE_16 = 0x16;
     final static int DALVIK_CONST_STRING = 0x1a;
+    final static int DALVIK_CONST_STRING_JUMBO = 0x1b;
     final static int DALVIK_CHECK_CAST = 0x1f;
     final static int DALVIK_INSTANCE_OF = 0x20;
     final static int DALVIK_ARRAY_LENGTH = 0x21;
@@ -177,16 +554,20 @@ public class PureCodeDEXGenerator {
     final static int DALVIK_APUT = 0x4b;
     final static int DALVIK_APUT_OBJECT = 0x4d;
     final static int DALVIK_IGET = 0x52;
+    final static int DALVIK_IGET_WIDE = 0x53;
     final static int DALVIK_IGET_OBJECT = 0x54;
-    final static int DALVIK_IPUT = 0x5e;
-    final static int DALVIK_IPUT_OBJECT = 0x60;
+    final static int DALVIK_IPUT = 0x59;
+    final static int DALVIK_IPUT_WIDE = 0x5a;
+    final static int DALVIK_IPUT_OBJECT = 0x5b;
     final static int DALVIK_SGET = 0x60;
+    final static int DALVIK_SGET_WIDE = 0x61;
     final static int DALVIK_SGET_OBJECT = 0x62;
     final static int DALVIK_SPUT = 0x67;
+    final static int DALVIK_SPUT_WIDE = 0x68;
     final static int DALVIK_SPUT_OBJECT = 0x69;
-    final static int DALVIK_INVOKE_DIRECT = 0x6e;
-    final static int DALVIK_INVOKE_DIRECT_RANGE = 0x74;
-    final static int DALVIK_INVOKE_VIRTUAL_RANGE = 0x75;
+    final static int DALVIK_INVOKE_DIRECT = 0x70;
+    final static int DALVIK_INVOKE_DIRECT_RANGE = 0x76;
+    final static int DALVIK_INVOKE_VIRTUAL_RANGE = 0x74;
     final static int DALVIK_INVOKE_STATIC_RANGE = 0x77;
     final static int DALVIK_INVOKE_INTERFACE_RANGE = 0x78;
     final static int DALVIK_ADD_INT = 0x90;
@@ -257,87 +638,88 @@ public class PureCodeDEXGenerator {
         int majorVersion;
     }
 
-    /** Base class for all constant pool entries. */
-    static class CpInfo {
-        int tag;
-        public CpInfo(int tag) { this.tag = tag; }
-    }
-
-    /** Stores a UTF-8 string (tag 1). */
-    static class ConstantUtf8Info extends CpInfo {
-        String value;
-        public ConstantUtf8Info(String value) {
-            super(CONSTANT_Utf8);
-            this.value = value;
+    /**
+     * The constant pool as parallel arrays over the class file bytes: one tag,
+     * payload offset and pair of u2 operands per slot, and no object per entry.
+     * Utf8 entries are decoded the first time they are asked for and cached.
+     * Unused slots (index 0 and the upper half of a long or double) have tag 0.
+     */
+    static final class ConstantPool {
+        final byte[] data;
+        final int[] tags;
+        final int[] offsets;    // Offset of each entry's payload, just past its tag
+        final int[] operands1;  // Class name, String utf8, Ref class, NameAndType name
+        final int[] operands2;  // Ref name_and_type, NameAndType descriptor
+        private final String[] utf8Cache;
+
+        ConstantPool(byte[] data, int count) {
+            this.data = data;
+            this.tags = new int[count];
+            this.offsets = new int[count];
+            this.operands1 = new int[count];
+            this.operands2 = new int[count];
+            this.utf8Cache = new String[count];
         }
-    }
 
-    /** Stores a reference to a class (tag 7). */
-    static class ConstantClassInfo extends CpInfo {
-        int nameIndex;
-        public ConstantClassInfo(int nameIndex) {
-            super(CONSTANT_Class);
-            this.nameIndex = nameIndex;
-        }
-    }
+        int size() { return tags.length; }
+        int tag(int index) { return tags[index]; }
 
-    /** Stores a reference to a string literal (tag 8). */
-    static class ConstantStringInfo extends CpInfo {
-        int stringIndex;
-        public ConstantStringInfo(int stringIndex) {
-            super(CONSTANT_String);
-            this.stringIndex = stringIndex;
-        }
-    }
-    
-    /** Stores an integer (tag 3). */
-    static class ConstantIntegerInfo extends CpInfo {
-        int value;
-        public ConstantIntegerInfo(int value) {
-            super(CONSTANT_Integer);
-            this.value = value;
+        /** Returns the value of a Utf8 entry, decoding it on first use. */
+        String utf8(int index) {
+            String value = utf8Cache[index];
+            if (value == null) {
+                value = decodeUtf8(index);
+                utf8Cache[index] = value;
+            }
+            return value;
         }
-    }
 
-    /** Stores a float (tag 4). */
-    static class ConstantFloatInfo extends CpInfo {
-        float value;
-        public ConstantFloatInfo(float value) {
-            super(CONSTANT_Float);
-            this.value = value;
+        /**
+         * Decodes a Utf8 entry's modified UTF-8: NUL is C0 80 and a supplementary
+         * character is two three-byte surrogates, neither of which is valid UTF-8.
+         */
+        private String decodeUtf8(int index) {
+            int offset = offsets[index] + 2;
+            int end = offset + (((data[offset - 2] & 0xFF) << 8) | (data[offset - 1] & 0xFF));
+            char[] chars = new char[end - offset];
+            int count = 0;
+            while (offset < end) {
+                int b = data[offset++] & 0xFF;
+                if ((b & 0x80) == 0) {
+                    chars[count++] = (char) b;
+                } else if ((b & 0xE0) == 0xC0 && offset < end) {
+                    chars[count++] = (char) (((b & 0x1F) << 6) | (data[offset++] & 0x3F));
+                } else if ((b & 0xF0) == 0xE0 && offset + 1 < end) {
+                    int b2 = data[offset++] & 0xFF;
+                    int b3 = data[offset++] & 0xFF;
+                    chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                } else {
+                    throw new IllegalArgumentException("Bad modified UTF-8 in constant " + index);
+                }
+            }
+            return new String(chars, 0, count);
         }
-    }
 
-    /** Stores a Long or Double (tag 5 or 6). */
-    static class ConstantLargeNumericInfo extends CpInfo {
-        long highBytes;
-        long lowBytes;
-        public ConstantLargeNumericInfo(int tag, long high, long low) {
-            super(tag);
-            this.highBytes = high;
-            this.lowBytes = low;
+        /** Returns the bytes of an Integer or the bits of a Float entry. */
+        int intValue(int index) {
+            int offset = offsets[index];
+            return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                 | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
         }
-    }
 
-    /** Stores Fieldref, Methodref, or InterfaceMethodref (tags 9, 10, 11). */
-    static class ConstantRefInfo extends CpInfo {
-        int classIndex;
-        int nameAndTypeIndex;
-        public ConstantRefInfo(int tag, int classIndex, int nameAndTypeIndex) {
-            super(tag);
-            this.classIndex = classIndex;
-            this.nameAndTypeIndex = nameAndTypeIndex;
+        int classNameIndex(int index) { return operands1[index]; }
+        int stringIndex(int index) { return operands1[index]; }
+        int refClassIndex(int index) { return operands1[index]; }
+        int refNameAndTypeIndex(int index) { return operands2[index]; }
+
+        /** Returns the member name of a Fieldref, Methodref or InterfaceMethodref. */
+        String refName(int index) {
+            return utf8(operands1[operands2[index]]);
         }
-    }
 
-    /** Stores a name and type descriptor (tag 12). */
-    static class ConstantNameAndTypeInfo extends CpInfo {
-        int nameIndex;
-        int descriptorIndex;
-        public ConstantNameAndTypeInfo(int nameIndex, int descriptorIndex) {
-            super(CONSTANT_NameAndType);
-            this.nameIndex = nameIndex;
-            this.descriptorIndex = descriptorIndex;
+        /** Returns the type descriptor of a Fieldref, Methodref or InterfaceMethodref. */
+        String refDescriptor(int index) {
+            return utf8(operands2[operands2[index]]);
         }
     }
     
@@ -425,7 +807,7 @@ public class PureCodeDEXGenerator {
     /** A container class that holds all parsed .class file info. */
     static class ClassFile {
         ClassHeader header;
-        CpInfo[] constantPool;
+        ConstantPool constantPool;
         ClassIdentity identity;
         int[] interfaces;
         FieldInfo[] fields;
@@ -441,14 +823,26 @@ public class PureCodeDEXGenerator {
      */
     static class ByteWriter {
         ByteBuffer buffer;
+        int baseOffset; // File offset of the first byte in the buffer
         
         public ByteWriter(int initialCapacity) {
-            buffer = ByteBuffer.allocate(initialCapacity);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this(initialCapacity, 0);
+        }
+
+        public ByteWriter(int initialCapacity, int baseOffset) {
+            this(ByteBuffer.allocate(initialCapacity), baseOffset);
+        }
+
+        /** Writes into an existing buffer, e.g. a slice of a reused arena. */
+        public ByteWriter(ByteBuffer buffer, int baseOffset) {
+            this.buffer = buffer;
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.baseOffset = baseOffset;
         }
         
+        /** Returns the current position as a file offset. */
         public int getPosition() {
-            return buffer.position();
+            return baseOffset + buffer.position();
         }
         
         public void writeU1(int value) {
@@ -469,7 +863,7 @@ public class PureCodeDEXGenerator {
         
         public void writeU4At(int offset, int value) {
             int oldPosition = buffer.position();
-            buffer.position(offset);
+            buffer.position(offset - baseOffset);
             buffer.putInt(value);
             buffer.position(oldPosition);
         }
@@ -501,6 +895,59 @@ public class PureCodeDEXGenerator {
             }
         }
         
+        /** Returns the number of bytes writeUleb128 would emit for a value. */
+        public static int uleb128Size(int value) {
+            int size = 1;
+            while ((value >>>= 7) != 0) size++;
+            return size;
+        }
+
+        /** Returns the number of bytes writeSleb128 would emit for a value. */
+        public static int sleb128Size(int value) {
+            int size = 1;
+            int remaining = value >> 7;
+            int end = ((value & 0x80000000) == 0) ? 0 : -1;
+            while (remaining != end || ((remaining & 1) != ((value >> 6) & 1))) {
+                value = remaining;
+                remaining >>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        /** Writes a string_data_item: UTF-16 length, MUTF-8 bytes and a null terminator. */
+        public void writeMutf8(String s) {
+            int length = s.length();
+            writeUleb128(length);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c != 0 && c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else {
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+            buffer.put((byte) 0);
+        }
+
+        /** Returns the number of bytes writeMutf8 would emit for a string. */
+        public static int mutf8Size(String s) {
+            int length = s.length();
+            int size = uleb128Size(length) + 1;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c != 0 && c < 0x80) size += 1;
+                else if (c < 0x800) size += 2;
+                else size += 3;
+            }
+            return size;
+        }
+
         /** Aligns the writer's position to a 4-byte boundary. */
         public int alignTo4() {
             int currentPosition = getPosition();
@@ -532,11 +979,295 @@ public class PureCodeDEXGenerator {
         public static final byte[] NO_SIGNATURE = new byte[20];
     }
     
-    /** Container for the result of writing the string section. */
+    /** Options controlling how a .dex file is produced. */
+    public static class DexOptions {
+        /**
+         * Whether to compute the SHA-1 signature. A dex that only feeds a local
+         * cache can skip it; the header then carries an all-zero signature.
+         */
+        public boolean computeSignature = true;
+
+        /**
+         * Most method, field or type IDs one dex may hold; instructions index them
+         * with 16 bits. Multidex output starts a new shard before this is exceeded.
+         */
+        public int maxIdsPerDex = 65536;
+
+        /**
+         * Descriptors of the entry classes multidex output roots classes.dex at,
+         * e.g. "Lcom/example/MainActivity;". They and the input classes they
+         * reference directly form the main dex; everything else may go into
+         * classes2.dex and later shards. When null, the first given class is the
+         * only root.
+         */
+        public Set<String> mainDexClasses;
+
+        /**
+         * Methods and classes used at startup. When set, their string_data and
+         * code_items are laid out as one contiguous run and their class_data
+         * first in its section.
+         */
+        public StartupProfile startupProfile;
+
+        /**
+         * When set, every conversion made with these options adds its timings,
+         * section sizes and opcode counts to it.
+         */
+        public DexConversionStats stats;
+
+        /**
+         * Whether output streamed to a file goes through direct buffers, so the
+         * dex bytes never sit in the Java heap. Conversions that return a
+         * byte[] are unaffected.
+         */
+        public boolean offHeapOutput;
+    }
+
+    /**
+     * What a conversion did and what it cost: nanoseconds per phase, bytes per
+     * dex section, how often each Java opcode was met and every opcode that
+     * was skipped. Conversions that share one instance, such as multidex
+     * shards, are merged into it.
+     */
+    public static class DexConversionStats {
+        public long parseNanos;
+        public long idSectionsNanos;
+        public long translateNanos;
+        public long finalizeNanos;      // Layout and write
+        public int classCount;
+        public int methodCount;
+        public int methodsWithSkippedOpcodes;
+        public long dexBytes;
+        public final Map<String, Long> sectionBytes = new LinkedHashMap<>();
+        public final int[] opcodeCounts = new int[256];
+        public final List<String> skippedOpcodes = new ArrayList<>();
+
+        /** Records an opcode the translator could not handle. */
+        void skipped(String method, int pc, String opcode) {
+            skippedOpcodes.add(method + " @" + pc + ": " + opcode);
+        }
+
+        /** Records the size of every section of a planned file; padding counts toward the section before it. */
+        void recordSections(DexPlan plan) {
+            addSection("header", DexHeader.HEADER_SIZE);
+            addSection("string_ids", plan.stringSection.stringIdsSize * 4);
+            addSection("type_ids", plan.typeSection.typeIdsSize * 4);
+            addSection("proto_ids", plan.protoSection.protoIdsSize * 12);
+            addSection("field_ids", plan.fieldSection.fieldIdsSize * 8);
+            addSection("method_ids", plan.methodSection.methodIdsSize * 8);
+            addSection("class_defs", plan.classDefs.size() * 32);
+            addSection("type_lists", plan.stringSection.stringDataOff - plan.dataOff);
+            addSection("string_data", plan.codeItemsOff - plan.stringSection.stringDataOff);
+            addSection("code_items", plan.classDataOff - plan.codeItemsOff);
+            addSection("class_data", plan.mapOff - plan.classDataOff);
+            addSection("map_list", plan.fileSize - plan.mapOff);
+            dexBytes += plan.fileSize;
+        }
+
+        private void addSection(String name, long bytes) {
+            Long previous = sectionBytes.get(name);
+            sectionBytes.put(name, (previous != null ? previous : 0) + bytes);
+        }
+
+        synchronized void addParseNanos(long nanos) {
+            parseNanos += nanos;
+        }
+
+        /** Adds another conversion's numbers to these. */
+        public synchronized void merge(DexConversionStats other) {
+            parseNanos += other.parseNanos;
+            idSectionsNanos += other.idSectionsNanos;
+            translateNanos += other.translateNanos;
+            finalizeNanos += other.finalizeNanos;
+            classCount += other.classCount;
+            methodCount += other.methodCount;
+            methodsWithSkippedOpcodes += other.methodsWithSkippedOpcodes;
+            dexBytes += other.dexBytes;
+            for (Map.Entry<String, Long> entry : other.sectionBytes.entrySet()) {
+                addSection(entry.getKey(), entry.getValue());
+            }
+            for (int op = 0; op < opcodeCounts.length; op++) opcodeCounts[op] += other.opcodeCounts[op];
+            skippedOpcodes.addAll(other.skippedOpcodes);
+        }
+
+        /** A multi-line report for build logs. */
+        public synchronized String summary() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(classCount).append(" classes, ").append(methodCount).append(" methods -> ")
+              .append(dexBytes).append(" dex bytes\n");
+            sb.append("Time: parse ").append(parseNanos / 1000).append("us, ids ")
+              .append(idSectionsNanos / 1000).append("us, translate ").append(translateNanos / 1000)
+              .append("us, finalize ").append(finalizeNanos / 1000).append("us\n");
+            sb.append("Sections:");
+            for (Map.Entry<String, Long> entry : sectionBytes.entrySet()) {
+                if (entry.getValue() > 0) sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+            }
+            sb.append('\n');
+            int seen = 0;
+            for (int count : opcodeCounts) seen += count;
+            sb.append("Opcodes: ").append(seen - skippedOpcodes.size()).append(" translated, ")
+              .append(skippedOpcodes.size()).append(" skipped in ").append(methodsWithSkippedOpcodes)
+              .append(" method(s)\n");
+            for (String skipped : skippedOpcodes) sb.append("  skipped ").append(skipped).append('\n');
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The classes and methods an app uses during startup, in ART's text profile
+     * format: "Lcom/example/Main;" names a class and
+     * "Lcom/example/Main;->onCreate(Landroid/os/Bundle;)V" a method. Leading
+     * H/S/P flags and '#' comments are ignored; a method without a descriptor
+     * matches every overload.
+     */
+    public static class StartupProfile {
+        private final Set<String> classes = new HashSet<>();
+        private final Set<String> methods = new HashSet<>();
+
+        /** Reads a profile with one rule per line. */
+        public static StartupProfile read(File file) throws IOException {
+            StartupProfile profile = new StartupProfile();
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) profile.addRule(line);
+            } finally {
+                reader.close();
+            }
+            return profile;
+        }
+
+        /** Adds one profile line; blank lines and comments are skipped. */
+        public void addRule(String line) {
+            String rule = line.trim();
+            int start = 0;
+            while (start < rule.length() && "HSP".indexOf(rule.charAt(start)) >= 0) start++;
+            rule = rule.substring(start);
+            if (rule.isEmpty() || rule.startsWith("#")) return;
+            int arrow = rule.indexOf("->");
+            if (arrow == -1) {
+                classes.add(rule);
+            } else {
+                int paren = rule.indexOf('(', arrow);
+                addMethod(rule.substring(0, arrow),
+                          rule.substring(arrow + 2, paren == -1 ? rule.length() : paren),
+                          paren == -1 ? null : rule.substring(paren));
+            }
+        }
+
+        public void addClass(String classDescriptor) {
+            classes.add(classDescriptor);
+        }
+
+        /** Adds a method; a null descriptor matches every overload of the name. */
+        public void addMethod(String classDescriptor, String name, String descriptor) {
+            methods.add(classDescriptor + "->" + name + (descriptor != null ? descriptor : ""));
+        }
+
+        /** Adds every rule of another profile. */
+        public void addAll(StartupProfile other) {
+            classes.addAll(other.classes);
+            methods.addAll(other.methods);
+        }
+
+        public boolean isEmpty() {
+            return classes.isEmpty() && methods.isEmpty();
+        }
+
+        boolean containsClass(String classDescriptor) {
+            return classes.contains(classDescriptor);
+        }
+
+        boolean containsMethod(String classDescriptor, String name, String descriptor) {
+            String key = classDescriptor + "->" + name;
+            return methods.contains(key) || methods.contains(key + descriptor);
+        }
+    }
+
+    /**
+     * Computes the header checksum and signature in a single forward pass.
+     * Bytes from offset 32 onwards are fed in file order; the SHA-1 and the
+     * Adler32 of that body are updated from the same chunk, and the Adler32
+     * of the signature is folded in at the end, so the output is scanned once.
+     */
+    static class DexDigest {
+        private static final int ADLER_BASE = 65521;
+
+        private final MessageDigest sha1;
+        private final Adler32 bodyAdler = new Adler32();
+        private long bodyLength;
+
+        public DexDigest(boolean computeSignature) throws Exception {
+            this.sha1 = computeSignature ? MessageDigest.getInstance("SHA-1") : null;
+        }
+
+        /** Whether this digest computes a SHA-1 signature. */
+        public boolean computesSignature() {
+            return sha1 != null;
+        }
+
+        /** Discards everything fed so far, so the digest can start another file. */
+        public void reset() {
+            if (sha1 != null) sha1.reset();
+            bodyAdler.reset();
+            bodyLength = 0;
+        }
+
+        /** Feeds the next bytes of the file, starting at offset 32. */
+        public void update(byte[] data, int offset, int length) {
+            if (sha1 != null) sha1.update(data, offset, length);
+            bodyAdler.update(data, offset, length);
+            bodyLength += length;
+        }
+
+        /** Feeds the next bytes of the file from a buffer, consuming them. */
+        public void update(ByteBuffer data) {
+            int length = data.remaining();
+            if (sha1 != null) {
+                sha1.update(data.duplicate());
+            }
+            bodyAdler.update(data);
+            bodyLength += length;
+        }
+
+        /** Returns the 20-byte signature, or NO_SIGNATURE if signing is disabled. */
+        public byte[] signature() {
+            return (sha1 != null) ? sha1.digest() : DexHeader.NO_SIGNATURE;
+        }
+
+        /** Returns the Adler32 checksum over the signature followed by the body. */
+        public int checksum(byte[] signature) {
+            Adler32 signatureAdler = new Adler32();
+            signatureAdler.update(signature, 0, signature.length);
+            return (int) combineAdler32(signatureAdler.getValue(), bodyAdler.getValue(), bodyLength);
+        }
+
+        /** Combines two Adler32 values as if their inputs had been concatenated (zlib's adler32_combine). */
+        static long combineAdler32(long adler1, long adler2, long length2) {
+            long rem = length2 % ADLER_BASE;
+            long sum1 = adler1 & 0xFFFF;
+            long sum2 = (rem * sum1) % ADLER_BASE;
+            sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+            sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - rem;
+            if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+            if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+            if (sum2 >= ((long) ADLER_BASE << 1)) sum2 -= ((long) ADLER_BASE << 1);
+            if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+            return sum1 | (sum2 << 16);
+        }
+    }
+
+    /** Container for the collected string section. */
     static class StringSection {
         Map<String, Integer> stringIdMap;
         int stringIdsSize;
         int stringIdsOff;
+        List<String> strings;      // In string ID order
+        byte[][] encoded;          // Pre-encoded string_data_item, or null to encode on write
+        int[] stringDataOffsets;
+        int stringDataOff;
+        int[] dataOrder;           // string_data layout order by string ID, or null for ID order
 
         public StringSection(Map<String, Integer> map, int size, int offset) {
             this.stringIdMap = map;
@@ -545,11 +1276,12 @@ public class PureCodeDEXGenerator {
         }
     }
     
-    /** Container for the result of writing the type section. */
+    /** Container for the collected type section. */
     static class TypeSection {
         Map<String, Integer> typeIdMap;
         int typeIdsSize;
         int typeIdsOff;
+        int[] typeStringIds;       // descriptor_idx of each type ID
 
         public TypeSection(Map<String, Integer> map, int size, int offset) {
             this.typeIdMap = map;
@@ -558,14 +1290,37 @@ public class PureCodeDEXGenerator {
         }
     }
     
-    /** A simple class to hold a parsed method descriptor. */
+    /**
+     * A parsed method descriptor. Instances are canonical (see DescriptorTable),
+     * so the shorty and argument register width are computed only once.
+     */
     static class MethodDescriptor {
         String returnType;
         List<String> parameters;
+        String shorty;
+        int parameterWords; // Argument registers, counting long/double as two
 
         public MethodDescriptor(String ret, List<String> params) {
             this.returnType = ret;
             this.parameters = params;
+            StringBuilder shortyBuilder = new StringBuilder(params.size() + 1);
+            shortyBuilder.append(shortyChar(ret));
+            int words = 0;
+            for (String param : params) {
+                shortyBuilder.append(shortyChar(param));
+                words += isWide(param) ? 2 : 1;
+            }
+            this.shorty = shortyBuilder.toString();
+            this.parameterWords = words;
+        }
+
+        private static char shortyChar(String type) {
+            return type.charAt(0) == '[' ? 'L' : type.charAt(0);
+        }
+
+        static boolean isWide(String type) {
+            char c = type.charAt(0);
+            return c == 'J' || c == 'D';
         }
         
         @Override
@@ -581,19 +1336,178 @@ public class PureCodeDEXGenerator {
         public int hashCode() {
             return 31 * returnType.hashCode() + parameters.hashCode();
         }
+
+        /** Returns the JVM descriptor, e.g. "(ILjava/lang/String;)V". */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (String param : parameters) sb.append(param);
+            return sb.append(')').append(returnType).toString();
+        }
     }
     
-    /** Container for the result of writing the proto section. */
+    /**
+     * Process-wide table of canonical descriptors. The first lookup of a method
+     * descriptor or class name parses it; every later lookup is one hash hit
+     * with no allocation. Dex type IDs are per file, so the table holds the
+     * parameter descriptors that proto type_lists are resolved from.
+     */
+    static final class DescriptorTable {
+        private static final ConcurrentHashMap<String, MethodDescriptor> METHODS = new ConcurrentHashMap<>();
+        private static final ConcurrentHashMap<String, String> CLASSES = new ConcurrentHashMap<>();
+
+        private DescriptorTable() {}
+
+        /** Returns the canonical MethodDescriptor for a descriptor string. */
+        static MethodDescriptor method(String descriptor) {
+            MethodDescriptor desc = METHODS.get(descriptor);
+            if (desc == null) {
+                desc = parseUncached(descriptor);
+                MethodDescriptor existing = METHODS.putIfAbsent(descriptor, desc);
+                if (existing != null) desc = existing;
+            }
+            return desc;
+        }
+
+        /**
+         * Returns the type descriptor for a CONSTANT_Class name: "java/lang/Object"
+         * becomes "Ljava/lang/Object;", array names are already descriptors.
+         */
+        static String classDescriptor(String internalName) {
+            if (internalName.charAt(0) == '[') return internalName;
+            String descriptor = CLASSES.get(internalName);
+            if (descriptor == null) {
+                descriptor = "L" + internalName + ";";
+                String existing = CLASSES.putIfAbsent(internalName, descriptor);
+                if (existing != null) descriptor = existing;
+            }
+            return descriptor;
+        }
+
+        private static MethodDescriptor parseUncached(String descriptor) {
+            List<String> parameters = new ArrayList<>();
+            int closeParen = descriptor.indexOf(')');
+            int index = 1;
+            while (index < closeParen) {
+                char c = descriptor.charAt(index);
+                int startIndex = index;
+                if (c == '[') {
+                    while (descriptor.charAt(index) == '[') index++;
+                    if (descriptor.charAt(index) == 'L') {
+                        index = descriptor.indexOf(';', index) + 1;
+                    } else {
+                        index++;
+                    }
+                } else if (c == 'L') {
+                    index = descriptor.indexOf(';', index) + 1;
+                } else {
+                    index++;
+                }
+                parameters.add(descriptor.substring(startIndex, index));
+            }
+            String returnType = descriptor.substring(closeParen + 1);
+            return new MethodDescriptor(returnType, Collections.unmodifiableList(parameters));
+        }
+    }
+
+    /**
+     * Framework strings and types referenced by nearly every generated class,
+     * kept in dex string order and encoded as string_data_items once per process.
+     */
+    static final class FrameworkDictionary {
+        /** Sorted by UTF-16 code units; keep new entries in order. */
+        static final String[] STRINGS = {
+            "<init>",
+            "F",
+            "I",
+            "LLLI",
+            "Landroid/app/Activity;",
+            "Landroid/content/Context;",
+            "Landroid/graphics/Typeface;",
+            "Landroid/os/Bundle;",
+            "Landroid/view/View$OnClickListener;",
+            "Landroid/view/View;",
+            "Landroid/view/ViewGroup$LayoutParams;",
+            "Landroid/widget/Button;",
+            "Landroid/widget/EditText;",
+            "Landroid/widget/ImageView;",
+            "Landroid/widget/LinearLayout$LayoutParams;",
+            "Landroid/widget/LinearLayout;",
+            "Landroid/widget/ListView;",
+            "Landroid/widget/TextView;",
+            "Landroid/widget/Toast;",
+            "Ljava/lang/CharSequence;",
+            "Ljava/lang/Object;",
+            "Ljava/lang/String;",
+            "V",
+            "VF",
+            "VI",
+            "VII",
+            "VL",
+            "VLI",
+            "VLIL",
+            "Z",
+            "addView",
+            "makeText",
+            "onClick",
+            "onCreate",
+            "setContentView",
+            "setLayoutParams",
+            "setOnClickListener",
+            "setOrientation",
+            "setText",
+            "setTextSize",
+            "setTypeface",
+            "show"
+        };
+        static final byte[][] ENCODED = new byte[STRINGS.length][];
+        static final Map<String, Integer> INDEX = new HashMap<>();
+
+        static {
+            for (int i = 0; i < STRINGS.length; i++) {
+                // buildStringSection merges against this order, so a misplaced entry would unsort string_ids
+                if (i > 0 && STRINGS[i - 1].compareTo(STRINGS[i]) >= 0) {
+                    throw new IllegalStateException("FrameworkDictionary.STRINGS out of order at \"" +
+                                                    STRINGS[i] + "\"");
+                }
+                ByteWriter writer = new ByteWriter(ByteWriter.mutf8Size(STRINGS[i]));
+                writer.writeMutf8(STRINGS[i]);
+                ENCODED[i] = writer.buffer.array();
+                INDEX.put(STRINGS[i], i);
+            }
+        }
+
+        private FrameworkDictionary() {}
+    }
+
+    /** Container for the collected proto section and its parameter type_lists. */
     static class ProtoSection {
         Map<MethodDescriptor, Integer> protoIdMap;
         int protoIdsSize;
         int protoIdsOff;
+        int[] shortyStringIds;
+        int[] returnTypeIds;
+        int[] typeListIndex;       // Index into typeLists, or -1 for no parameters
+        List<List<Integer>> typeLists = new ArrayList<>(); // Shared by protos and class interfaces
+        Map<List<Integer>, Integer> typeListIndexMap = new HashMap<>();
+        int[] typeListOffsets;
 
         public ProtoSection(Map<MethodDescriptor, Integer> map, int size, int offset) {
             this.protoIdMap = map;
             this.protoIdsSize = size;
             this.protoIdsOff = offset;
         }
+
+        /** Returns the index of an identical type_list, adding it if it is new. */
+        int internTypeList(List<Integer> typeIds) {
+            Integer listIndex = typeListIndexMap.get(typeIds);
+            if (listIndex == null) {
+                listIndex = typeLists.size();
+                typeLists.add(typeIds);
+                typeListIndexMap.put(typeIds, listIndex);
+            }
+            return listIndex;
+        }
     }
     
     /** A helper class representing a Field ID. */
@@ -635,11 +1549,12 @@ public class PureCodeDEXGenerator {
         }
     }
     
-    /** Container for the result of writing the field section. */
+    /** Container for the collected field section. */
     static class FieldSection {
         Map<DexFieldId, Integer> fieldIdMap;
         int fieldIdsSize;
         int fieldIdsOff;
+        DexFieldId[] fieldIds;     // In field ID order
 
         public FieldSection(Map<DexFieldId, Integer> map, int size, int offset) {
             this.fieldIdMap = map;
@@ -687,11 +1602,12 @@ public class PureCodeDEXGenerator {
         }
     }
 
-    /** Container for the result of writing the method section. */
+    /** Container for the collected method section. */
     static class MethodSection {
         Map<DexMethodId, Integer> methodIdMap;
         int methodIdsSize;
         int methodIdsOff;
+        DexMethodId[] methodIds;   // In method ID order
 
         public MethodSection(Map<DexMethodId, Integer> map, int size, int offset) {
             this.methodIdMap = map;
@@ -705,19 +1621,12 @@ public class PureCodeDEXGenerator {
         int classIdx, accessFlags, superclassIdx;
         int interfacesOff, sourceFileIdx, annotationsOff;
         int classDataOff, staticValuesOff;
+        int interfacesListIndex = -1; // Index into the shared type_lists, or -1 for none
         
         public static final int NO_INDEX = 0xFFFFFFFF; // -1
         public static final int NO_OFFSET = 0;
     }
     
-    /** Container for the result of writing the class_def. */
-    static class ClassDefSection {
-        int classDefOffset;
-        public ClassDefSection(int offset) {
-            this.classDefOffset = offset;
-        }
-    }
-
     /** A helper class for an encoded field. */
     static class DexEncodedField {
         int fieldIdx;
@@ -733,6 +1642,7 @@ public class PureCodeDEXGenerator {
         int methodIdx;
         int accessFlags;
         int codeOff;
+        CodeItem code; // null for abstract and native methods
         public DexEncodedMethod(int index, int flags, int codeOffset) {
             this.methodIdx = index;
             this.accessFlags = flags;
@@ -750,6 +1660,9 @@ public class PureCodeDEXGenerator {
         int insnsSize;
         short[] insns; 
         int maxOuts = 0;
+        int offset;          // Assigned by the layout planner
+        int[] handlerOffsets; // handler_off of each handler list, assigned by the layout planner
+        List<Integer> stringIds; // Strings loaded by const-string, or null
         
         List<DalvikTryItem> tries = new ArrayList<>();
         List<DalvikHandlerList> handlerLists = new ArrayList<>();
@@ -760,16 +1673,26 @@ public class PureCodeDEXGenerator {
         int stackPointer;
         int registersSize;
         int insSize;
+        int stackSize;
         
-        public StackTracker(int registersSize, int insSize) {
+        /** Registers are laid out as [operand stack][non-parameter locals][parameters]. */
+        public StackTracker(int registersSize, int insSize, int stackSize) {
+            reset(registersSize, insSize, stackSize);
+        }
+
+        /** Re-targets the tracker at another method's register layout. */
+        public void reset(int registersSize, int insSize, int stackSize) {
             this.registersSize = registersSize;
             this.insSize = insSize;
+            this.stackSize = stackSize;
             this.stackPointer = 0;
         }
         
         public int getLocalRegister(int javaLocalIndex) {
-            int parameterBase = registersSize - insSize;
-            return parameterBase + javaLocalIndex;
+            if (javaLocalIndex < insSize) {
+                return registersSize - insSize + javaLocalIndex;
+            }
+            return stackSize + (javaLocalIndex - insSize);
         }
         
         public int push() {
@@ -803,6 +1726,37 @@ public class PureCodeDEXGenerator {
         }
     }
 
+    /** A growable array of code units, so translation doesn't box every instruction. */
+    static class InsnBuffer {
+        private short[] units = new short[256];
+        private int size;
+
+        public void add(short unit) {
+            if (size == units.length) units = Arrays.copyOf(units, size * 2);
+            units[size++] = unit;
+        }
+
+        public short get(int index) {
+            return units[index];
+        }
+
+        public void set(int index, short unit) {
+            units[index] = unit;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        public short[] toArray() {
+            return Arrays.copyOf(units, size);
+        }
+    }
+
     /** A container to return a field's ID and its type. */
     static class ResolvedField {
         int fieldId;
@@ -833,7 +1787,12 @@ public class PureCodeDEXGenerator {
             }
         }
         
-        public int write(ByteWriter writer) {
+        /** Returns the encoded size of the map_list. */
+        public int size() {
+            return 4 + items.size() * 12;
+        }
+        
+        public int write(ByteWriter writer) {
             writer.alignTo4();
             int mapListOffset = writer.getPosition();
             items.sort(Comparator.comparingInt(item -> item.offset));
@@ -870,13 +1829,16 @@ public class PureCodeDEXGenerator {
         }
     }
     
-    /** Represents a Dalvik try_item (8 bytes). */
+    /**
+     * Represents a Dalvik try_item (8 bytes). The handler is kept as an index into
+     * CodeItem.handlerLists; writeCodeItem resolves it to the handler_off byte offset.
+     */
     static class DalvikTryItem {
-        int startAddr, insnCount, handlerOff;
-        public DalvikTryItem(int start, int count, int offset) {
+        int startAddr, insnCount, handlerIndex;
+        public DalvikTryItem(int start, int count, int handlerIndex) {
             this.startAddr = start;
             this.insnCount = count;
-            this.handlerOff = offset;
+            this.handlerIndex = handlerIndex;
         }
     }
 
@@ -913,6 +1875,182 @@ public class PureCodeDEXGenerator {
     }
 
 
+    /** The encoded fields and methods of a class_data_item. */
+    static class ClassDataItem {
+        List<DexEncodedField> staticFields = new ArrayList<>();
+        List<DexEncodedField> instanceFields = new ArrayList<>();
+        List<DexEncodedMethod> directMethods = new ArrayList<>();
+        List<DexEncodedMethod> virtualMethods = new ArrayList<>();
+    }
+
+    /** A fully planned .dex file: every section's contents and final offset. */
+    static class DexPlan {
+        List<ClassFile> classFiles;          // In class_defs order
+        StringSection stringSection;
+        TypeSection typeSection;
+        ProtoSection protoSection;
+        FieldSection fieldSection;
+        MethodSection methodSection;
+        List<ClassDefItem> classDefs = new ArrayList<>();
+        List<ClassDataItem> classData = new ArrayList<>();
+        List<CodeItem> codeItems = new ArrayList<>();     // In layout order
+        int[] classDataOrder;                // class_data layout order by class_def index, or null
+        MapListBuilder mapBuilder = new MapListBuilder();
+        DexConversionStats stats;            // This file's share of DexOptions.stats, or null
+        int classDefsOff;
+        int dataOff;
+        int codeItemsOff;
+        int classDataOff;                    // Start of the first class_data_item
+        int mapOff;
+        int fileSize;
+    }
+
+    /**
+     * Destination for a planned .dex file. Sections arrive in file order and
+     * are digested as they complete; the header's checksum and signature are
+     * patched in last.
+     */
+    abstract static class DexOutput {
+        DexDigest digest;
+        private int digestedTo;
+
+        /** Returns a writer positioned at offset (zero-filling any gap) with room for size bytes. */
+        abstract ByteWriter beginSection(int offset, int size) throws IOException;
+
+        /** Writes the checksum and signature into the header at offsets 8 and 12. */
+        abstract void patchHeader(int checksum, byte[] signature) throws IOException;
+
+        /** Completes a section, feeding every byte from offset 32 onwards to the digest. */
+        void endSection(ByteWriter writer) throws IOException {
+            int from = Math.max(digestedTo, 32);
+            int to = writer.getPosition();
+            if (to > from) {
+                if (writer.buffer.hasArray()) {
+                    digest.update(writer.buffer.array(), writer.buffer.arrayOffset() + from - writer.baseOffset, to - from);
+                } else {
+                    ByteBuffer written = writer.buffer.duplicate();
+                    written.limit(to - writer.baseOffset).position(from - writer.baseOffset);
+                    digest.update(written);
+                }
+            }
+            digestedTo = to;
+        }
+
+        void finish() throws IOException {
+            byte[] signature = digest.signature();
+            patchHeader(digest.checksum(signature), signature);
+        }
+    }
+
+    /** Emits the .dex into a single heap buffer of exactly the planned size. */
+    static class HeapDexOutput extends DexOutput {
+        final ByteWriter writer;
+
+        HeapDexOutput(int fileSize) {
+            this.writer = new ByteWriter(fileSize);
+        }
+
+        @Override
+        ByteWriter beginSection(int offset, int size) {
+            while (writer.getPosition() < offset) writer.writeU1(0);
+            return writer;
+        }
+
+        @Override
+        void patchHeader(int checksum, byte[] signature) {
+            writer.writeU4At(8, checksum);
+            int oldPosition = writer.buffer.position();
+            writer.buffer.position(12);
+            writer.writeBytes(signature);
+            writer.buffer.position(oldPosition);
+        }
+    }
+
+    /**
+     * Streams the .dex to a FileChannel. Each section gets its own small buffer,
+     * and buffered sections go out together with a gathering write, so the file
+     * never has to exist as one contiguous heap array. Given an arena, section
+     * buffers are sliced out of it and the arena is recycled after each flush;
+     * with a direct arena the dex bytes never enter the Java heap at all.
+     */
+    static class ChannelDexOutput extends DexOutput {
+        private static final int FLUSH_THRESHOLD = 256 * 1024;
+
+        private final FileChannel channel;
+        private final ByteBuffer arena;
+        private final long basePosition;
+        private final List<ByteBuffer> pending = new ArrayList<>();
+        private long pendingBytes;
+        private int filePosition;
+
+        ChannelDexOutput(FileChannel channel) throws IOException {
+            this(channel, null);
+        }
+
+        ChannelDexOutput(FileChannel channel, ByteBuffer arena) throws IOException {
+            this.channel = channel;
+            this.arena = arena;
+            this.basePosition = channel.position();
+            if (arena != null) arena.clear();
+        }
+
+        @Override
+        ByteWriter beginSection(int offset, int size) throws IOException {
+            int capacity = offset - filePosition + size;
+            ByteWriter sectionWriter;
+            if (arena == null) {
+                sectionWriter = new ByteWriter(capacity, filePosition);
+            } else if (capacity > arena.capacity()) {
+                // Oversized sections get their own buffer of the arena's kind
+                ByteBuffer buffer = arena.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+                sectionWriter = new ByteWriter(buffer, filePosition);
+            } else {
+                if (capacity > arena.remaining()) {
+                    flush();
+                    arena.clear();
+                }
+                ByteBuffer slice = arena.slice();
+                slice.limit(capacity);
+                arena.position(arena.position() + capacity);
+                sectionWriter = new ByteWriter(slice, filePosition);
+            }
+            while (sectionWriter.getPosition() < offset) sectionWriter.writeU1(0);
+            return sectionWriter;
+        }
+
+        @Override
+        void endSection(ByteWriter sectionWriter) throws IOException {
+            super.endSection(sectionWriter);
+            filePosition = sectionWriter.getPosition();
+            ByteBuffer buffer = sectionWriter.buffer;
+            buffer.flip();
+            pending.add(buffer);
+            pendingBytes += buffer.remaining();
+            if (pendingBytes >= FLUSH_THRESHOLD) flush();
+        }
+
+        private void flush() throws IOException {
+            ByteBuffer[] buffers = pending.toArray(new ByteBuffer[0]);
+            while (pendingBytes > 0) {
+                pendingBytes -= channel.write(buffers);
+            }
+            pending.clear();
+        }
+
+        @Override
+        void patchHeader(int checksum, byte[] signature) throws IOException {
+            flush();
+            ByteBuffer patch = ByteBuffer.allocate(4 + signature.length).order(ByteOrder.LITTLE_ENDIAN);
+            patch.putInt(checksum);
+            patch.put(signature);
+            patch.flip();
+            while (patch.hasRemaining()) {
+                channel.write(patch, basePosition + 8 + patch.position());
+            }
+        }
+    }
+
+
     // =========================================================================
     // PARSER METHODS
     // =========================================================================
@@ -939,44 +2077,48 @@ public class PureCodeDEXGenerator {
     }
 
     /** Parses the constant pool from a .class file. */
-    public static CpInfo[] parseConstantPool(ByteReader reader) throws Exception {
+    public static ConstantPool parseConstantPool(ByteReader reader) throws Exception {
         int constantPoolCount = reader.readU2();
-        CpInfo[] constantPool = new CpInfo[constantPoolCount];
+        ConstantPool constantPool = new ConstantPool(reader.data, constantPoolCount);
         for (int i = 1; i < constantPoolCount; i++) {
             int tag = reader.readU1();
+            constantPool.tags[i] = tag;
+            constantPool.offsets[i] = reader.index;
             switch (tag) {
                 case CONSTANT_Utf8:
-                    int length = reader.readU2();
-                    byte[] bytes = reader.readBytes(length);
-                    String utf8String = new String(bytes, "UTF-8");
-                    constantPool[i] = new ConstantUtf8Info(utf8String);
+                    reader.index += 2 + reader.readU2();
                     break;
                 case CONSTANT_Integer:
-                    constantPool[i] = new ConstantIntegerInfo(reader.readU4());
-                    break;
                 case CONSTANT_Float:
-                    constantPool[i] = new ConstantFloatInfo(Float.intBitsToFloat(reader.readU4()));
+                    reader.index += 4;
                     break;
                 case CONSTANT_Long:
                 case CONSTANT_Double:
-                    long high = reader.readU4();
-                    long low = reader.readU4();
-                    constantPool[i] = new ConstantLargeNumericInfo(tag, high, low);
+                    reader.index += 8;
                     i++; // Longs and Doubles take two slots
                     break;
                 case CONSTANT_Class:
-                    constantPool[i] = new ConstantClassInfo(reader.readU2());
-                    break;
                 case CONSTANT_String:
-                    constantPool[i] = new ConstantStringInfo(reader.readU2());
+                    constantPool.operands1[i] = reader.readU2();
                     break;
                 case CONSTANT_Fieldref:
                 case CONSTANT_Methodref:
                 case CONSTANT_InterfaceMethodref:
-                    constantPool[i] = new ConstantRefInfo(tag, reader.readU2(), reader.readU2());
-                    break;
                 case CONSTANT_NameAndType:
-                    constantPool[i] = new ConstantNameAndTypeInfo(reader.readU2(), reader.readU2());
+                    constantPool.operands1[i] = reader.readU2();
+                    constantPool.operands2[i] = reader.readU2();
+                    break;
+                case CONSTANT_MethodHandle:
+                    reader.index += 3;
+                    break;
+                case CONSTANT_MethodType:
+                case CONSTANT_Module:
+                case CONSTANT_Package:
+                    reader.index += 2;
+                    break;
+                case CONSTANT_Dynamic:
+                case CONSTANT_InvokeDynamic:
+                    reader.index += 4;
                     break;
                 default:
                     throw new Exception("Unsupported constant pool tag: " + tag);
@@ -1062,16 +2204,90 @@ public class PureCodeDEXGenerator {
         return classFile;
     }
 
+    /**
+     * Parses .class files and the class entries of jar/zip files on a thread pool.
+     * Archives are streamed sequentially while earlier entries are already parsing;
+     * results keep input order (loose classes first, then each jar's entry order).
+     */
+    public static List<ClassFile> parseClasses(List<byte[]> classes, List<File> jars) throws Exception {
+        return parseClasses(classes, jars, new DexOptions());
+    }
+
+    /** Parses classes as above, adding the wall-clock parse time to the options' stats. */
+    static List<ClassFile> parseClasses(List<byte[]> classes, List<File> jars, DexOptions options) throws Exception {
+        long start = System.nanoTime();
+        List<ClassFile> classFiles = parseClassesInParallel(classes, jars);
+        if (options.stats != null) options.stats.addParseNanos(System.nanoTime() - start);
+        return classFiles;
+    }
+
+    private static List<ClassFile> parseClassesInParallel(List<byte[]> classes, List<File> jars) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<ClassFile>> parsed = new ArrayList<>();
+            for (byte[] classData : classes) {
+                parsed.add(executor.submit(() -> parseClassFile(classData)));
+            }
+            for (File jar : jars) {
+                ZipInputStream zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(jar)));
+                try {
+                    ZipEntry entry;
+                    while ((entry = zip.getNextEntry()) != null) {
+                        String name = entry.getName();
+                        // module-info and multi-release variants are not loadable classes
+                        if (entry.isDirectory() || !name.endsWith(".class") ||
+                            name.startsWith("META-INF/") || name.endsWith("module-info.class")) continue;
+                        byte[] classData = readZipEntry(zip, entry.getSize());
+                        parsed.add(executor.submit(() -> parseClassFile(classData)));
+                    }
+                } finally {
+                    zip.close();
+                }
+            }
+
+            List<ClassFile> classFiles = new ArrayList<>(parsed.size());
+            for (Future<ClassFile> future : parsed) {
+                try {
+                    classFiles.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw (cause instanceof Exception) ? (Exception) cause : e;
+                }
+            }
+            return classFiles;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Reads the current zip entry; streamed entries may not know their size up front. */
+    private static byte[] readZipEntry(InputStream in, long size) throws IOException {
+        if (size >= 0) {
+            byte[] data = new byte[(int) size];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) throw new IOException("Truncated zip entry");
+                read += n;
+            }
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
     /** Searches an attribute array for a specific attribute by name. */
-    public static AttributeInfo findAttribute(CpInfo[] constantPool, 
+    public static AttributeInfo findAttribute(ConstantPool constantPool, 
                                               AttributeInfo[] attributes, 
                                               String attributeName) throws Exception {
         for (AttributeInfo attr : attributes) {
-            if (constantPool[attr.attributeNameIndex].tag != CONSTANT_Utf8) {
+            if (constantPool.tag(attr.attributeNameIndex) != CONSTANT_Utf8) {
                 continue;
             }
-            ConstantUtf8Info nameInfo = (ConstantUtf8Info) constantPool[attr.attributeNameIndex];
-            if (nameInfo.value.equals(attributeName)) {
+            if (constantPool.utf8(attr.attributeNameIndex).equals(attributeName)) {
                 return attr;
             }
         }
@@ -1096,335 +2312,1577 @@ public class PureCodeDEXGenerator {
         return new CodeAttribute(maxStack, maxLocals, code, exceptionTable, nestedAttributes);
     }
     
-    /** Parses a Java method descriptor string. */
+    /** Parses a Java method descriptor string, returning its canonical instance. */
     public static MethodDescriptor parseMethodDescriptor(String descriptor) {
-        List<String> parameters = new ArrayList<>();
-        int closeParen = descriptor.indexOf(')');
-        String paramString = descriptor.substring(1, closeParen);
-        int index = 0;
-        while (index < paramString.length()) {
-            char c = paramString.charAt(index);
-            int startIndex = index;
-            if (c == '[') {
-                while (paramString.charAt(index) == '[') index++;
-                if (paramString.charAt(index) == 'L') {
-                    index = paramString.indexOf(';', index) + 1;
-                } else {
-                    index++;
+        return DescriptorTable.method(descriptor);
+    }
+
+    /** Returns the "shorty" string of a descriptor. */
+    public static String createShorty(MethodDescriptor desc) {
+        return desc.shorty;
+    }
+
+    /** Returns the type descriptor of a CONSTANT_Class entry. */
+    static String classDescriptor(ConstantPool pool, int classIndex) {
+        return DescriptorTable.classDescriptor(pool.utf8(pool.classNameIndex(classIndex)));
+    }
+    
+    // =========================================================================
+    // .DEX LAYOUT PLANNER
+    // =========================================================================
+
+    /**
+     * Phase 1: collects every ID section, translates all method code and assigns
+     * the final offset of every section, so the file can be emitted front to back
+     * without revisiting anything.
+     */
+    public static DexPlan planDex(ClassFile classFile) throws Exception {
+        return planDex(Collections.singletonList(classFile));
+    }
+
+    /** Plans a single .dex file holding every given class. */
+    public static DexPlan planDex(List<ClassFile> classFiles) throws Exception {
+        return planDex(classFiles, new DexOptions(), ConversionContext.forCurrentThread());
+    }
+
+    /**
+     * Plans a single .dex file using a context's scratch state; the plan itself
+     * owns no scratch. A startup profile in the options moves hot items forward.
+     */
+    public static DexPlan planDex(List<ClassFile> classFiles, DexOptions options,
+                                  ConversionContext context) throws Exception {
+        context.reset();
+        DexPlan plan = new DexPlan();
+        DexConversionStats stats = (options.stats != null) ? new DexConversionStats() : null;
+        context.stats = stats;
+        plan.stats = stats;
+        long start = System.nanoTime();
+        plan.classFiles = orderClassDefs(classFiles);
+        plan.stringSection = collectStrings(plan.classFiles, context);
+        plan.typeSection = collectTypes(plan.classFiles, plan.stringSection, context);
+        plan.protoSection = collectProtos(plan.classFiles, plan.stringSection, plan.typeSection, context);
+        plan.fieldSection = collectFields(plan.classFiles, plan.stringSection, plan.typeSection, context);
+        plan.methodSection = collectMethods(plan.classFiles, plan.stringSection, plan.typeSection,
+                                            plan.protoSection, context);
+        long idsDone = System.nanoTime();
+        for (ClassFile classFile : plan.classFiles) {
+            plan.classDefs.add(buildClassDef(classFile, plan.typeSection, plan.protoSection));
+            ClassDataItem classData = buildClassData(classFile, classFile.constantPool, plan.stringSection,
+                                                     plan.typeSection, plan.protoSection,
+                                                     plan.fieldSection, plan.methodSection, context);
+            plan.classData.add(classData);
+            for (DexEncodedMethod method : classData.directMethods) {
+                if (method.code != null) plan.codeItems.add(method.code);
+            }
+            for (DexEncodedMethod method : classData.virtualMethods) {
+                if (method.code != null) plan.codeItems.add(method.code);
+            }
+        }
+        long translated = System.nanoTime();
+        if (options.startupProfile != null) {
+            orderForStartup(plan, options.startupProfile);
+        }
+        layoutDex(plan);
+        context.stats = null;
+        if (stats != null) {
+            stats.idSectionsNanos = idsDone - start;
+            stats.translateNanos = translated - idsDone;
+            stats.finalizeNanos = System.nanoTime() - translated;
+            stats.classCount = plan.classFiles.size();
+            stats.methodCount = plan.codeItems.size();
+        }
+        return plan;
+    }
+
+    /**
+     * Groups the string_data, code_items and class_data used at startup, so the
+     * pages ART touches on a cold start are few. A map type's items must stay in
+     * one run, so the groups can only meet at section borders: string_data lies
+     * directly before the code_items, so hot strings go last and hot code first,
+     * making one contiguous hot run; hot class_data goes first in its section,
+     * which follows the cold code. Hot strings are the names of hot classes and
+     * methods and the constants their code loads. ID sections keep their
+     * required sort order; everything else keeps its planned order.
+     */
+    static void orderForStartup(DexPlan plan, StartupProfile profile) {
+        StringSection strings = plan.stringSection;
+        TypeSection types = plan.typeSection;
+        String[] protoDescriptors = new String[plan.protoSection.protoIdsSize];
+        for (Map.Entry<MethodDescriptor, Integer> entry : plan.protoSection.protoIdMap.entrySet()) {
+            protoDescriptors[entry.getValue()] = entry.getKey().toString();
+        }
+
+        boolean[] hotStrings = new boolean[strings.stringIdsSize];
+        List<CodeItem> hotCode = new ArrayList<>();
+        List<CodeItem> coldCode = new ArrayList<>();
+        boolean[] hotClasses = new boolean[plan.classData.size()];
+        for (int i = 0; i < plan.classData.size(); i++) {
+            ClassDataItem classData = plan.classData.get(i);
+            int classStringId = types.typeStringIds[plan.classDefs.get(i).classIdx];
+            String classDescriptor = strings.strings.get(classStringId);
+            boolean hotClass = profile.containsClass(classDescriptor);
+            List<DexEncodedMethod> classMethods = new ArrayList<>(classData.directMethods);
+            classMethods.addAll(classData.virtualMethods);
+            for (DexEncodedMethod method : classMethods) {
+                DexMethodId methodId = plan.methodSection.methodIds[method.methodIdx];
+                boolean hot = profile.containsMethod(classDescriptor, strings.strings.get(methodId.nameIdx),
+                                                     protoDescriptors[methodId.protoIdx]);
+                if (hot) {
+                    hotClass = true;
+                    hotStrings[methodId.nameIdx] = true;
+                    if (method.code != null && method.code.stringIds != null) {
+                        for (int stringId : method.code.stringIds) hotStrings[stringId] = true;
+                    }
+                }
+                if (method.code != null) (hot ? hotCode : coldCode).add(method.code);
+            }
+            if (hotClass) {
+                hotClasses[i] = true;
+                hotStrings[classStringId] = true;
+            }
+        }
+
+        hotCode.addAll(coldCode);
+        plan.codeItems = hotCode;
+        plan.classDataOrder = hotOrder(hotClasses, true);
+        strings.dataOrder = hotOrder(hotStrings, false);
+    }
+
+    /** Returns every index with the hot ones first or last, each group in ascending order. */
+    private static int[] hotOrder(boolean[] hot, boolean hotFirst) {
+        int[] order = new int[hot.length];
+        int next = 0;
+        for (int i = 0; i < hot.length; i++) if (hot[i] == hotFirst) order[next++] = i;
+        for (int i = 0; i < hot.length; i++) if (hot[i] != hotFirst) order[next++] = i;
+        return order;
+    }
+
+    /**
+     * Orders classes so that a superclass or interface defined in the same file
+     * precedes its subclasses, as class_defs requires. Duplicate classes are rejected.
+     */
+    static List<ClassFile> orderClassDefs(List<ClassFile> classFiles) throws Exception {
+        Map<String, ClassFile> byDescriptor = new LinkedHashMap<>();
+        for (ClassFile classFile : classFiles) {
+            String descriptor = classDescriptor(classFile.constantPool, classFile.identity.thisClassIndex);
+            if (byDescriptor.put(descriptor, classFile) != null) {
+                throw new Exception("Duplicate class: " + descriptor);
+            }
+        }
+        List<ClassFile> ordered = new ArrayList<>(classFiles.size());
+        Set<String> visited = new HashSet<>();
+        for (String descriptor : byDescriptor.keySet()) {
+            visitClassDef(descriptor, byDescriptor, visited, ordered);
+        }
+        return ordered;
+    }
+
+    private static void visitClassDef(String descriptor, Map<String, ClassFile> byDescriptor,
+                                      Set<String> visited, List<ClassFile> ordered) {
+        ClassFile classFile = byDescriptor.get(descriptor);
+        if (classFile == null || !visited.add(descriptor)) return;
+        ConstantPool pool = classFile.constantPool;
+        if (classFile.identity.superClassIndex != 0) {
+            visitClassDef(classDescriptor(pool, classFile.identity.superClassIndex), byDescriptor, visited, ordered);
+        }
+        for (int interfaceIndex : classFile.interfaces) {
+            visitClassDef(classDescriptor(pool, interfaceIndex), byDescriptor, visited, ordered);
+        }
+        ordered.add(classFile);
+    }
+
+    /** Assigns offsets to every section and item and records them in the map list. */
+    static void layoutDex(DexPlan plan) {
+        MapListBuilder mapBuilder = plan.mapBuilder;
+        StringSection strings = plan.stringSection;
+        TypeSection types = plan.typeSection;
+        ProtoSection protos = plan.protoSection;
+        FieldSection fields = plan.fieldSection;
+        MethodSection methods = plan.methodSection;
+
+        mapBuilder.add(TYPE_HEADER_ITEM, 1, 0);
+        int offset = DexHeader.HEADER_SIZE;
+
+        strings.stringIdsOff = offset;
+        mapBuilder.add(TYPE_STRING_ID_ITEM, strings.stringIdsSize, offset);
+        offset += strings.stringIdsSize * 4;
+
+        types.typeIdsOff = offset;
+        mapBuilder.add(TYPE_TYPE_ID_ITEM, types.typeIdsSize, offset);
+        offset += types.typeIdsSize * 4;
+
+        protos.protoIdsOff = offset;
+        mapBuilder.add(TYPE_PROTO_ID_ITEM, protos.protoIdsSize, offset);
+        offset += protos.protoIdsSize * 12;
+
+        fields.fieldIdsOff = offset;
+        mapBuilder.add(TYPE_FIELD_ID_ITEM, fields.fieldIdsSize, offset);
+        offset += fields.fieldIdsSize * 8;
+
+        methods.methodIdsOff = offset;
+        mapBuilder.add(TYPE_METHOD_ID_ITEM, methods.methodIdsSize, offset);
+        offset += methods.methodIdsSize * 8;
+
+        plan.classDefsOff = offset;
+        mapBuilder.add(TYPE_CLASS_DEF_ITEM, plan.classDefs.size(), offset);
+        offset += plan.classDefs.size() * 32;
+
+        // --- data section ---
+        plan.dataOff = offset;
+
+        protos.typeListOffsets = new int[protos.typeLists.size()];
+        for (int i = 0; i < protos.typeLists.size(); i++) {
+            offset = align4(offset);
+            protos.typeListOffsets[i] = offset;
+            offset += 4 + protos.typeLists.get(i).size() * 2;
+        }
+        if (!protos.typeLists.isEmpty()) {
+            mapBuilder.add(TYPE_TYPE_LIST, protos.typeLists.size(), protos.typeListOffsets[0]);
+        }
+        for (ClassDefItem classDef : plan.classDefs) {
+            if (classDef.interfacesListIndex != -1) {
+                classDef.interfacesOff = protos.typeListOffsets[classDef.interfacesListIndex];
+            }
+        }
+
+        strings.stringDataOff = offset;
+        strings.stringDataOffsets = new int[strings.stringIdsSize];
+        for (int n = 0; n < strings.stringIdsSize; n++) {
+            int i = (strings.dataOrder != null) ? strings.dataOrder[n] : n;
+            strings.stringDataOffsets[i] = offset;
+            byte[] encoded = strings.encoded[i];
+            offset += (encoded != null) ? encoded.length : ByteWriter.mutf8Size(strings.strings.get(i));
+        }
+        mapBuilder.add(TYPE_STRING_DATA_ITEM, strings.stringIdsSize, strings.stringDataOff);
+
+        // code_items sit directly before class_data so patchDex can append to them
+        offset = align4(offset);
+        plan.codeItemsOff = offset;
+        for (CodeItem codeItem : plan.codeItems) {
+            offset = align4(offset);
+            codeItem.offset = offset;
+            offset += codeItemSize(codeItem);
+        }
+        mapBuilder.add(TYPE_CODE_ITEM, plan.codeItems.size(), plan.codeItemsOff);
+
+        plan.classDataOff = offset;
+        for (int n = 0; n < plan.classData.size(); n++) {
+            int i = (plan.classDataOrder != null) ? plan.classDataOrder[n] : n;
+            ClassDataItem classData = plan.classData.get(i);
+            for (DexEncodedMethod method : classData.directMethods) {
+                method.codeOff = (method.code != null) ? method.code.offset : 0;
+            }
+            for (DexEncodedMethod method : classData.virtualMethods) {
+                method.codeOff = (method.code != null) ? method.code.offset : 0;
+            }
+            plan.classDefs.get(i).classDataOff = offset;
+            offset += classDataSize(classData);
+        }
+        mapBuilder.add(TYPE_CLASS_DATA_ITEM, plan.classData.size(), plan.classDataOff);
+
+        offset = align4(offset);
+        plan.mapOff = offset;
+        mapBuilder.add(TYPE_MAP_LIST, 1, offset);
+        offset += mapBuilder.size();
+
+        plan.fileSize = offset;
+    }
+
+    /** Rounds an offset up to the next 4-byte boundary. */
+    static int align4(int offset) {
+        return (offset + 3) & ~3;
+    }
+
+    /** Returns the encoded size of a code_item, laying out its catch handlers on the way. */
+    static int codeItemSize(CodeItem codeItem) {
+        int size = 16 + codeItem.insnsSize * 2;
+        if (codeItem.triesSize > 0) {
+            if (codeItem.insnsSize % 2 != 0) size += 2;
+            size += codeItem.triesSize * 8;
+            size += layoutHandlers(codeItem);
+        }
+        return size;
+    }
+
+    /**
+     * Computes the handler_off of every handler list (a byte offset from the start of
+     * the encoded_catch_handler_list) and returns the encoded size of that list.
+     */
+    static int layoutHandlers(CodeItem codeItem) {
+        codeItem.handlerOffsets = new int[codeItem.handlerLists.size()];
+        int handlerOffset = ByteWriter.uleb128Size(codeItem.handlerLists.size());
+        for (int h = 0; h < codeItem.handlerOffsets.length; h++) {
+            DalvikHandlerList handlerList = codeItem.handlerLists.get(h);
+            codeItem.handlerOffsets[h] = handlerOffset;
+            int handlerCount = handlerList.handlers.size();
+            handlerOffset += ByteWriter.sleb128Size(handlerList.javaCatchAllPc != -1 ? -handlerCount : handlerCount);
+            for (DalvikCatchHandler handler : handlerList.handlers) {
+                handlerOffset += ByteWriter.uleb128Size(handler.typeId);
+                handlerOffset += ByteWriter.uleb128Size(handler.dalvikHandlerPc);
+            }
+            if (handlerList.javaCatchAllPc != -1) {
+                handlerOffset += ByteWriter.uleb128Size(handlerList.dalvikCatchAllPc);
+            }
+        }
+        return handlerOffset;
+    }
+
+    /** Returns the encoded size of a class_data_item once code offsets are known. */
+    static int classDataSize(ClassDataItem classData) {
+        int size = ByteWriter.uleb128Size(classData.staticFields.size())
+                 + ByteWriter.uleb128Size(classData.instanceFields.size())
+                 + ByteWriter.uleb128Size(classData.directMethods.size())
+                 + ByteWriter.uleb128Size(classData.virtualMethods.size());
+        size += encodedFieldsSize(classData.staticFields);
+        size += encodedFieldsSize(classData.instanceFields);
+        size += encodedMethodsSize(classData.directMethods);
+        size += encodedMethodsSize(classData.virtualMethods);
+        return size;
+    }
+
+    private static int encodedFieldsSize(List<DexEncodedField> fields) {
+        int size = 0;
+        int lastIdx = 0;
+        for (DexEncodedField field : fields) {
+            size += ByteWriter.uleb128Size(field.fieldIdx - lastIdx);
+            size += ByteWriter.uleb128Size(field.accessFlags);
+            lastIdx = field.fieldIdx;
+        }
+        return size;
+    }
+
+    private static int encodedMethodsSize(List<DexEncodedMethod> methods) {
+        int size = 0;
+        int lastIdx = 0;
+        for (DexEncodedMethod method : methods) {
+            size += ByteWriter.uleb128Size(method.methodIdx - lastIdx);
+            size += ByteWriter.uleb128Size(method.accessFlags);
+            size += ByteWriter.uleb128Size(method.codeOff);
+            lastIdx = method.methodIdx;
+        }
+        return size;
+    }
+
+    // =========================================================================
+    // MULTIDEX SHARDING
+    // =========================================================================
+
+    /** The type, field and method IDs a class needs in whichever dex holds it, for the ID limit. */
+    static class ClassReferences {
+        final String descriptor;
+        final Set<String> types = new HashSet<>();
+        final Set<String> fields = new HashSet<>();
+        final Set<String> methods = new HashSet<>();
+
+        ClassReferences(ClassFile classFile) throws Exception {
+            ConstantPool pool = classFile.constantPool;
+            descriptor = classDescriptor(pool, classFile.identity.thisClassIndex);
+            addClassTypes(types, classFile);
+            for (int i = 1; i < pool.size(); i++) {
+                int tag = pool.tag(i);
+                if (tag != CONSTANT_Fieldref && tag != CONSTANT_Methodref && tag != CONSTANT_InterfaceMethodref) continue;
+                String key = classDescriptor(pool, pool.refClassIndex(i)) + "->"
+                           + pool.refName(i) + ":"
+                           + pool.refDescriptor(i);
+                if (tag == CONSTANT_Fieldref) { fields.add(key); } else { methods.add(key); }
+            }
+            for (FieldInfo field : classFile.fields) {
+                fields.add(descriptor + "->" + pool.utf8(field.nameIndex) + ":"
+                           + pool.utf8(field.descriptorIndex));
+            }
+            for (MethodInfo method : classFile.methods) {
+                methods.add(descriptor + "->" + pool.utf8(method.nameIndex) + ":"
+                            + pool.utf8(method.descriptorIndex));
+            }
+        }
+    }
+
+    /** The IDs already claimed by the classes placed in one shard. */
+    static class DexShard {
+        final List<ClassFile> classFiles = new ArrayList<>();
+        final Set<String> types = new HashSet<>();
+        final Set<String> fields = new HashSet<>();
+        final Set<String> methods = new HashSet<>();
+
+        /** Whether a class can join without any ID section passing the limit. */
+        boolean fits(ClassReferences refs, int maxIds) {
+            return types.size() + countNew(types, refs.types) <= maxIds
+                && fields.size() + countNew(fields, refs.fields) <= maxIds
+                && methods.size() + countNew(methods, refs.methods) <= maxIds;
+        }
+
+        void add(ClassFile classFile, ClassReferences refs) {
+            classFiles.add(classFile);
+            types.addAll(refs.types);
+            fields.addAll(refs.fields);
+            methods.addAll(refs.methods);
+        }
+
+        private static int countNew(Set<String> existing, Set<String> added) {
+            int count = 0;
+            for (String key : added) {
+                if (!existing.contains(key)) count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Splits classes into dex shards that each stay within the ID limit. The root
+     * classes and the input classes they reference directly, as the dependency
+     * scanner sees them, form the main dex; everything else is packed greedily in
+     * input order.
+     */
+    static List<List<ClassFile>> shardClasses(List<ClassFile> classFiles, Set<String> mainDexClasses,
+                                              int maxIds) throws Exception {
+        Map<ClassFile, ClassReferences> refs = new LinkedHashMap<>();
+        Map<String, ClassFile> byDescriptor = new HashMap<>();
+        for (ClassFile classFile : classFiles) {
+            ClassReferences classRefs = new ClassReferences(classFile);
+            refs.put(classFile, classRefs);
+            byDescriptor.put(classRefs.descriptor, classFile);
+        }
+
+        Set<ClassFile> mainDex = new LinkedHashSet<>();
+        for (String rootDescriptor : mainDexClasses) {
+            ClassFile root = byDescriptor.get(rootDescriptor);
+            if (root == null) throw new Exception("Main dex class not found: " + rootDescriptor);
+            mainDex.add(root);
+            for (String type : referencedClasses(root.constantPool, root.identity.thisClassIndex)) {
+                ClassFile dependency = byDescriptor.get(type);
+                if (dependency != null) mainDex.add(dependency);
+            }
+        }
+
+        List<List<ClassFile>> shards = new ArrayList<>();
+        DexShard shard = new DexShard();
+        for (ClassFile classFile : mainDex) {
+            if (!shard.fits(refs.get(classFile), maxIds)) {
+                throw new Exception("Main dex classes exceed the limit of " + maxIds + " IDs");
+            }
+            shard.add(classFile, refs.get(classFile));
+        }
+        for (ClassFile classFile : classFiles) {
+            if (mainDex.contains(classFile)) continue;
+            ClassReferences classRefs = refs.get(classFile);
+            if (!shard.fits(classRefs, maxIds)) {
+                if (shard.classFiles.isEmpty()) {
+                    throw new Exception("Class " + classRefs.descriptor + " alone exceeds the limit of " + maxIds + " IDs");
+                }
+                shards.add(shard.classFiles);
+                shard = new DexShard();
+                if (!shard.fits(classRefs, maxIds)) {
+                    throw new Exception("Class " + classRefs.descriptor + " alone exceeds the limit of " + maxIds + " IDs");
+                }
+            }
+            shard.add(classFile, classRefs);
+        }
+        if (!shard.classFiles.isEmpty()) shards.add(shard.classFiles);
+        return shards;
+    }
+
+    /**
+     * Rejects a plan whose method, field or type IDs do not fit 16-bit indices.
+     * String IDs have no such limit: strings past 0xFFFF are loaded with
+     * const-string/jumbo, which takes a 32-bit index.
+     */
+    static void checkIdLimits(DexPlan plan, DexOptions options) throws Exception {
+        int maxIds = options.maxIdsPerDex;
+        if (plan.methodSection.methodIdsSize > maxIds) {
+            throw new Exception("Too many method IDs for one dex: " + plan.methodSection.methodIdsSize);
+        }
+        if (plan.fieldSection.fieldIdsSize > maxIds) {
+            throw new Exception("Too many field IDs for one dex: " + plan.fieldSection.fieldIdsSize);
+        }
+        if (plan.typeSection.typeIdsSize > maxIds) {
+            throw new Exception("Too many type IDs for one dex: " + plan.typeSection.typeIdsSize);
+        }
+    }
+
+    // =========================================================================
+    // DIRECT DALVIK INPUT
+    // =========================================================================
+
+    /**
+     * A class whose methods are already Dalvik register code, for front ends that
+     * generate dex directly instead of going through .class files. References to
+     * strings, types and methods are kept symbolic until the file is planned.
+     */
+    public static class DalvikClass {
+        final String descriptor;
+        final String superclass;
+        final int accessFlags;
+        final List<String> interfaces = new ArrayList<>();
+        final List<DalvikMethod> methods = new ArrayList<>();
+
+        /** Descriptors are in dex form, e.g. "Lcom/example/Main;". */
+        public DalvikClass(String descriptor, String superclass, int accessFlags) {
+            this.descriptor = descriptor;
+            this.superclass = superclass;
+            this.accessFlags = accessFlags;
+        }
+
+        /** Declares an implemented interface, e.g. "Landroid/view/View$OnClickListener;". */
+        public void addInterface(String descriptor) {
+            interfaces.add(descriptor);
+        }
+
+        /** Adds a method; the descriptor is in JVM form, e.g. "(Landroid/os/Bundle;)V". */
+        public DalvikMethod addMethod(String name, String descriptor, int accessFlags) {
+            DalvikMethod method = new DalvikMethod(name, descriptor, accessFlags);
+            methods.add(method);
+            return method;
+        }
+    }
+
+    /** A method body as code units, with its index operands resolved at planning time. */
+    public static class DalvikMethod {
+        static final int REF_STRING = 0;
+        static final int REF_TYPE = 1;
+        static final int REF_METHOD = 2;
+
+        final String name;
+        final MethodDescriptor descriptor;
+        final int accessFlags;
+        final InsnBuffer insns = new InsnBuffer();
+        final List<DalvikRef> refs = new ArrayList<>();
+        public int registersSize;
+        public int outsSize;
+
+        DalvikMethod(String name, String descriptor, int accessFlags) {
+            this.name = name;
+            this.descriptor = parseMethodDescriptor(descriptor);
+            this.accessFlags = accessFlags;
+        }
+
+        /** Returns the number of code units emitted so far. */
+        public int insnsSize() {
+            return insns.size();
+        }
+
+        /** Appends a code unit. */
+        public void addUnit(int unit) {
+            insns.add((short) unit);
+        }
+
+        /** Overwrites an emitted code unit, e.g. to patch a forward branch offset. */
+        public void setUnit(int index, int unit) {
+            insns.set(index, (short) unit);
+        }
+
+        /** Appends the string@BBBB operand of a const-string. */
+        public void addStringRef(String value) {
+            addRef(new DalvikRef(REF_STRING, null, value, null));
+        }
+
+        /** Appends a type@BBBB operand, e.g. of new-instance. */
+        public void addTypeRef(String descriptor) {
+            addRef(new DalvikRef(REF_TYPE, null, descriptor, null));
+        }
+
+        /** Appends the meth@BBBB operand of an invoke. */
+        public void addMethodRef(String owner, String name, String descriptor) {
+            addRef(new DalvikRef(REF_METHOD, owner, name, parseMethodDescriptor(descriptor)));
+        }
+
+        private void addRef(DalvikRef ref) {
+            ref.unit = insns.size();
+            refs.add(ref);
+            insns.add((short) 0);
+        }
+
+        boolean isDirect() {
+            return (accessFlags & 0x000A) != 0 || name.equals("<init>") || name.equals("<clinit>");
+        }
+    }
+
+    /** A symbolic index operand: a string, a type descriptor or owner.name(descriptor). */
+    static class DalvikRef {
+        final int kind;
+        final String owner;
+        final String value;
+        final MethodDescriptor descriptor;
+        int unit;
+
+        DalvikRef(int kind, String owner, String value, MethodDescriptor descriptor) {
+            this.kind = kind;
+            this.owner = owner;
+            this.value = value;
+            this.descriptor = descriptor;
+        }
+    }
+
+    /**
+     * Plans a .dex file from classes that are already Dalvik code. There is no
+     * parsing or stack translation: the ID sections come straight from each
+     * method's references and the code units are copied with their indices filled
+     * in. Classes keep the given order, so a superclass must come first.
+     */
+    static DexPlan planDalvikDex(List<DalvikClass> classes, DexOptions options,
+                                 ConversionContext context) throws Exception {
+        context.reset();
+        DexPlan plan = new DexPlan();
+        DexConversionStats stats = (options.stats != null) ? new DexConversionStats() : null;
+        plan.stats = stats;
+        long start = System.nanoTime();
+
+        Set<String> seen = new HashSet<>();
+        for (DalvikClass dalvikClass : classes) {
+            if (!seen.add(dalvikClass.descriptor)) {
+                throw new Exception("Duplicate class: " + dalvikClass.descriptor);
+            }
+            addDalvikClassIds(dalvikClass, context);
+        }
+        plan.stringSection = buildStringSection(context.strings, context);
+        plan.typeSection = buildTypeSection(context.typeNames, plan.stringSection, context);
+        plan.protoSection = buildProtoSection(context.protos, plan.stringSection, plan.typeSection, context);
+        plan.fieldSection = buildFieldSection(context.fields);
+        Map<String, Integer> stringIds = plan.stringSection.stringIdMap;
+        Map<String, Integer> typeIds = plan.typeSection.typeIdMap;
+        Map<MethodDescriptor, Integer> protoIds = plan.protoSection.protoIdMap;
+        for (DalvikClass dalvikClass : classes) {
+            for (DalvikMethod method : dalvikClass.methods) {
+                context.methods.add(new DexMethodId(typeIds.get(dalvikClass.descriptor),
+                    protoIds.get(method.descriptor), stringIds.get(method.name)));
+                for (DalvikRef ref : method.refs) {
+                    if (ref.kind != DalvikMethod.REF_METHOD) continue;
+                    context.methods.add(new DexMethodId(typeIds.get(ref.owner), protoIds.get(ref.descriptor),
+                                                        stringIds.get(ref.value)));
+                }
+            }
+        }
+        plan.methodSection = buildMethodSection(context.methods);
+        long idsDone = System.nanoTime();
+
+        for (DalvikClass dalvikClass : classes) {
+            ClassDefItem classDef = new ClassDefItem();
+            classDef.classIdx = typeIds.get(dalvikClass.descriptor);
+            classDef.accessFlags = dalvikClass.accessFlags;
+            classDef.superclassIdx = typeIds.get(dalvikClass.superclass);
+            classDef.interfacesOff = ClassDefItem.NO_OFFSET;
+            classDef.sourceFileIdx = ClassDefItem.NO_INDEX;
+            classDef.annotationsOff = ClassDefItem.NO_OFFSET;
+            classDef.classDataOff = ClassDefItem.NO_OFFSET;
+            classDef.staticValuesOff = ClassDefItem.NO_OFFSET;
+            if (!dalvikClass.interfaces.isEmpty()) {
+                List<Integer> interfaceTypeIds = new ArrayList<>(dalvikClass.interfaces.size());
+                for (String interfaceName : dalvikClass.interfaces) {
+                    interfaceTypeIds.add(typeIds.get(interfaceName));
+                }
+                classDef.interfacesListIndex = plan.protoSection.internTypeList(interfaceTypeIds);
+            }
+            plan.classDefs.add(classDef);
+
+            ClassDataItem classData = new ClassDataItem();
+            for (DalvikMethod method : dalvikClass.methods) {
+                int methodIdx = plan.methodSection.methodIdMap.get(new DexMethodId(classDef.classIdx,
+                    protoIds.get(method.descriptor), stringIds.get(method.name)));
+                DexEncodedMethod encodedMethod = new DexEncodedMethod(methodIdx, method.accessFlags, 0);
+                encodedMethod.code = buildDalvikCode(method, plan);
+                plan.codeItems.add(encodedMethod.code);
+                (method.isDirect() ? classData.directMethods : classData.virtualMethods).add(encodedMethod);
+            }
+            classData.directMethods.sort(Comparator.comparingInt(m -> m.methodIdx));
+            classData.virtualMethods.sort(Comparator.comparingInt(m -> m.methodIdx));
+            plan.classData.add(classData);
+        }
+        long built = System.nanoTime();
+        if (options.startupProfile != null) {
+            orderForStartup(plan, options.startupProfile);
+        }
+        layoutDex(plan);
+        if (stats != null) {
+            stats.idSectionsNanos = idsDone - start;
+            stats.translateNanos = built - idsDone;
+            stats.finalizeNanos = System.nanoTime() - built;
+            stats.classCount = classes.size();
+            stats.methodCount = plan.codeItems.size();
+        }
+        return plan;
+    }
+
+    /** Adds the strings, types and protos one Dalvik class declares or references. */
+    private static void addDalvikClassIds(DalvikClass dalvikClass, ConversionContext context) {
+        context.strings.add(dalvikClass.descriptor);
+        context.strings.add(dalvikClass.superclass);
+        context.typeNames.add(dalvikClass.descriptor);
+        context.typeNames.add(dalvikClass.superclass);
+        context.strings.addAll(dalvikClass.interfaces);
+        context.typeNames.addAll(dalvikClass.interfaces);
+        for (DalvikMethod method : dalvikClass.methods) {
+            context.strings.add(method.name);
+            addDalvikProto(method.descriptor, context);
+            for (DalvikRef ref : method.refs) {
+                context.strings.add(ref.value);
+                if (ref.kind == DalvikMethod.REF_TYPE) {
+                    context.typeNames.add(ref.value);
+                } else if (ref.kind == DalvikMethod.REF_METHOD) {
+                    context.strings.add(ref.owner);
+                    context.typeNames.add(ref.owner);
+                    addDalvikProto(ref.descriptor, context);
                 }
-            } else if (c == 'L') {
-                index = paramString.indexOf(';', index) + 1;
+            }
+        }
+    }
+
+    private static void addDalvikProto(MethodDescriptor desc, ConversionContext context) {
+        context.protos.add(desc);
+        context.strings.add(desc.shorty);
+        addDescriptorTypes(context.strings, desc);
+        addDescriptorTypes(context.typeNames, desc);
+    }
+
+    /** Copies a Dalvik method's code units into a code_item, filling in every index operand. */
+    private static CodeItem buildDalvikCode(DalvikMethod method, DexPlan plan) throws Exception {
+        CodeItem codeItem = new CodeItem();
+        codeItem.insSize = method.descriptor.parameterWords + ((method.accessFlags & 0x0008) == 0 ? 1 : 0);
+        codeItem.registersSize = Math.max(method.registersSize, codeItem.insSize);
+        codeItem.outsSize = method.outsSize;
+        codeItem.insns = method.insns.toArray();
+        codeItem.insnsSize = codeItem.insns.length;
+        for (DalvikRef ref : method.refs) {
+            int index;
+            if (ref.kind == DalvikMethod.REF_STRING) {
+                index = plan.stringSection.stringIdMap.get(ref.value);
+                if (codeItem.stringIds == null) codeItem.stringIds = new ArrayList<>();
+                codeItem.stringIds.add(index);
+            } else if (ref.kind == DalvikMethod.REF_TYPE) {
+                index = plan.typeSection.typeIdMap.get(ref.value);
             } else {
-                index++;
+                index = plan.methodSection.methodIdMap.get(new DexMethodId(
+                    plan.typeSection.typeIdMap.get(ref.owner), plan.protoSection.protoIdMap.get(ref.descriptor),
+                    plan.stringSection.stringIdMap.get(ref.value)));
             }
-            parameters.add(paramString.substring(startIndex, index));
+            if (index > 0xFFFF) throw new Exception("Index too large for a 16-bit operand: " + ref.value);
+            codeItem.insns[ref.unit] = (short) index;
         }
-        String returnType = descriptor.substring(closeParen + 1);
-        return new MethodDescriptor(returnType, parameters);
+        return codeItem;
     }
 
-    /** Creates the "shorty" string from a descriptor. */
-    public static String createShorty(MethodDescriptor desc) {
-        StringBuilder shorty = new StringBuilder();
-        shorty.append(desc.returnType.charAt(0) == '[' ? 'L' : desc.returnType.charAt(0));
-        for (String param : desc.parameters) {
-            shorty.append(param.charAt(0) == '[' ? 'L' : param.charAt(0));
+    // =========================================================================
+    // DEPENDENCY SCANNING
+    // =========================================================================
+
+    /** A class and the other classes its constant pool refers to, as type descriptors. */
+    public static class ClassDependencies {
+        public final String descriptor;
+        public final Set<String> references;
+
+        ClassDependencies(String descriptor, Set<String> references) {
+            this.descriptor = descriptor;
+            this.references = references;
         }
-        return shorty.toString();
     }
-    
+
+    /**
+     * Reads a class's outgoing class references straight from its constant pool.
+     * Entries are only indexed, not decoded; the Utf8 names of CONSTANT_Class
+     * entries (which every Fieldref and Methodref owner points at) are the only
+     * strings read, and the fields, methods and attributes are never looked at.
+     * Array types resolve to their element class; primitive arrays and the class
+     * itself are left out.
+     */
+    public static ClassDependencies scanClassDependencies(byte[] classData) throws Exception {
+        ByteReader reader = new ByteReader(classData);
+        if (classData.length < 10 || reader.readU4() != 0xCAFEBABE) {
+            throw new Exception("Not a class file");
+        }
+        reader.index = 8;
+        ConstantPool pool = parseConstantPool(reader);
+        reader.readU2(); // access_flags
+        int thisClassIndex = reader.readU2();
+
+        String descriptor = classDescriptor(pool, thisClassIndex);
+        return new ClassDependencies(descriptor, referencedClasses(pool, thisClassIndex));
+    }
+
+    /** The classes a constant pool's CONSTANT_Class entries name, as descriptors, without the class itself. */
+    static Set<String> referencedClasses(ConstantPool pool, int thisClassIndex) {
+        String descriptor = classDescriptor(pool, thisClassIndex);
+        Set<String> references = new HashSet<>();
+        for (int i = 1; i < pool.size(); i++) {
+            if (pool.tag(i) != CONSTANT_Class || i == thisClassIndex) continue;
+            String name = pool.utf8(pool.classNameIndex(i));
+            if (name.charAt(0) != '[') {
+                references.add(DescriptorTable.classDescriptor(name));
+            } else {
+                // "[[Lfoo/Bar;" -> "Lfoo/Bar;"; primitive arrays have no class to depend on
+                String element = name.substring(name.lastIndexOf('[') + 1);
+                if (element.charAt(0) == 'L') references.add(element);
+            }
+        }
+        references.remove(descriptor);
+        return references;
+    }
+
+    /** Scans every class and returns the class -> referenced classes graph, keyed by descriptor. */
+    public static Map<String, Set<String>> scanDependencyGraph(List<byte[]> classes) throws Exception {
+        Map<String, Set<String>> graph = new LinkedHashMap<>();
+        for (byte[] classData : classes) {
+            ClassDependencies dependencies = scanClassDependencies(classData);
+            graph.put(dependencies.descriptor, dependencies.references);
+        }
+        return graph;
+    }
+
+    /**
+     * Returns the classes to reconvert after the given classes changed: the changed
+     * classes plus every class in the graph that refers to one of them directly. A
+     * dex method body only embeds IDs of what it references, so nothing further
+     * away can be affected.
+     */
+    public static Set<String> classesToReconvert(Map<String, Set<String>> graph, Set<String> changed) {
+        Set<String> result = new LinkedHashSet<>(changed);
+        for (Map.Entry<String, Set<String>> node : graph.entrySet()) {
+            for (String reference : node.getValue()) {
+                if (changed.contains(reference)) {
+                    result.add(node.getKey());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
     // =========================================================================
-    // .DEX FILE WRITER METHODS
+    // INCREMENTAL PATCHING
     // =========================================================================
 
-    /** Writes a (mostly empty) DexHeader to the ByteWriter. */
-    public static void writeEmptyHeader(ByteWriter writer) {
-        writer.writeBytes(DexHeader.DEX_FILE_MAGIC); // 8
-        writer.writeU4(0); // checksum (placeholder)
-        writer.writeBytes(DexHeader.NO_SIGNATURE); // 20
-        writer.writeU4(0); // file_size (placeholder)
-        writer.writeU4(DexHeader.HEADER_SIZE); // header_size (0x70)
-        writer.writeU4(DexHeader.ENDIAN_CONSTANT); // endian_tag
-        writer.writeU4(0); // link_size
-        writer.writeU4(0); // link_off
-        writer.writeU4(0); // map_off
-        writer.writeU4(0); // string_ids_size
-        writer.writeU4(0); // string_ids_off
-        writer.writeU4(0); // type_ids_size
-        writer.writeU4(0); // type_ids_off
-        writer.writeU4(0); // proto_ids_size
-        writer.writeU4(0); // proto_ids_off
-        writer.writeU4(0); // field_ids_size
-        writer.writeU4(0); // field_ids_off
-        writer.writeU4(0); // method_ids_size
-        writer.writeU4(0); // method_ids_off
-        writer.writeU4(0); // class_defs_size
-        writer.writeU4(0); // class_defs_off
-        writer.writeU4(0); // data_size
-        writer.writeU4(0); // data_off
-    }
-
-    /** Collects/writes all strings and records them in the map builder. */
-    public static StringSection writeStrings(ByteWriter writer, CpInfo[] constantPool,
-                                            MapListBuilder mapBuilder) throws Exception {
-        Set<String> sortedStrings = new TreeSet<>();
-        for (int i = 1; i < constantPool.length; i++) {
-            if (constantPool[i] != null && constantPool[i].tag == CONSTANT_Utf8) {
-                sortedStrings.add(((ConstantUtf8Info) constantPool[i]).value);
-            }
-        }
-
-        // Add shorty strings and type descriptors from method/field descriptors
-        for (int i = 1; i < constantPool.length; i++) {
-            if (constantPool[i] == null) continue;
-            if (constantPool[i].tag == CONSTANT_Methodref ||
-                constantPool[i].tag == CONSTANT_InterfaceMethodref ||
-                constantPool[i].tag == CONSTANT_Fieldref) {
-                ConstantRefInfo ref = (ConstantRefInfo) constantPool[i];
-                ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) constantPool[ref.nameAndTypeIndex];
-                String descriptorString = ((ConstantUtf8Info) constantPool[nameAndType.descriptorIndex]).value;
-
-                if (constantPool[i].tag == CONSTANT_Fieldref) {
-                    sortedStrings.add(descriptorString);
-                } else {
-                    MethodDescriptor desc = parseMethodDescriptor(descriptorString);
-                    String shorty = createShorty(desc);
-                    sortedStrings.add(shorty);
-                    sortedStrings.add(desc.returnType);
-                    for (String param : desc.parameters) {
-                        sortedStrings.add(param);
+    /** A method body that changed: its current code_item and the new encoding. */
+    static class CodePatch {
+        final int methodIdx;
+        final DexReader.Code oldCode;
+        final byte[] newCode;
+        int newOffset;
+
+        CodePatch(int methodIdx, DexReader.Code oldCode, byte[] newCode) {
+            this.methodIdx = methodIdx;
+            this.oldCode = oldCode;
+            this.newCode = newCode;
+        }
+    }
+
+    /**
+     * Rewrites the changed method bodies of the given classes inside an existing
+     * .dex file instead of rebuilding it. Each class must already be defined there
+     * with the same supertypes, fields and methods, and may only reference IDs the
+     * file already has. A body that encodes to the same length is overwritten in
+     * place; the rest are appended to the code_items, and the class_data and
+     * map_list behind them are rewritten with the new offsets. Returns the number
+     * of bodies replaced, or -1 if the file has to be rebuilt instead.
+     */
+    public static int patchDex(File dexFile, List<byte[]> changedClasses, DexOptions options) throws Exception {
+        DexReader reader = DexReader.open(dexFile);
+        int codeMapItem = reader.findMapItem(TYPE_CODE_ITEM);
+        int classDataMapItem = reader.findMapItem(TYPE_CLASS_DATA_ITEM);
+        if (codeMapItem == -1 || classDataMapItem == -1) return -1;
+        int codeItemsOff = reader.getMapItemOffset(codeMapItem);
+        int classDataOff = reader.getMapItemOffset(classDataMapItem);
+        // Appending needs class_data right behind the code_items and only the map_list behind class_data
+        for (int i = 0; i < reader.getMapItemCount(); i++) {
+            int offset = reader.getMapItemOffset(i);
+            if (offset > codeItemsOff && offset < classDataOff) return -1;
+            if (offset > classDataOff && offset != reader.getMapOff()) return -1;
+        }
+
+        DexPlan ids = readIdSections(reader);
+        List<CodePatch> patches = new ArrayList<>();
+        for (byte[] classBytes : changedClasses) {
+            if (!collectCodePatches(reader, ids, parseClassFile(classBytes), patches)) return -1;
+        }
+        if (patches.isEmpty()) return 0;
+
+        List<CodePatch> appended = new ArrayList<>();
+        for (CodePatch patch : patches) {
+            if (patch.newCode.length == patch.oldCode.byteSize) {
+                patch.newOffset = patch.oldCode.offset;
+            } else {
+                appended.add(patch);
+            }
+        }
+
+        // Everything from the old class_data onwards is rebuilt in memory before the file is touched
+        ByteWriter tail = null;
+        int[] classDataOffsets = new int[reader.getClassDefCount()];
+        int mapOff = reader.getMapOff();
+        int fileSize = reader.getFileSize();
+        if (!appended.isEmpty()) {
+            int mapItemCount = reader.getMapItemCount();
+            int capacity = mapOff - classDataOff + 4 + mapItemCount * 12 + 3;
+            for (CodePatch patch : appended) capacity += patch.newCode.length + 3 + 5;
+            tail = new ByteWriter(capacity, classDataOff);
+
+            Map<Integer, Integer> newCodeOffsets = new HashMap<>();
+            for (CodePatch patch : appended) {
+                tail.alignTo4();
+                patch.newOffset = tail.getPosition();
+                tail.writeBytes(patch.newCode);
+                newCodeOffsets.put(patch.methodIdx, patch.newOffset);
+            }
+
+            int newClassDataOff = tail.getPosition();
+            List<DexReader.ClassDef> classDefs = new ArrayList<>();
+            for (int i = 0; i < reader.getClassDefCount(); i++) {
+                DexReader.ClassDef classDef = reader.getClassDef(i);
+                if (classDef.classDataOff != 0) classDefs.add(classDef);
+            }
+            classDefs.sort(Comparator.comparingInt(classDef -> classDef.classDataOff));
+            for (DexReader.ClassDef classDef : classDefs) {
+                classDataOffsets[classDef.index] = tail.getPosition();
+                writeClassData(tail, toClassDataItem(reader.getClassData(classDef), newCodeOffsets));
+            }
+
+            tail.alignTo4();
+            mapOff = tail.getPosition();
+            tail.writeU4(mapItemCount);
+            for (int i = 0; i < mapItemCount; i++) {
+                int type = reader.getMapItemType(i);
+                int size = reader.getMapItemSize(i);
+                int offset = reader.getMapItemOffset(i);
+                if (type == TYPE_CODE_ITEM) size += appended.size();
+                if (type == TYPE_CLASS_DATA_ITEM) offset = newClassDataOff;
+                if (type == TYPE_MAP_LIST) offset = mapOff;
+                tail.writeU2(type);
+                tail.writeU2(0); // 'unused'
+                tail.writeU4(size);
+                tail.writeU4(offset);
+            }
+            fileSize = tail.getPosition();
+        }
+
+        RandomAccessFile file = new RandomAccessFile(dexFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            for (CodePatch patch : patches) {
+                if (patch.newOffset == patch.oldCode.offset) {
+                    writeFully(channel, ByteBuffer.wrap(patch.newCode), patch.newOffset);
+                }
+            }
+            if (tail != null) {
+                tail.buffer.flip();
+                writeFully(channel, tail.buffer, classDataOff);
+                channel.truncate(fileSize);
+
+                writeU4(channel, fileSize, 32); // file_size
+                writeU4(channel, mapOff, 52); // map_off
+                writeU4(channel, fileSize - reader.getDataOff(), 104); // data_size
+                for (int i = 0; i < classDataOffsets.length; i++) {
+                    if (classDataOffsets[i] != 0) {
+                        writeU4(channel, classDataOffsets[i], reader.getClassDefsOff() + i * 32 + 24);
                     }
                 }
             }
+
+            // The checksum and signature cover the whole file, so they are recomputed from disk
+            DexDigest digest = new DexDigest(options.computeSignature);
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            long position = 32;
+            while (position < fileSize) {
+                chunk.clear();
+                int read = channel.read(chunk, position);
+                if (read < 0) throw new IOException("Unexpected end of " + dexFile);
+                chunk.flip();
+                digest.update(chunk);
+                position += read;
+            }
+            byte[] signature = digest.signature();
+            ByteWriter checksumAndSignature = new ByteWriter(24);
+            checksumAndSignature.writeU4(digest.checksum(signature));
+            checksumAndSignature.writeBytes(signature);
+            checksumAndSignature.buffer.flip();
+            writeFully(channel, checksumAndSignature.buffer, 8);
+        } finally {
+            file.close();
         }
-        int stringCount = sortedStrings.size();
-        int[] stringDataOffsets = new int[stringCount];
-        Map<String, Integer> stringIdMap = new HashMap<>();
-        
-        int stringIdsOffset = writer.getPosition();
-        mapBuilder.add(TYPE_STRING_ID_ITEM, stringCount, stringIdsOffset);
-        for (int i = 0; i < stringCount; i++) writer.writeU4(0);
+        return patches.size();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void writeU4(FileChannel channel, int value, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(value).flip();
+        writeFully(channel, buffer, position);
+    }
+
+    /**
+     * Matches a recompiled class against its class_def and class_data in the file and
+     * queues a CodePatch for every method whose encoded code_item differs. Returns
+     * false if anything other than method bodies changed.
+     */
+    private static boolean collectCodePatches(DexReader reader, DexPlan ids, ClassFile classFile,
+                                              List<CodePatch> patches) throws Exception {
+        ConstantPool pool = classFile.constantPool;
+        DexReader.ClassDef classDef = reader.findClassDef(classDescriptor(pool, classFile.identity.thisClassIndex));
+        if (classDef == null || !idsCover(classFile, ids)) return false;
+
+        ClassDefItem newDef = buildClassDef(classFile, ids.typeSection, ids.protoSection);
+        List<Integer> newInterfaces = (newDef.interfacesListIndex == -1)
+            ? Collections.<Integer>emptyList() : ids.protoSection.typeLists.get(newDef.interfacesListIndex);
+        int[] oldInterfaces = reader.getTypeList(classDef.interfacesOff);
+        if (newDef.accessFlags != classDef.accessFlags || newDef.superclassIdx != classDef.superclassIdx
+                || newInterfaces.size() != oldInterfaces.length) {
+            return false;
+        }
+        for (int i = 0; i < oldInterfaces.length; i++) {
+            if (newInterfaces.get(i) != oldInterfaces[i]) return false;
+        }
+
+        ClassDataItem newData = buildClassData(classFile, pool, ids.stringSection, ids.typeSection,
+                                               ids.protoSection, ids.fieldSection, ids.methodSection);
+        DexReader.ClassData oldData = reader.getClassData(classDef);
+        return sameFields(newData.staticFields, oldData.staticFields)
+            && sameFields(newData.instanceFields, oldData.instanceFields)
+            && addMethodPatches(reader, newData.directMethods, oldData.directMethods, patches)
+            && addMethodPatches(reader, newData.virtualMethods, oldData.virtualMethods, patches);
+    }
+
+    private static boolean sameFields(List<DexEncodedField> newFields, List<DexReader.EncodedField> oldFields) {
+        if (newFields.size() != oldFields.size()) return false;
+        for (int i = 0; i < newFields.size(); i++) {
+            if (newFields.get(i).fieldIdx != oldFields.get(i).fieldIdx
+                    || newFields.get(i).accessFlags != oldFields.get(i).accessFlags) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean addMethodPatches(DexReader reader, List<DexEncodedMethod> newMethods,
+                                            List<DexReader.EncodedMethod> oldMethods,
+                                            List<CodePatch> patches) {
+        if (newMethods.size() != oldMethods.size()) return false;
+        ByteBuffer dex = reader.buffer();
+        for (int i = 0; i < newMethods.size(); i++) {
+            DexEncodedMethod method = newMethods.get(i);
+            DexReader.EncodedMethod oldMethod = oldMethods.get(i);
+            if (method.methodIdx != oldMethod.methodIdx || method.accessFlags != oldMethod.accessFlags
+                    || (method.code == null) != (oldMethod.codeOff == 0)) {
+                return false;
+            }
+            if (method.code == null) continue;
+
+            ByteWriter writer = new ByteWriter(codeItemSize(method.code));
+            writeCodeItem(writer, method.code);
+            byte[] encoded = writer.buffer.array();
+            DexReader.Code oldCode = reader.getCode(oldMethod.codeOff);
+            boolean same = encoded.length == oldCode.byteSize;
+            for (int b = 0; same && b < encoded.length; b++) {
+                same = encoded[b] == dex.get(oldCode.offset + b);
+            }
+            if (!same) patches.add(new CodePatch(method.methodIdx, oldCode, encoded));
+        }
+        return true;
+    }
+
+    /** Converts a class_data_item read from a file back into one writeClassData can emit. */
+    private static ClassDataItem toClassDataItem(DexReader.ClassData classData, Map<Integer, Integer> newCodeOffsets) {
+        ClassDataItem item = new ClassDataItem();
+        for (DexReader.EncodedField field : classData.staticFields) {
+            item.staticFields.add(new DexEncodedField(field.fieldIdx, field.accessFlags));
+        }
+        for (DexReader.EncodedField field : classData.instanceFields) {
+            item.instanceFields.add(new DexEncodedField(field.fieldIdx, field.accessFlags));
+        }
+        for (DexReader.EncodedMethod method : classData.directMethods) {
+            Integer codeOff = newCodeOffsets.get(method.methodIdx);
+            item.directMethods.add(new DexEncodedMethod(method.methodIdx, method.accessFlags,
+                                                        codeOff != null ? codeOff : method.codeOff));
+        }
+        for (DexReader.EncodedMethod method : classData.virtualMethods) {
+            Integer codeOff = newCodeOffsets.get(method.methodIdx);
+            item.virtualMethods.add(new DexEncodedMethod(method.methodIdx, method.accessFlags,
+                                                         codeOff != null ? codeOff : method.codeOff));
+        }
+        return item;
+    }
+
+    /**
+     * Rebuilds the ID lookup maps of an existing .dex file, so recompiled classes
+     * translate against its string, type, proto, field and method indexes.
+     */
+    static DexPlan readIdSections(DexReader reader) throws Exception {
+        DexPlan ids = new DexPlan();
+
+        int stringCount = reader.getStringCount();
+        List<String> strings = new ArrayList<>(stringCount);
+        Map<String, Integer> stringIdMap = new HashMap<>(stringCount * 2);
+        for (int i = 0; i < stringCount; i++) {
+            String value = reader.getString(i);
+            strings.add(value);
+            stringIdMap.put(value, i);
+        }
+        ids.stringSection = new StringSection(stringIdMap, stringCount, 0);
+        ids.stringSection.strings = strings;
+
+        int typeCount = reader.getTypeCount();
+        Map<String, Integer> typeIdMap = new HashMap<>(typeCount * 2);
+        int[] typeStringIds = new int[typeCount];
+        for (int i = 0; i < typeCount; i++) {
+            typeStringIds[i] = reader.getTypeDescriptorIdx(i);
+            typeIdMap.put(strings.get(typeStringIds[i]), i);
+        }
+        ids.typeSection = new TypeSection(typeIdMap, typeCount, 0);
+        ids.typeSection.typeStringIds = typeStringIds;
+
+        int protoCount = reader.getProtoCount();
+        Map<MethodDescriptor, Integer> protoIdMap = new HashMap<>(protoCount * 2);
+        for (int i = 0; i < protoCount; i++) {
+            StringBuilder descriptor = new StringBuilder("(");
+            for (int typeIdx : reader.getProtoParameters(i)) {
+                descriptor.append(strings.get(typeStringIds[typeIdx]));
+            }
+            descriptor.append(')').append(strings.get(typeStringIds[reader.getProtoReturnTypeIdx(i)]));
+            protoIdMap.put(parseMethodDescriptor(descriptor.toString()), i);
+        }
+        ids.protoSection = new ProtoSection(protoIdMap, protoCount, 0);
+
+        int fieldCount = reader.getFieldCount();
+        Map<DexFieldId, Integer> fieldIdMap = new HashMap<>(fieldCount * 2);
+        for (int i = 0; i < fieldCount; i++) {
+            fieldIdMap.put(new DexFieldId(reader.getFieldClassIdx(i), reader.getFieldTypeIdx(i),
+                                          reader.getFieldNameIdx(i)), i);
+        }
+        ids.fieldSection = new FieldSection(fieldIdMap, fieldCount, 0);
+
+        int methodCount = reader.getMethodCount();
+        Map<DexMethodId, Integer> methodIdMap = new HashMap<>(methodCount * 2);
+        for (int i = 0; i < methodCount; i++) {
+            methodIdMap.put(new DexMethodId(reader.getMethodClassIdx(i), reader.getMethodProtoIdx(i),
+                                            reader.getMethodNameIdx(i)), i);
+        }
+        ids.methodSection = new MethodSection(methodIdMap, methodCount, 0);
+        return ids;
+    }
+
+    /** Whether every ID a class needs already exists in the given sections. */
+    static boolean idsCover(ClassFile classFile, DexPlan ids) throws Exception {
+        List<ClassFile> single = Collections.singletonList(classFile);
+        StringSection strings = collectStrings(single);
+        for (String value : strings.strings) {
+            if (!ids.stringSection.stringIdMap.containsKey(value)) return false;
+        }
+        TypeSection types = collectTypes(single, strings);
+        String[] typeNames = new String[types.typeIdsSize];
+        for (int i = 0; i < typeNames.length; i++) {
+            typeNames[i] = strings.strings.get(types.typeStringIds[i]);
+            if (!ids.typeSection.typeIdMap.containsKey(typeNames[i])) return false;
+        }
+        ProtoSection protos = collectProtos(single, strings, types);
+        MethodDescriptor[] protoDescriptors = new MethodDescriptor[protos.protoIdsSize];
+        for (Map.Entry<MethodDescriptor, Integer> entry : protos.protoIdMap.entrySet()) {
+            if (!ids.protoSection.protoIdMap.containsKey(entry.getKey())) return false;
+            protoDescriptors[entry.getValue()] = entry.getKey();
+        }
+        for (DexFieldId fieldId : collectFields(single, strings, types).fieldIds) {
+            DexFieldId key = new DexFieldId(ids.typeSection.typeIdMap.get(typeNames[fieldId.classIdx]),
+                                            ids.typeSection.typeIdMap.get(typeNames[fieldId.typeIdx]),
+                                            ids.stringSection.stringIdMap.get(strings.strings.get(fieldId.nameIdx)));
+            if (!ids.fieldSection.fieldIdMap.containsKey(key)) return false;
+        }
+        for (DexMethodId methodId : collectMethods(single, strings, types, protos).methodIds) {
+            DexMethodId key = new DexMethodId(ids.typeSection.typeIdMap.get(typeNames[methodId.classIdx]),
+                                              ids.protoSection.protoIdMap.get(protoDescriptors[methodId.protoIdx]),
+                                              ids.stringSection.stringIdMap.get(strings.strings.get(methodId.nameIdx)));
+            if (!ids.methodSection.methodIdMap.containsKey(key)) return false;
+        }
+        return true;
+    }
+
+    // =========================================================================
+    // .DEX ID SECTION COLLECTION
+    // =========================================================================
 
-        int stringDataStartOffset = writer.getPosition();
-        int stringIndex = 0;
+    /** Collects and sorts all strings, assigning string IDs. */
+    public static StringSection collectStrings(List<ClassFile> classFiles) throws Exception {
+        return collectStrings(classFiles, ConversionContext.forCurrentThread());
+    }
+
+    static StringSection collectStrings(List<ClassFile> classFiles, ConversionContext context) throws Exception {
+        Set<String> sortedStrings = context.strings;
+        sortedStrings.clear();
+        for (ClassFile classFile : classFiles) {
+            addClassStrings(sortedStrings, classFile);
+        }
+        return buildStringSection(sortedStrings, context);
+    }
+
+    /** Sorts a collected string set into a string section. */
+    static StringSection buildStringSection(Set<String> sortedStrings, ConversionContext context) {
+        // Only strings missing from the framework dictionary need sorting;
+        // String.compareTo orders by UTF-16 code units, which is the dex string_ids order
+        boolean[] usedFramework = context.usedFramework;
+        Arrays.fill(usedFramework, false);
+        List<String> newStrings = context.newStrings;
+        newStrings.clear();
         for (String s : sortedStrings) {
+            Integer frameworkIndex = FrameworkDictionary.INDEX.get(s);
+            if (frameworkIndex != null) { usedFramework[frameworkIndex] = true; }
+            else { newStrings.add(s); }
+        }
+        Collections.sort(newStrings);
+
+        int stringCount = sortedStrings.size();
+        Map<String, Integer> stringIdMap = new HashMap<>();
+        StringSection section = new StringSection(stringIdMap, stringCount, 0);
+        section.strings = new ArrayList<>(stringCount);
+        section.encoded = new byte[stringCount][];
+
+        int frameworkIndex = 0;
+        int newIndex = 0;
+        for (int stringIndex = 0; stringIndex < stringCount; stringIndex++) {
+            while (frameworkIndex < usedFramework.length && !usedFramework[frameworkIndex]) frameworkIndex++;
+            String s;
+            if (frameworkIndex < usedFramework.length &&
+                (newIndex == newStrings.size() ||
+                 FrameworkDictionary.STRINGS[frameworkIndex].compareTo(newStrings.get(newIndex)) < 0)) {
+                s = FrameworkDictionary.STRINGS[frameworkIndex];
+                section.encoded[stringIndex] = FrameworkDictionary.ENCODED[frameworkIndex];
+                frameworkIndex++;
+            } else {
+                s = newStrings.get(newIndex++);
+            }
+            section.strings.add(s);
             stringIdMap.put(s, stringIndex);
-            stringDataOffsets[stringIndex] = writer.getPosition();
-            byte[] bytes = s.getBytes("UTF-8");
-            writer.writeUleb128(bytes.length);
-            writer.writeBytes(bytes);
-            writer.writeU1(0); // Null terminator
-            stringIndex++;
-        }
-        mapBuilder.add(TYPE_STRING_DATA_ITEM, 1, stringDataStartOffset);
-
-        int currentPosition = writer.getPosition();
-        writer.buffer.position(stringIdsOffset);
-        for (int offset : stringDataOffsets) writer.writeU4(offset);
-        writer.buffer.position(currentPosition);
-
-        writer.writeU4At(0x38, stringCount);
-        writer.writeU4At(0x3C, stringIdsOffset);
-        
-        return new StringSection(stringIdMap, stringCount, stringIdsOffset);
+        }
+        return section;
+    }
+
+    /** Adds the strings one class contributes: its constants, class descriptors, shorties and types. */
+    private static void addClassStrings(Set<String> sortedStrings, ClassFile classFile) throws Exception {
+        ConstantPool constantPool = classFile.constantPool;
+        for (int i = 1; i < constantPool.size(); i++) {
+            if (constantPool.tag(i) == CONSTANT_Utf8) {
+                sortedStrings.add(constantPool.utf8(i));
+            }
+        }
+
+        // Add class descriptors, shorty strings and type descriptors from method/field descriptors
+        for (int i = 1; i < constantPool.size(); i++) {
+            if (constantPool.tag(i) == CONSTANT_Class) {
+                sortedStrings.add(classDescriptor(constantPool, i));
+            } else if (constantPool.tag(i) == CONSTANT_Methodref ||
+                constantPool.tag(i) == CONSTANT_InterfaceMethodref ||
+                constantPool.tag(i) == CONSTANT_Fieldref) {
+                String descriptorString = constantPool.refDescriptor(i);
+
+                if (constantPool.tag(i) == CONSTANT_Fieldref) {
+                    sortedStrings.add(descriptorString);
+                } else {
+                    MethodDescriptor desc = parseMethodDescriptor(descriptorString);
+                    sortedStrings.add(desc.shorty);
+                    addDescriptorTypes(sortedStrings, desc);
+                }
+            }
+        }
+        for (MethodInfo method : classFile.methods) {
+            MethodDescriptor desc = parseMethodDescriptor(constantPool.utf8(method.descriptorIndex));
+            sortedStrings.add(desc.shorty);
+            addDescriptorTypes(sortedStrings, desc);
+        }
+        addArrayTypes(sortedStrings, classFile);
+    }
+
+    /** Adds the return and parameter types of a method descriptor to a set. */
+    private static void addDescriptorTypes(Set<String> types, MethodDescriptor desc) {
+        types.add(desc.returnType);
+        for (String param : desc.parameters) {
+            types.add(param);
+        }
+    }
+
+    /** Collects and sorts all types, assigning type IDs. */
+    public static TypeSection collectTypes(List<ClassFile> classFiles, StringSection stringSection) throws Exception {
+        return collectTypes(classFiles, stringSection, ConversionContext.forCurrentThread());
+    }
+
+    static TypeSection collectTypes(List<ClassFile> classFiles, StringSection stringSection,
+                                    ConversionContext context) throws Exception {
+        Set<String> sortedTypeNames = context.typeNames;
+        sortedTypeNames.clear();
+        for (ClassFile classFile : classFiles) {
+            addClassTypes(sortedTypeNames, classFile);
+        }
+        return buildTypeSection(sortedTypeNames, stringSection, context);
+    }
+
+    /** Sorts a collected set of type descriptors into a type section. */
+    static TypeSection buildTypeSection(Set<String> sortedTypeNames, StringSection stringSection,
+                                        ConversionContext context) throws Exception {
+        // Type IDs are ordered by string ID, so mark the descriptors and sweep the string table once
+        boolean[] isType = context.isType(stringSection.stringIdsSize);
+        for (String typeName : sortedTypeNames) {
+            Integer stringId = stringSection.stringIdMap.get(typeName);
+            if (stringId == null) throw new Exception("Missing string ID for type: " + typeName);
+            isType[stringId] = true;
+        }
+
+        int typeCount = sortedTypeNames.size();
+        Map<String, Integer> typeIdMap = new HashMap<>();
+        TypeSection section = new TypeSection(typeIdMap, typeCount, 0);
+        section.typeStringIds = new int[typeCount];
+
+        int typeIndex = 0;
+        for (int stringId = 0; stringId < stringSection.stringIdsSize; stringId++) {
+            if (!isType[stringId]) continue;
+            section.typeStringIds[typeIndex] = stringId;
+            typeIdMap.put(stringSection.strings.get(stringId), typeIndex);
+            typeIndex++;
+        }
+        return section;
     }
 
-    /** Collects/writes all class types and records them. */
-    public static TypeSection writeTypes(ByteWriter writer, CpInfo[] constantPool, 
-                                         StringSection stringSection,
-                                         MapListBuilder mapBuilder) throws Exception {
-        Set<String> sortedTypeNames = new TreeSet<>();
+    /** Adds the types one class references or declares. */
+    private static void addClassTypes(Set<String> sortedTypeNames, ClassFile classFile) throws Exception {
+        ConstantPool constantPool = classFile.constantPool;
 
         // Add object types from CONSTANT_Class
-        for (int i = 1; i < constantPool.length; i++) {
-            if (constantPool[i] != null && constantPool[i].tag == CONSTANT_Class) {
-                ConstantClassInfo classInfo = (ConstantClassInfo) constantPool[i];
-                ConstantUtf8Info utf8Info = (ConstantUtf8Info) constantPool[classInfo.nameIndex];
-                sortedTypeNames.add(utf8Info.value);
+        for (int i = 1; i < constantPool.size(); i++) {
+            if (constantPool.tag(i) == CONSTANT_Class) {
+                sortedTypeNames.add(classDescriptor(constantPool, i));
             }
         }
 
         // Add types from all method/field descriptors (primitives, arrays)
-        for (int i = 1; i < constantPool.length; i++) {
-            if (constantPool[i] == null) continue;
-            if (constantPool[i].tag == CONSTANT_Methodref || 
-                constantPool[i].tag == CONSTANT_InterfaceMethodref ||
-                constantPool[i].tag == CONSTANT_Fieldref) {
-                ConstantRefInfo ref = (ConstantRefInfo) constantPool[i];
-                ConstantNameAndTypeInfo nat = (ConstantNameAndTypeInfo) constantPool[ref.nameAndTypeIndex];
-                String desc = ((ConstantUtf8Info) constantPool[nat.descriptorIndex]).value;
+        for (int i = 1; i < constantPool.size(); i++) {
+            if (constantPool.tag(i) == CONSTANT_Methodref || 
+                constantPool.tag(i) == CONSTANT_InterfaceMethodref ||
+                constantPool.tag(i) == CONSTANT_Fieldref) {
+                String desc = constantPool.refDescriptor(i);
 
                 // Extract types from descriptor
-                if (constantPool[i].tag == CONSTANT_Fieldref) {
+                if (constantPool.tag(i) == CONSTANT_Fieldref) {
                     // Field: type
                     sortedTypeNames.add(desc);
                 } else {
                     // Method: (params)return
-                    MethodDescriptor md = parseMethodDescriptor(desc);
-                    sortedTypeNames.add(md.returnType);
-                    for (String param : md.parameters) {
-                        sortedTypeNames.add(param);
-                    }
+                    addDescriptorTypes(sortedTypeNames, parseMethodDescriptor(desc));
+                }
+            }
+        }
+
+        // Add types of the class's own fields and methods
+        for (FieldInfo field : classFile.fields) {
+            sortedTypeNames.add(constantPool.utf8(field.descriptorIndex));
+        }
+        for (MethodInfo method : classFile.methods) {
+            addDescriptorTypes(sortedTypeNames,
+                parseMethodDescriptor(constantPool.utf8(method.descriptorIndex)));
+        }
+        addArrayTypes(sortedTypeNames, classFile);
+    }
+
+    /**
+     * Adds the array types that newarray and anewarray create. No descriptor has to
+     * mention them, so the method code is walked instruction by instruction.
+     */
+    private static void addArrayTypes(Set<String> types, ClassFile classFile) throws Exception {
+        ConstantPool constantPool = classFile.constantPool;
+        for (MethodInfo method : classFile.methods) {
+            AttributeInfo codeAttrInfo = findAttribute(constantPool, method.attributes, "Code");
+            if (codeAttrInfo == null) continue;
+            // Code attribute: max_stack u2, max_locals u2, code_length u4, code[]
+            byte[] info = codeAttrInfo.info;
+            int codeLength = readJavaS4(info, 4);
+            for (int pc = 0; pc < codeLength; pc += javaInstructionLength(info, 8, pc)) {
+                int opcode = info[8 + pc] & 0xFF;
+                if (opcode == JAVA_NEWARRAY) {
+                    String typeName = primitiveArrayDescriptor(info[8 + pc + 1] & 0xFF);
+                    if (typeName != null) types.add(typeName);
+                } else if (opcode == JAVA_ANEWARRAY) {
+                    int classIndex = ((info[8 + pc + 1] & 0xFF) << 8) | (info[8 + pc + 2] & 0xFF);
+                    types.add("[" + classDescriptor(constantPool, classIndex));
                 }
             }
         }
+    }
 
-        int typeCount = sortedTypeNames.size();
-        Map<String, Integer> typeIdMap = new HashMap<>();
+    /** Collects all method protos and their parameter type_lists, assigning proto IDs. */
+    public static ProtoSection collectProtos(List<ClassFile> classFiles,
+                                             StringSection stringSection, TypeSection typeSection) throws Exception {
+        return collectProtos(classFiles, stringSection, typeSection, ConversionContext.forCurrentThread());
+    }
 
-        writer.alignTo4();
-        int typeIdsOffset = writer.getPosition();
-        mapBuilder.add(TYPE_TYPE_ID_ITEM, typeCount, typeIdsOffset);
-        
-        int typeIndex = 0;
-        for (String typeName : sortedTypeNames) {
-            Integer stringId = stringSection.stringIdMap.get(typeName);
-            if (stringId == null) throw new Exception("Missing string ID for type: " + typeName);
-            writer.writeU4(stringId);
-            typeIdMap.put(typeName, typeIndex);
-            typeIndex++;
+    static ProtoSection collectProtos(List<ClassFile> classFiles, StringSection stringSection,
+                                      TypeSection typeSection, ConversionContext context) throws Exception {
+        Set<MethodDescriptor> descriptors = context.protos;
+        descriptors.clear();
+        for (ClassFile classFile : classFiles) {
+            addClassProtos(descriptors, classFile);
         }
-        
-        writer.writeU4At(0x40, typeCount);
-        writer.writeU4At(0x44, typeIdsOffset);
-        return new TypeSection(typeIdMap, typeCount, typeIdsOffset);
-    }
-
-    /** Collects/writes all method protos and records them. */
-    public static ProtoSection writeProtos(ByteWriter writer, CpInfo[] constantPool,
-                                           StringSection stringSection, TypeSection typeSection,
-                                           MapListBuilder mapBuilder) throws Exception {
-        Map<MethodDescriptor, Integer> protoIdMap = new LinkedHashMap<>();
-        Map<List<Integer>, Integer> typeListOffsetMap = new HashMap<>();
-        for (int i = 1; i < constantPool.length; i++) {
-            if (constantPool[i] == null || (constantPool[i].tag != CONSTANT_Methodref && 
-                                            constantPool[i].tag != CONSTANT_InterfaceMethodref)) continue;
-            ConstantRefInfo methodRef = (ConstantRefInfo) constantPool[i];
-            ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) constantPool[methodRef.nameAndTypeIndex];
-            String descriptorString = ((ConstantUtf8Info) constantPool[nameAndType.descriptorIndex]).value;
-            MethodDescriptor desc = parseMethodDescriptor(descriptorString);
-            if (!protoIdMap.containsKey(desc)) {
-                protoIdMap.put(desc, protoIdMap.size());
-            }
-        }
-        int protoCount = protoIdMap.size();
-        int[] shortyStringIds = new int[protoCount];
-        int[] returnTypeIds = new int[protoCount];
-        int[] paramListOffsets = new int[protoCount];
-
-        writer.alignTo4();
-        int typeListStartOffset = writer.getPosition();
-        int typeListCount = 0;
-        
-        for (MethodDescriptor desc : protoIdMap.keySet()) {
-            int protoId = protoIdMap.get(desc);
-            if (desc.parameters.isEmpty()) {
-                paramListOffsets[protoId] = 0;
-            } else {
-                List<Integer> paramTypeIds = new ArrayList<>();
-                for (String paramString : desc.parameters) {
-                    Integer paramTypeId = typeSection.typeIdMap.get(paramString);
-                    if (paramTypeId == null) {
-                        throw new Exception("Missing type ID for parameter: " + paramString);
-                    }
-                    paramTypeIds.add(paramTypeId);
-                }
-                if (typeListOffsetMap.containsKey(paramTypeIds)) {
-                    paramListOffsets[protoId] = typeListOffsetMap.get(paramTypeIds);
-                } else {
-                    int newOffset = writer.getPosition();
-                    writer.writeU4(paramTypeIds.size());
-                    for (Integer typeId : paramTypeIds) writer.writeU2(typeId);
-                    if (paramTypeIds.size() % 2 != 0) writer.writeU2(0);
-                    paramListOffsets[protoId] = newOffset;
-                    typeListOffsetMap.put(paramTypeIds, newOffset);
-                    typeListCount++;
-                }
-            }
-            String shorty = createShorty(desc);
-            shortyStringIds[protoId] = stringSection.stringIdMap.get(shorty);
+        return buildProtoSection(descriptors, stringSection, typeSection, context);
+    }
+
+    /** Sorts a collected set of method descriptors into a proto section. */
+    static ProtoSection buildProtoSection(Set<MethodDescriptor> descriptors, StringSection stringSection,
+                                          TypeSection typeSection, ConversionContext context) throws Exception {
+        // proto_ids are sorted by return type ID, then by parameter type IDs
+        Map<MethodDescriptor, int[]> sortKeys = context.protoSortKeys;
+        sortKeys.clear();
+        for (MethodDescriptor desc : descriptors) {
+            int[] key = new int[desc.parameters.size() + 1];
             Integer returnTypeId = typeSection.typeIdMap.get(desc.returnType);
             if (returnTypeId == null) {
                 throw new Exception("Missing type ID for return type: " + desc.returnType);
             }
-            returnTypeIds[protoId] = returnTypeId;
+            key[0] = returnTypeId;
+            for (int p = 0; p < desc.parameters.size(); p++) {
+                Integer paramTypeId = typeSection.typeIdMap.get(desc.parameters.get(p));
+                if (paramTypeId == null) {
+                    throw new Exception("Missing type ID for parameter: " + desc.parameters.get(p));
+                }
+                key[p + 1] = paramTypeId;
+            }
+            sortKeys.put(desc, key);
+        }
+        List<MethodDescriptor> sortedProtos = new ArrayList<>(descriptors);
+        sortedProtos.sort((a, b) -> compareProtoKeys(sortKeys.get(a), sortKeys.get(b)));
+
+        int protoCount = sortedProtos.size();
+        Map<MethodDescriptor, Integer> protoIdMap = new HashMap<>();
+        ProtoSection section = new ProtoSection(protoIdMap, protoCount, 0);
+        section.shortyStringIds = new int[protoCount];
+        section.returnTypeIds = new int[protoCount];
+        section.typeListIndex = new int[protoCount];
+        
+        for (int protoId = 0; protoId < protoCount; protoId++) {
+            MethodDescriptor desc = sortedProtos.get(protoId);
+            int[] key = sortKeys.get(desc);
+            protoIdMap.put(desc, protoId);
+            if (desc.parameters.isEmpty()) {
+                section.typeListIndex[protoId] = -1;
+            } else {
+                List<Integer> paramTypeIds = new ArrayList<>(key.length - 1);
+                for (int p = 1; p < key.length; p++) paramTypeIds.add(key[p]);
+                section.typeListIndex[protoId] = section.internTypeList(paramTypeIds);
+            }
+            section.shortyStringIds[protoId] = stringSection.stringIdMap.get(desc.shorty);
+            section.returnTypeIds[protoId] = key[0];
         }
-        mapBuilder.add(TYPE_TYPE_LIST, typeListCount, typeListStartOffset);
+        return section;
+    }
 
-        writer.alignTo4();
-        int protoIdsOffset = writer.getPosition();
-        mapBuilder.add(TYPE_PROTO_ID_ITEM, protoCount, protoIdsOffset);
-        for (int i = 0; i < protoCount; i++) {
-            writer.writeU4(shortyStringIds[i]);
-            writer.writeU4(returnTypeIds[i]);
-            writer.writeU4(paramListOffsets[i]);
+    /** Compares (return type, parameter types...) keys; a shorter list sorts first on a shared prefix. */
+    private static int compareProtoKeys(int[] a, int[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i]) return Integer.compare(a[i], b[i]);
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /** Adds the protos one class references or declares. */
+    private static void addClassProtos(Set<MethodDescriptor> descriptors, ClassFile classFile) {
+        ConstantPool constantPool = classFile.constantPool;
+        for (int i = 1; i < constantPool.size(); i++) {
+            if ((constantPool.tag(i) != CONSTANT_Methodref && 
+                                            constantPool.tag(i) != CONSTANT_InterfaceMethodref)) continue;
+            String descriptorString = constantPool.refDescriptor(i);
+            descriptors.add(parseMethodDescriptor(descriptorString));
+        }
+        for (MethodInfo method : classFile.methods) {
+            descriptors.add(parseMethodDescriptor(constantPool.utf8(method.descriptorIndex)));
         }
-        
-        writer.writeU4At(0x48, protoCount);
-        writer.writeU4At(0x4C, protoIdsOffset);
-        return new ProtoSection(protoIdMap, protoCount, protoIdsOffset);
     }
     
-    /** Collects/writes the field_id_list and records it. */
-    public static FieldSection writeFields(ByteWriter writer, CpInfo[] constantPool,
-                                           StringSection stringSection, TypeSection typeSection,
-                                           MapListBuilder mapBuilder) throws Exception {
-        Set<DexFieldId> sortedFields = new TreeSet<>();
-        Map<String, Integer> stringIdMap = stringSection.stringIdMap;
-        Map<String, Integer> typeIdMap = typeSection.typeIdMap;
-        for (int i = 1; i < constantPool.length; i++) {
-            if (constantPool[i] == null || constantPool[i].tag != CONSTANT_Fieldref) continue;
-            ConstantRefInfo fieldRef = (ConstantRefInfo) constantPool[i];
-            ConstantClassInfo classInfo = (ConstantClassInfo) constantPool[fieldRef.classIndex];
-            ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) constantPool[fieldRef.nameAndTypeIndex];
-            String className = ((ConstantUtf8Info) constantPool[classInfo.nameIndex]).value;
-            String fieldName = ((ConstantUtf8Info) constantPool[nameAndType.nameIndex]).value;
-            String fieldType = ((ConstantUtf8Info) constantPool[nameAndType.descriptorIndex]).value;
-            Integer classDexIdx = typeIdMap.get(className);
+    /** Collects and sorts the field_id_list, assigning field IDs. */
+    public static FieldSection collectFields(List<ClassFile> classFiles,
+                                             StringSection stringSection, TypeSection typeSection) throws Exception {
+        return collectFields(classFiles, stringSection, typeSection, ConversionContext.forCurrentThread());
+    }
+
+    static FieldSection collectFields(List<ClassFile> classFiles, StringSection stringSection,
+                                      TypeSection typeSection, ConversionContext context) throws Exception {
+        Set<DexFieldId> sortedFields = context.fields;
+        sortedFields.clear();
+        for (ClassFile classFile : classFiles) {
+            addClassFields(sortedFields, classFile, stringSection.stringIdMap, typeSection.typeIdMap);
+        }
+        return buildFieldSection(sortedFields);
+    }
+
+    /** Numbers a sorted set of field IDs. */
+    static FieldSection buildFieldSection(Set<DexFieldId> sortedFields) {
+        int fieldCount = sortedFields.size();
+        Map<DexFieldId, Integer> fieldIdMap = new HashMap<>();
+        FieldSection section = new FieldSection(fieldIdMap, fieldCount, 0);
+        section.fieldIds = sortedFields.toArray(new DexFieldId[0]);
+        for (int fieldIndex = 0; fieldIndex < fieldCount; fieldIndex++) {
+            fieldIdMap.put(section.fieldIds[fieldIndex], fieldIndex);
+        }
+        return section;
+    }
+
+    /** Adds the fields one class references or declares. */
+    private static void addClassFields(Set<DexFieldId> sortedFields, ClassFile classFile,
+                                       Map<String, Integer> stringIdMap, Map<String, Integer> typeIdMap) {
+        ConstantPool constantPool = classFile.constantPool;
+        for (int i = 1; i < constantPool.size(); i++) {
+            if (constantPool.tag(i) != CONSTANT_Fieldref) continue;
+            String fieldName = constantPool.refName(i);
+            String fieldType = constantPool.refDescriptor(i);
+            Integer classDexIdx = typeIdMap.get(classDescriptor(constantPool, constantPool.refClassIndex(i)));
             Integer typeDexIdx = typeIdMap.get(fieldType);
             Integer nameDexIdx = stringIdMap.get(fieldName);
             if (classDexIdx == null || typeDexIdx == null || nameDexIdx == null) continue;
             sortedFields.add(new DexFieldId(classDexIdx, typeDexIdx, nameDexIdx));
         }
 
-        writer.alignTo4();
-        int fieldIdsOffset = writer.getPosition();
-        int fieldCount = sortedFields.size();
-        Map<DexFieldId, Integer> fieldIdMap = new HashMap<>();
-        mapBuilder.add(TYPE_FIELD_ID_ITEM, fieldCount, fieldIdsOffset);
-
-        int fieldIndex = 0;
-        for (DexFieldId fieldId : sortedFields) {
-            writer.writeU2(fieldId.classIdx);
-            writer.writeU2(fieldId.typeIdx);
-            writer.writeU4(fieldId.nameIdx);
-            fieldIdMap.put(fieldId, fieldIndex++);
+        // The class's own fields belong to it even when nothing references them
+        int thisClassDexIdx = typeIdMap.get(classDescriptor(constantPool, classFile.identity.thisClassIndex));
+        for (FieldInfo field : classFile.fields) {
+            String fieldName = constantPool.utf8(field.nameIndex);
+            String fieldType = constantPool.utf8(field.descriptorIndex);
+            sortedFields.add(new DexFieldId(thisClassDexIdx, typeIdMap.get(fieldType), stringIdMap.get(fieldName)));
         }
-        
-        writer.writeU4At(0x50, fieldCount);
-        writer.writeU4At(0x54, fieldIdsOffset);
-        return new FieldSection(fieldIdMap, fieldCount, fieldIdsOffset);
     }
     
-    /** Collects/writes the method_id_list and records it. */
-    public static MethodSection writeMethods(ByteWriter writer, CpInfo[] constantPool,
-                                             StringSection stringSection, TypeSection typeSection,
-                                             ProtoSection protoSection,
-                                             MapListBuilder mapBuilder) throws Exception {
-        Set<DexMethodId> sortedMethods = new TreeSet<>();
-        Map<String, Integer> stringIdMap = stringSection.stringIdMap;
-        Map<String, Integer> typeIdMap = typeSection.typeIdMap;
-        Map<MethodDescriptor, Integer> protoIdMap = protoSection.protoIdMap;
-        for (int i = 1; i < constantPool.length; i++) {
-            if (constantPool[i] == null || (constantPool[i].tag != CONSTANT_Methodref &&
-                                            constantPool[i].tag != CONSTANT_InterfaceMethodref)) continue;
-            ConstantRefInfo methodRef = (ConstantRefInfo) constantPool[i];
-            ConstantClassInfo classInfo = (ConstantClassInfo) constantPool[methodRef.classIndex];
-            ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) constantPool[methodRef.nameAndTypeIndex];
-            String className = ((ConstantUtf8Info) constantPool[classInfo.nameIndex]).value;
-            String methodName = ((ConstantUtf8Info) constantPool[nameAndType.nameIndex]).value;
-            String methodDesc = ((ConstantUtf8Info) constantPool[nameAndType.descriptorIndex]).value;
-            Integer classDexIdx = typeIdMap.get(className);
+    /** Collects and sorts the method_id_list, assigning method IDs. */
+    public static MethodSection collectMethods(List<ClassFile> classFiles,
+                                               StringSection stringSection, TypeSection typeSection,
+                                               ProtoSection protoSection) throws Exception {
+        return collectMethods(classFiles, stringSection, typeSection, protoSection,
+                              ConversionContext.forCurrentThread());
+    }
+
+    static MethodSection collectMethods(List<ClassFile> classFiles, StringSection stringSection,
+                                        TypeSection typeSection, ProtoSection protoSection,
+                                        ConversionContext context) throws Exception {
+        Set<DexMethodId> sortedMethods = context.methods;
+        sortedMethods.clear();
+        for (ClassFile classFile : classFiles) {
+            addClassMethods(sortedMethods, classFile, stringSection.stringIdMap,
+                            typeSection.typeIdMap, protoSection.protoIdMap);
+        }
+        return buildMethodSection(sortedMethods);
+    }
+
+    /** Numbers a sorted set of method IDs. */
+    static MethodSection buildMethodSection(Set<DexMethodId> sortedMethods) {
+        int methodCount = sortedMethods.size();
+        Map<DexMethodId, Integer> methodIdMap = new HashMap<>();
+        MethodSection section = new MethodSection(methodIdMap, methodCount, 0);
+        section.methodIds = sortedMethods.toArray(new DexMethodId[0]);
+        for (int methodIndex = 0; methodIndex < methodCount; methodIndex++) {
+            methodIdMap.put(section.methodIds[methodIndex], methodIndex);
+        }
+        return section;
+    }
+
+    /** Adds the methods one class references or declares. */
+    private static void addClassMethods(Set<DexMethodId> sortedMethods, ClassFile classFile,
+                                        Map<String, Integer> stringIdMap, Map<String, Integer> typeIdMap,
+                                        Map<MethodDescriptor, Integer> protoIdMap) {
+        ConstantPool constantPool = classFile.constantPool;
+        for (int i = 1; i < constantPool.size(); i++) {
+            if ((constantPool.tag(i) != CONSTANT_Methodref &&
+                                            constantPool.tag(i) != CONSTANT_InterfaceMethodref)) continue;
+            String methodName = constantPool.refName(i);
+            String methodDesc = constantPool.refDescriptor(i);
+            Integer classDexIdx = typeIdMap.get(classDescriptor(constantPool, constantPool.refClassIndex(i)));
             Integer nameDexIdx = stringIdMap.get(methodName);
             MethodDescriptor desc = parseMethodDescriptor(methodDesc);
             Integer protoDexIdx = protoIdMap.get(desc);
@@ -1432,150 +3890,286 @@ public class PureCodeDEXGenerator {
             sortedMethods.add(new DexMethodId(classDexIdx, protoDexIdx, nameDexIdx));
         }
 
-        writer.alignTo4();
-        int methodIdsOffset = writer.getPosition();
-        int methodCount = sortedMethods.size();
-        Map<DexMethodId, Integer> methodIdMap = new HashMap<>();
-        mapBuilder.add(TYPE_METHOD_ID_ITEM, methodCount, methodIdsOffset);
-
-        int methodIndex = 0;
-        for (DexMethodId methodId : sortedMethods) {
-            writer.writeU2(methodId.classIdx);
-            writer.writeU2(methodId.protoIdx);
-            writer.writeU4(methodId.nameIdx);
-            methodIdMap.put(methodId, methodIndex++);
+        // The class's own methods belong to it even when nothing references them
+        int thisClassDexIdx = typeIdMap.get(classDescriptor(constantPool, classFile.identity.thisClassIndex));
+        for (MethodInfo method : classFile.methods) {
+            String methodName = constantPool.utf8(method.nameIndex);
+            MethodDescriptor desc = parseMethodDescriptor(constantPool.utf8(method.descriptorIndex));
+            sortedMethods.add(new DexMethodId(thisClassDexIdx, protoIdMap.get(desc), stringIdMap.get(methodName)));
         }
-        
-        writer.writeU4At(0x58, methodCount);
-        writer.writeU4At(0x5C, methodIdsOffset);
-        return new MethodSection(methodIdMap, methodCount, methodIdsOffset);
     }
     
-    /** Writes the class_def_item list and records it. */
-    public static ClassDefSection writeClassDef(ByteWriter writer, ClassFile classFile, 
-                                                TypeSection typeSection, StringSection stringSection,
-                                                MapListBuilder mapBuilder) throws Exception {
-        ConstantClassInfo thisClassInfo = (ConstantClassInfo) classFile.constantPool[classFile.identity.thisClassIndex];
-        String thisClassName = ((ConstantUtf8Info) classFile.constantPool[thisClassInfo.nameIndex]).value;
-        ConstantClassInfo superClassInfo = (ConstantClassInfo) classFile.constantPool[classFile.identity.superClassIndex];
-        String superClassName = ((ConstantUtf8Info) classFile.constantPool[superClassInfo.nameIndex]).value;
-        Integer classDexIdx = typeSection.typeIdMap.get(thisClassName);
-        Integer superclassDexIdx = typeSection.typeIdMap.get(superClassName);
+    /** Builds the class_def_item for a class; interfaces_off and class_data_off are filled in by the layout. */
+    public static ClassDefItem buildClassDef(ClassFile classFile, TypeSection typeSection,
+                                             ProtoSection protoSection) throws Exception {
+        Integer classDexIdx = typeSection.typeIdMap.get(
+            classDescriptor(classFile.constantPool, classFile.identity.thisClassIndex));
+        // Only java/lang/Object has no superclass (super_class 0)
+        Integer superclassDexIdx = (classFile.identity.superClassIndex == 0) ? ClassDefItem.NO_INDEX
+            : typeSection.typeIdMap.get(classDescriptor(classFile.constantPool, classFile.identity.superClassIndex));
         if (classDexIdx == null || superclassDexIdx == null) {
             throw new Exception("Missing type ID for class or superclass");
         }
-        int accessFlags = classFile.identity.accessFlags;
-        int sourceFileDexIdx = ClassDefItem.NO_INDEX;
-
-        writer.alignTo4();
-        int classDefOffset = writer.getPosition();
-        int classDefCount = 1;
-        mapBuilder.add(TYPE_CLASS_DEF_ITEM, classDefCount, classDefOffset);
-
-        writer.writeU4(classDexIdx);
-        writer.writeU4(accessFlags);
-        writer.writeU4(superclassDexIdx);
-        writer.writeU4(ClassDefItem.NO_OFFSET); // interfaces_off
-        writer.writeU4(sourceFileDexIdx);       // source_file_idx
-        writer.writeU4(ClassDefItem.NO_OFFSET); // annotations_off
-        writer.writeU4(ClassDefItem.NO_OFFSET); // class_data_off (PLACEHOLDER)
-        writer.writeU4(ClassDefItem.NO_OFFSET); // static_values_off
-        
-        writer.writeU4At(0x60, classDefCount);
-        writer.writeU4At(0x64, classDefOffset);
-        return new ClassDefSection(classDefOffset);
+
+        ClassDefItem classDef = new ClassDefItem();
+        classDef.classIdx = classDexIdx;
+        classDef.accessFlags = classFile.identity.accessFlags;
+        classDef.superclassIdx = superclassDexIdx;
+        classDef.interfacesOff = ClassDefItem.NO_OFFSET;
+        classDef.sourceFileIdx = ClassDefItem.NO_INDEX;
+        classDef.annotationsOff = ClassDefItem.NO_OFFSET;
+        classDef.classDataOff = ClassDefItem.NO_OFFSET;
+        classDef.staticValuesOff = ClassDefItem.NO_OFFSET;
+        if (classFile.interfaces.length > 0) {
+            List<Integer> interfaceTypeIds = new ArrayList<>(classFile.interfaces.length);
+            for (int interfaceIndex : classFile.interfaces) {
+                interfaceTypeIds.add(findDexTypeId(classFile.constantPool, interfaceIndex, typeSection));
+            }
+            classDef.interfacesListIndex = protoSection.internTypeList(interfaceTypeIds);
+        }
+        return classDef;
     }
     
-    /** Writes the class_data_item, records it, and translates its methods. */
-    public static void writeClassData(ByteWriter writer, ClassFile classFile, 
-                                      ClassDefSection classDefSection, CpInfo[] constantPool,
-                                      StringSection stringSection, TypeSection typeSection,
-                                      ProtoSection protoSection, FieldSection fieldSection, 
-                                      MethodSection methodSection,
-                                      MapListBuilder mapBuilder) throws Exception {
-        writer.alignTo4();
-        int classDataOffset = writer.getPosition();
-        mapBuilder.add(TYPE_CLASS_DATA_ITEM, 1, classDataOffset);
+    /** Builds the class_data_item, translating every method body into a code_item. */
+    public static ClassDataItem buildClassData(ClassFile classFile, ConstantPool constantPool,
+                                               StringSection stringSection, TypeSection typeSection,
+                                               ProtoSection protoSection, FieldSection fieldSection, 
+                                               MethodSection methodSection) throws Exception {
+        return buildClassData(classFile, constantPool, stringSection, typeSection, protoSection,
+                              fieldSection, methodSection, ConversionContext.forCurrentThread());
+    }
 
-        List<DexEncodedField> staticFields = new ArrayList<>();
-        List<DexEncodedField> instanceFields = new ArrayList<>();
-        List<DexEncodedMethod> directMethods = new ArrayList<>();
-        List<DexEncodedMethod> virtualMethods = new ArrayList<>();
+    static ClassDataItem buildClassData(ClassFile classFile, ConstantPool constantPool,
+                                        StringSection stringSection, TypeSection typeSection,
+                                        ProtoSection protoSection, FieldSection fieldSection,
+                                        MethodSection methodSection, ConversionContext context) throws Exception {
+        ClassDataItem classData = new ClassDataItem();
+        int thisClassDexIdx = findDexTypeId(constantPool, classFile.identity.thisClassIndex, typeSection);
+        context.currentClass = classDescriptor(constantPool, classFile.identity.thisClassIndex);
         
         for (FieldInfo field : classFile.fields) {
-            ResolvedField fieldData = findDexFieldId(field, constantPool, stringSection, typeSection, fieldSection);
+            ResolvedField fieldData = findDexFieldId(field, thisClassDexIdx, constantPool,
+                                                     stringSection, typeSection, fieldSection);
             if (fieldData == null) continue; 
             DexEncodedField encodedField = new DexEncodedField(fieldData.fieldId, field.accessFlags);
-            if ((field.accessFlags & 0x0008) != 0) { staticFields.add(encodedField); } 
-            else { instanceFields.add(encodedField); }
+            if ((field.accessFlags & 0x0008) != 0) { classData.staticFields.add(encodedField); } 
+            else { classData.instanceFields.add(encodedField); }
         }
         
         for (MethodInfo method : classFile.methods) {
-            int methodDexId = findDexMethodId(method, constantPool, 
-                                              stringSection, typeSection, methodSection);
+            int methodDexId = findDexMethodId(method, thisClassDexIdx, constantPool,
+                                              stringSection, protoSection, methodSection);
             if (methodDexId == -1) continue; 
             
-            int codeOffset = writeMethodCode(writer, method, constantPool,
-                                             stringSection, typeSection, 
-                                             protoSection, fieldSection, methodSection,
-                                             mapBuilder);
+            CodeItem codeItem = translateMethodCode(method, constantPool,
+                                                    stringSection, typeSection, 
+                                                    protoSection, fieldSection, methodSection, context);
             
-            DexEncodedMethod encodedMethod = new DexEncodedMethod(methodDexId, method.accessFlags, codeOffset);
+            DexEncodedMethod encodedMethod = new DexEncodedMethod(methodDexId, method.accessFlags, 0);
+            encodedMethod.code = codeItem;
             boolean isDirect = (method.accessFlags & 0x0002) != 0 || 
                              (method.accessFlags & 0x0008) != 0 || 
                              isConstructor(method, constantPool, stringSection);
-            if (isDirect) { directMethods.add(encodedMethod); } 
-            else { virtualMethods.add(encodedMethod); }
+            if (isDirect) { classData.directMethods.add(encodedMethod); } 
+            else { classData.virtualMethods.add(encodedMethod); }
         }
         
-        staticFields.sort(Comparator.comparingInt(f -> f.fieldIdx));
-        instanceFields.sort(Comparator.comparingInt(f -> f.fieldIdx));
-        directMethods.sort(Comparator.comparingInt(m -> m.methodIdx));
-        virtualMethods.sort(Comparator.comparingInt(m -> m.methodIdx));
-        
-        writer.writeUleb128(staticFields.size());
-        writer.writeUleb128(instanceFields.size());
-        writer.writeUleb128(directMethods.size());
-        writer.writeUleb128(virtualMethods.size());
+        classData.staticFields.sort(Comparator.comparingInt(f -> f.fieldIdx));
+        classData.instanceFields.sort(Comparator.comparingInt(f -> f.fieldIdx));
+        classData.directMethods.sort(Comparator.comparingInt(m -> m.methodIdx));
+        classData.virtualMethods.sort(Comparator.comparingInt(m -> m.methodIdx));
+        return classData;
+    }
+
+    // =========================================================================
+    // .DEX FILE WRITER METHODS
+    // =========================================================================
+
+    /**
+     * Phase 2: emits a planned .dex file in a single forward pass. Every header
+     * field is known up front, so the only write behind the cursor is the final
+     * checksum and signature, which are digested as each section goes out.
+     */
+    public static void writeDex(DexPlan plan, DexOutput output, DexOptions options) throws Exception {
+        StringSection strings = plan.stringSection;
+        TypeSection types = plan.typeSection;
+        ProtoSection protos = plan.protoSection;
+        FieldSection fields = plan.fieldSection;
+        MethodSection methods = plan.methodSection;
+        long start = System.nanoTime();
+        if (output.digest == null) output.digest = new DexDigest(options.computeSignature);
+
+        ByteWriter writer = output.beginSection(0, DexHeader.HEADER_SIZE);
+        writeHeader(writer, plan);
+        output.endSection(writer);
+
+        writer = output.beginSection(strings.stringIdsOff, strings.stringIdsSize * 4);
+        for (int offset : strings.stringDataOffsets) writer.writeU4(offset);
+        output.endSection(writer);
+
+        writer = output.beginSection(types.typeIdsOff, types.typeIdsSize * 4);
+        for (int stringId : types.typeStringIds) writer.writeU4(stringId);
+        output.endSection(writer);
+
+        writer = output.beginSection(protos.protoIdsOff, protos.protoIdsSize * 12);
+        for (int i = 0; i < protos.protoIdsSize; i++) {
+            writer.writeU4(protos.shortyStringIds[i]);
+            writer.writeU4(protos.returnTypeIds[i]);
+            int listIndex = protos.typeListIndex[i];
+            writer.writeU4(listIndex == -1 ? 0 : protos.typeListOffsets[listIndex]);
+        }
+        output.endSection(writer);
+
+        writer = output.beginSection(fields.fieldIdsOff, fields.fieldIdsSize * 8);
+        for (DexFieldId fieldId : fields.fieldIds) {
+            writer.writeU2(fieldId.classIdx);
+            writer.writeU2(fieldId.typeIdx);
+            writer.writeU4(fieldId.nameIdx);
+        }
+        output.endSection(writer);
+
+        writer = output.beginSection(methods.methodIdsOff, methods.methodIdsSize * 8);
+        for (DexMethodId methodId : methods.methodIds) {
+            writer.writeU2(methodId.classIdx);
+            writer.writeU2(methodId.protoIdx);
+            writer.writeU4(methodId.nameIdx);
+        }
+        output.endSection(writer);
+
+        writer = output.beginSection(plan.classDefsOff, plan.classDefs.size() * 32);
+        for (ClassDefItem classDef : plan.classDefs) writeClassDef(writer, classDef);
+        output.endSection(writer);
+
+        writer = output.beginSection(plan.dataOff, strings.stringDataOff - plan.dataOff);
+        writeTypeLists(writer, protos);
+        output.endSection(writer);
+
+        writer = output.beginSection(strings.stringDataOff, plan.codeItemsOff - strings.stringDataOff);
+        writeStringData(writer, strings);
+        output.endSection(writer);
+
+        writer = output.beginSection(plan.codeItemsOff, plan.classDataOff - plan.codeItemsOff);
+        for (CodeItem codeItem : plan.codeItems) {
+            writer.alignTo4();
+            writeCodeItem(writer, codeItem);
+        }
+        output.endSection(writer);
+
+        writer = output.beginSection(plan.classDataOff, plan.mapOff - plan.classDataOff);
+        for (int n = 0; n < plan.classData.size(); n++) {
+            int i = (plan.classDataOrder != null) ? plan.classDataOrder[n] : n;
+            writeClassData(writer, plan.classData.get(i));
+        }
+        output.endSection(writer);
+
+        writer = output.beginSection(plan.mapOff, plan.fileSize - plan.mapOff);
+        plan.mapBuilder.write(writer);
+        output.endSection(writer);
+
+        output.finish();
+        if (plan.stats != null && options.stats != null) {
+            plan.stats.finalizeNanos += System.nanoTime() - start;
+            plan.stats.recordSections(plan);
+            options.stats.merge(plan.stats);
+            plan.stats = null;
+        }
+    }
+
+    /** Writes the complete header; only checksum and signature are left as placeholders. */
+    public static void writeHeader(ByteWriter writer, DexPlan plan) {
+        writer.writeBytes(DexHeader.DEX_FILE_MAGIC); // 8
+        writer.writeU4(0); // checksum (patched after digesting)
+        writer.writeBytes(DexHeader.NO_SIGNATURE); // 20 (patched after digesting)
+        writer.writeU4(plan.fileSize); // file_size
+        writer.writeU4(DexHeader.HEADER_SIZE); // header_size (0x70)
+        writer.writeU4(DexHeader.ENDIAN_CONSTANT); // endian_tag
+        writer.writeU4(0); // link_size
+        writer.writeU4(0); // link_off
+        writer.writeU4(plan.mapOff); // map_off
+        writeSectionHeader(writer, plan.stringSection.stringIdsSize, plan.stringSection.stringIdsOff);
+        writeSectionHeader(writer, plan.typeSection.typeIdsSize, plan.typeSection.typeIdsOff);
+        writeSectionHeader(writer, plan.protoSection.protoIdsSize, plan.protoSection.protoIdsOff);
+        writeSectionHeader(writer, plan.fieldSection.fieldIdsSize, plan.fieldSection.fieldIdsOff);
+        writeSectionHeader(writer, plan.methodSection.methodIdsSize, plan.methodSection.methodIdsOff);
+        writeSectionHeader(writer, plan.classDefs.size(), plan.classDefsOff);
+        writer.writeU4(plan.fileSize - plan.dataOff); // data_size
+        writer.writeU4(plan.dataOff); // data_off
+    }
+
+    /** Writes a size/offset header pair; empty sections must have a zero offset. */
+    private static void writeSectionHeader(ByteWriter writer, int size, int offset) {
+        writer.writeU4(size);
+        writer.writeU4(size == 0 ? 0 : offset);
+    }
+
+    /** Writes a class_def_item. */
+    public static void writeClassDef(ByteWriter writer, ClassDefItem classDef) {
+        writer.writeU4(classDef.classIdx);
+        writer.writeU4(classDef.accessFlags);
+        writer.writeU4(classDef.superclassIdx);
+        writer.writeU4(classDef.interfacesOff);
+        writer.writeU4(classDef.sourceFileIdx);
+        writer.writeU4(classDef.annotationsOff);
+        writer.writeU4(classDef.classDataOff);
+        writer.writeU4(classDef.staticValuesOff);
+    }
+
+    /** Writes every proto parameter type_list, each 4-byte aligned. */
+    public static void writeTypeLists(ByteWriter writer, ProtoSection protoSection) {
+        for (List<Integer> typeList : protoSection.typeLists) {
+            writer.alignTo4();
+            writer.writeU4(typeList.size());
+            for (Integer typeId : typeList) writer.writeU2(typeId);
+        }
+    }
+
+    /** Writes every string_data_item in layout order (string ID order unless a profile reordered them). */
+    public static void writeStringData(ByteWriter writer, StringSection stringSection) {
+        for (int n = 0; n < stringSection.stringIdsSize; n++) {
+            int i = (stringSection.dataOrder != null) ? stringSection.dataOrder[n] : n;
+            byte[] encoded = stringSection.encoded[i];
+            if (encoded != null) { writer.writeBytes(encoded); }
+            else { writer.writeMutf8(stringSection.strings.get(i)); }
+        }
+    }
+
+    /** Writes the class_data_item. */
+    public static void writeClassData(ByteWriter writer, ClassDataItem classData) {
+        writer.writeUleb128(classData.staticFields.size());
+        writer.writeUleb128(classData.instanceFields.size());
+        writer.writeUleb128(classData.directMethods.size());
+        writer.writeUleb128(classData.virtualMethods.size());
         
         int lastIdx = 0;
-        for (DexEncodedField field : staticFields) {
+        for (DexEncodedField field : classData.staticFields) {
             writer.writeUleb128(field.fieldIdx - lastIdx);
             writer.writeUleb128(field.accessFlags);
             lastIdx = field.fieldIdx;
         }
         lastIdx = 0;
-        for (DexEncodedField field : instanceFields) {
+        for (DexEncodedField field : classData.instanceFields) {
             writer.writeUleb128(field.fieldIdx - lastIdx);
             writer.writeUleb128(field.accessFlags);
             lastIdx = field.fieldIdx;
         }
         lastIdx = 0;
-        for (DexEncodedMethod method : directMethods) {
+        for (DexEncodedMethod method : classData.directMethods) {
             writer.writeUleb128(method.methodIdx - lastIdx);
             writer.writeUleb128(method.accessFlags);
             writer.writeUleb128(method.codeOff);
             lastIdx = method.methodIdx;
         }
         lastIdx = 0;
-        for (DexEncodedMethod method : virtualMethods) {
+        for (DexEncodedMethod method : classData.virtualMethods) {
             writer.writeUleb128(method.methodIdx - lastIdx);
             writer.writeUleb128(method.accessFlags);
             writer.writeUleb128(method.codeOff);
             lastIdx = method.methodIdx;
         }
-
-        int classDataOffOffset = classDefSection.classDefOffset + 24;
-        writer.writeU4At(classDataOffOffset, classDataOffset);
     }
     
-    /** Writes a complete code_item and records it. */
-    public static int writeCodeItem(ByteWriter writer, CodeItem codeItem,
-                                    MapListBuilder mapBuilder) {
-        writer.alignTo4();
-        int codeItemOffset = writer.getPosition();
-        mapBuilder.add(TYPE_CODE_ITEM, 1, codeItemOffset);
-        
+    /** Writes a complete code_item at its planned (4-byte aligned) offset. */
+    public static void writeCodeItem(ByteWriter writer, CodeItem codeItem) {
         writer.writeU2(codeItem.registersSize);
         writer.writeU2(codeItem.insSize);
         writer.writeU2(codeItem.outsSize);
@@ -1596,11 +4190,10 @@ public class PureCodeDEXGenerator {
             for (DalvikTryItem tryItem : codeItem.tries) {
                 writer.writeU4(tryItem.startAddr);
                 writer.writeU2(tryItem.insnCount);
-                writer.writeU2(tryItem.handlerOff);
+                writer.writeU2(codeItem.handlerOffsets[tryItem.handlerIndex]);
             }
             
-            // Write the encoded_catch_handler_list
-            writer.alignTo4();
+            // Write the encoded_catch_handler_list (directly follows the tries)
             writer.writeUleb128(codeItem.handlerLists.size());
             
             for (DalvikHandlerList handlerList : codeItem.handlerLists) {
@@ -1619,28 +4212,6 @@ public class PureCodeDEXGenerator {
                 }
             }
         }
-        
-        return codeItemOffset;
-    }
-    
-    /** Finalizes the .dex file by patching the header. */
-    public static void finalizeFile(ByteWriter writer) throws Exception {
-        int fileSize = writer.getPosition();
-        writer.writeU4At(0x20, fileSize);
-
-        MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-        sha1.update(writer.buffer.array(), 32, fileSize - 32);
-        byte[] signature = sha1.digest();
-        
-        int oldPosition = writer.buffer.position();
-        writer.buffer.position(12);
-        writer.writeBytes(signature);
-        writer.buffer.position(oldPosition);
-
-        Adler32 adler = new Adler32();
-        adler.update(writer.buffer.array(), 12, fileSize - 12);
-        long checksum = adler.getValue();
-        writer.writeU4At(8, (int) checksum);
     }
     
     // =========================================================================
@@ -1648,41 +4219,34 @@ public class PureCodeDEXGenerator {
     // =========================================================================
 
     /** Helper to check if a method is a constructor */
-    private static boolean isConstructor(MethodInfo method, CpInfo[] pool, StringSection stringSection) throws Exception {
-        String methodName = ((ConstantUtf8Info) pool[method.nameIndex]).value;
+    private static boolean isConstructor(MethodInfo method, ConstantPool pool, StringSection stringSection) throws Exception {
+        String methodName = pool.utf8(method.nameIndex);
         return methodName.equals("<init>");
     }
 
     /** Helper to find the .dex ID for a .class FieldInfo */
-    private static ResolvedField findDexFieldId(FieldInfo field, CpInfo[] pool, StringSection stringSection,
-                                      TypeSection typeSection, FieldSection fieldSection) throws Exception {
-        String fieldName = ((ConstantUtf8Info) pool[field.nameIndex]).value;
-        String fieldType = ((ConstantUtf8Info) pool[field.descriptorIndex]).value;
+    private static ResolvedField findDexFieldId(FieldInfo field, int classDexIdx, ConstantPool pool,
+                                                StringSection stringSection, TypeSection typeSection,
+                                                FieldSection fieldSection) throws Exception {
+        String fieldName = pool.utf8(field.nameIndex);
+        String fieldType = pool.utf8(field.descriptorIndex);
         
         Integer nameDexIdx = stringSection.stringIdMap.get(fieldName);
         Integer typeDexIdx = typeSection.typeIdMap.get(fieldType);
         if (nameDexIdx == null || typeDexIdx == null) return null;
 
-        for (DexFieldId fieldId : fieldSection.fieldIdMap.keySet()) {
-            if (fieldId.nameIdx == nameDexIdx && fieldId.typeIdx == typeDexIdx) {
-                return new ResolvedField(fieldSection.fieldIdMap.get(fieldId), fieldType);
-            }
-        }
-        return null;
+        Integer finalId = fieldSection.fieldIdMap.get(new DexFieldId(classDexIdx, typeDexIdx, nameDexIdx));
+        return (finalId != null) ? new ResolvedField(finalId, fieldType) : null;
     }
     
     /** Helper to find the .dex ID for a .class FieldInfo from a ref */
-    private static ResolvedField findDexFieldId(CpInfo[] pool, int javaFieldRefIndex,
+    private static ResolvedField findDexFieldId(ConstantPool pool, int javaFieldRefIndex,
                                                 StringSection stringSection, TypeSection typeSection,
                                                 FieldSection fieldSection) throws Exception {
-        ConstantRefInfo fieldRef = (ConstantRefInfo) pool[javaFieldRefIndex];
-        ConstantClassInfo classInfo = (ConstantClassInfo) pool[fieldRef.classIndex];
-        ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) pool[fieldRef.nameAndTypeIndex];
-        String className = ((ConstantUtf8Info) pool[classInfo.nameIndex]).value;
-        String fieldName = ((ConstantUtf8Info) pool[nameAndType.nameIndex]).value;
-        String fieldType = ((ConstantUtf8Info) pool[nameAndType.descriptorIndex]).value;
+        String fieldName = pool.refName(javaFieldRefIndex);
+        String fieldType = pool.refDescriptor(javaFieldRefIndex);
         
-        Integer classDexIdx = typeSection.typeIdMap.get(className);
+        Integer classDexIdx = typeSection.typeIdMap.get(classDescriptor(pool, pool.refClassIndex(javaFieldRefIndex)));
         Integer nameDexIdx = stringSection.stringIdMap.get(fieldName);
         Integer typeDexIdx = typeSection.typeIdMap.get(fieldType);
         if (classDexIdx == null || nameDexIdx == null || typeDexIdx == null) return null;
@@ -1693,32 +4257,27 @@ public class PureCodeDEXGenerator {
     }
 
     /** Helper to find the .dex ID for a .class MethodInfo */
-    private static int findDexMethodId(MethodInfo method, CpInfo[] pool, StringSection stringSection,
-                                       TypeSection typeSection, MethodSection methodSection) throws Exception {
-        String methodName = ((ConstantUtf8Info) pool[method.nameIndex]).value;
-        String methodDescStr = ((ConstantUtf8Info) pool[method.descriptorIndex]).value;
+    private static int findDexMethodId(MethodInfo method, int classDexIdx, ConstantPool pool,
+                                       StringSection stringSection, ProtoSection protoSection,
+                                       MethodSection methodSection) throws Exception {
+        String methodName = pool.utf8(method.nameIndex);
+        String methodDescStr = pool.utf8(method.descriptorIndex);
         Integer nameDexIdx = stringSection.stringIdMap.get(methodName);
-        if (nameDexIdx == null) return -1;
-        for (DexMethodId methodId : methodSection.methodIdMap.keySet()) {
-            if (methodId.nameIdx == nameDexIdx) {
-                return methodSection.methodIdMap.get(methodId);
-            }
-        }
-        return -1;
+        Integer protoDexIdx = protoSection.protoIdMap.get(parseMethodDescriptor(methodDescStr));
+        if (nameDexIdx == null || protoDexIdx == null) return -1;
+
+        Integer finalId = methodSection.methodIdMap.get(new DexMethodId(classDexIdx, protoDexIdx, nameDexIdx));
+        return (finalId != null) ? finalId : -1;
     }
     
     /** Helper to find the .dex ID for a .class MethodInfo from a ref */
-    private static int findDexMethodId(CpInfo[] pool, int classMethodRefIndex,
+    private static int findDexMethodId(ConstantPool pool, int classMethodRefIndex,
                                        StringSection stringSection, TypeSection typeSection,
                                        ProtoSection protoSection, MethodSection methodSection) throws Exception {
-        ConstantRefInfo methodRef = (ConstantRefInfo) pool[classMethodRefIndex];
-        ConstantClassInfo classInfo = (ConstantClassInfo) pool[methodRef.classIndex];
-        ConstantNameAndTypeInfo nameAndType = (ConstantNameAndTypeInfo) pool[methodRef.nameAndTypeIndex];
-        String className = ((ConstantUtf8Info) pool[classInfo.nameIndex]).value;
-        String methodName = ((ConstantUtf8Info) pool[nameAndType.nameIndex]).value;
-        String methodDescStr = ((ConstantUtf8Info) pool[nameAndType.descriptorIndex]).value;
+        String methodName = pool.refName(classMethodRefIndex);
+        String methodDescStr = pool.refDescriptor(classMethodRefIndex);
         
-        Integer classDexIdx = typeSection.typeIdMap.get(className);
+        Integer classDexIdx = typeSection.typeIdMap.get(classDescriptor(pool, pool.refClassIndex(classMethodRefIndex)));
         Integer nameDexIdx = stringSection.stringIdMap.get(methodName);
         MethodDescriptor desc = parseMethodDescriptor(methodDescStr);
         Integer protoDexIdx = protoSection.protoIdMap.get(desc);
@@ -1730,13 +4289,12 @@ public class PureCodeDEXGenerator {
     }
     
     /** Helper to find the .dex type ID from a .class constant pool class reference. */
-    private static int findDexTypeId(CpInfo[] pool, int javaClassRefIndex,
+    private static int findDexTypeId(ConstantPool pool, int javaClassRefIndex,
                                      TypeSection typeSection) throws Exception {
-        ConstantClassInfo classInfo = (ConstantClassInfo) pool[javaClassRefIndex];
-        String className = ((ConstantUtf8Info) pool[classInfo.nameIndex]).value;
-        Integer typeId = typeSection.typeIdMap.get(className);
+        String descriptor = classDescriptor(pool, javaClassRefIndex);
+        Integer typeId = typeSection.typeIdMap.get(descriptor);
         if (typeId == null) {
-            throw new Exception("Could not find type ID for class: " + className);
+            throw new Exception("Could not find type ID for class: " + descriptor);
         }
         return typeId;
     }
@@ -1756,14 +4314,38 @@ public class PureCodeDEXGenerator {
         return (short) (DALVIK_CONST_4 | (valB << 12) | (regA << 8));
     }
 
-    /** Creates a Dalvik 'move-xxx/from16' instruction. */
+    /** Creates a Dalvik 'move-xxx/from16' instruction; vAA must be v255 or below. */
     public static short[] makeMove(int dalvikOpcode, int destReg, int srcReg) {
+        if (destReg > 0xFF) {
+            throw new IllegalArgumentException("Register v" + destReg + " too high for move/from16");
+        }
         short[] insns = new short[2];
         insns[0] = (short) (dalvikOpcode | ((destReg & 0xFF) << 8));
         insns[1] = (short) (srcReg & 0xFFFF);
         return insns;
     }
     
+    /** Creates a Dalvik 'move(-wide/-object)/16 vAAAA, vBBBB' instruction. */
+    public static short[] makeMove16(int dalvikOpcode, int destReg, int srcReg) {
+        short[] insns = new short[3];
+        insns[0] = (short) dalvikOpcode;
+        insns[1] = (short) (destReg & 0xFFFF);
+        insns[2] = (short) (srcReg & 0xFFFF);
+        return insns;
+    }
+
+    /**
+     * Creates a move into any register: the from16 form when the destination fits
+     * in eight bits and the /16 form otherwise. A local's register is maxStack plus
+     * its slot, so a store can pass v255 even for a one-byte local index.
+     */
+    public static short[] makeMoveTo(int from16Opcode, int destReg, int srcReg) {
+        if (destReg <= 0xFF) return makeMove(from16Opcode, destReg, srcReg);
+        int move16Opcode = (from16Opcode == DALVIK_MOVE_WIDE_FROM16) ? DALVIK_MOVE_WIDE_16
+                         : (from16Opcode == DALVIK_MOVE_OBJECT_FROM16) ? DALVIK_MOVE_OBJECT_16 : DALVIK_MOVE_16;
+        return makeMove16(move16Opcode, destReg, srcReg);
+    }
+    
     /** Creates a Dalvik 'invoke-xxx/range' instruction. */
     public static short[] makeInvokeRange(int dalvikOpcode, int argCount, int firstReg, int methodId) {
         short[] insns = new short[3];
@@ -1781,6 +4363,24 @@ public class PureCodeDEXGenerator {
         return insns;
     }
     
+    /** Creates a Dalvik 'move-result(-wide/-object) vAA' instruction. */
+    public static short makeMoveResult(int dalvikOpcode, int destReg) {
+        return (short) (dalvikOpcode | ((destReg & 0xFF) << 8));
+    }
+
+    /** Pushes an invoke's return value onto the tracked stack with the matching move-result. */
+    private static void pushInvokeResult(String returnType, StackTracker stack, InsnBuffer dalvikInsns) {
+        char c = returnType.charAt(0);
+        if (c == 'V') return;
+        if (c == 'J' || c == 'D') {
+            dalvikInsns.add(makeMoveResult(DALVIK_MOVE_RESULT_WIDE, stack.pushWide()));
+        } else if (c == 'L' || c == '[') {
+            dalvikInsns.add(makeMoveResult(DALVIK_MOVE_RESULT_OBJECT, stack.push()));
+        } else {
+            dalvikInsns.add(makeMoveResult(DALVIK_MOVE_RESULT, stack.push()));
+        }
+    }
+
     /** Creates a Dalvik 'return vAA' or 'return-object vAA' instruction. */
     public static short makeReturn(int dalvikOpcode, int srcReg) {
         return (short) (dalvikOpcode | ((srcReg & 0xFF) << 8));
@@ -1794,6 +4394,15 @@ public class PureCodeDEXGenerator {
         return insns;
     }
     
+    /** Creates a Dalvik 'const vAA, #+BBBBBBBB' instruction. */
+    public static short[] makeConst(int destReg, int value) {
+        short[] insns = new short[3];
+        insns[0] = (short) (DALVIK_CONST | ((destReg & 0xFF) << 8));
+        insns[1] = (short) (value & 0xFFFF);
+        insns[2] = (short) (value >>> 16);
+        return insns;
+    }
+
     /** Creates a Dalvik 'const-wide/16 vAA, #+BBBB' instruction. */
     public static short[] makeConstWide16(int destReg, int value) {
         short[] insns = new short[2];
@@ -1802,13 +4411,25 @@ public class PureCodeDEXGenerator {
         return insns;
     }
 
-    /** Creates a Dalvik 'const-string vAA, string@BBBB' instruction. */
+    /** Creates a Dalvik 'const-string vAA, string@BBBB' instruction; see makeConstStringJumbo past 0xFFFF. */
     public static short[] makeConstString(int destReg, int stringId) {
+        if (stringId > 0xFFFF) {
+            throw new IllegalArgumentException("String ID too large for const-string: " + stringId);
+        }
         short[] insns = new short[2];
         insns[0] = (short) (DALVIK_CONST_STRING | ((destReg & 0xFF) << 8));
         insns[1] = (short) (stringId & 0xFFFF);
         return insns;
     }
+
+    /** Creates a Dalvik 'const-string/jumbo vAA, string@BBBBBBBB' instruction. */
+    public static short[] makeConstStringJumbo(int destReg, int stringId) {
+        short[] insns = new short[3];
+        insns[0] = (short) (DALVIK_CONST_STRING_JUMBO | ((destReg & 0xFF) << 8));
+        insns[1] = (short) (stringId & 0xFFFF);
+        insns[2] = (short) (stringId >>> 16);
+        return insns;
+    }
     
     /** Creates a Dalvik static field access instruction (sget, sput). */
     public static short[] makeStaticFieldOp(int dalvikOpcode, int valueReg, int fieldId) {
@@ -1913,46 +4534,69 @@ public class PureCodeDEXGenerator {
     
 
     // =========================================================================
-    // THE TRANSLATOR METHOD (writeMethodCode)
+    // THE TRANSLATOR METHOD (translateMethodCode)
     // =========================================================================
 
     /**
-     * Parses a method's Java code, translates it to Dalvik,
-     * and writes the new code_item using a two-pass approach.
+     * Parses a method's Java code and translates it to a Dalvik code_item
+     * using a two-pass approach. Returns null for methods without code.
      */
-    public static int writeMethodCode(ByteWriter writer, MethodInfo javaMethod,
-                                      CpInfo[] constantPool, StringSection stringSection,
-                                      TypeSection typeSection, ProtoSection protoSection,
-                                      FieldSection fieldSection, MethodSection methodSection,
-                                      MapListBuilder mapBuilder) throws Exception {
+    public static CodeItem translateMethodCode(MethodInfo javaMethod,
+                                               ConstantPool constantPool, StringSection stringSection,
+                                               TypeSection typeSection, ProtoSection protoSection,
+                                               FieldSection fieldSection, MethodSection methodSection) throws Exception {
+        return translateMethodCode(javaMethod, constantPool, stringSection, typeSection, protoSection,
+                                   fieldSection, methodSection, ConversionContext.forCurrentThread());
+    }
+
+    /** Translates a method using a context's instruction buffer, PC map and stack tracker. */
+    static CodeItem translateMethodCode(MethodInfo javaMethod,
+                                        ConstantPool constantPool, StringSection stringSection,
+                                        TypeSection typeSection, ProtoSection protoSection,
+                                        FieldSection fieldSection, MethodSection methodSection,
+                                        ConversionContext context) throws Exception {
         
         AttributeInfo codeAttrInfo = findAttribute(constantPool, javaMethod.attributes, "Code");
-        if (codeAttrInfo == null) return 0;
+        if (codeAttrInfo == null) return null;
         CodeAttribute javaCode = parseCodeAttribute(codeAttrInfo);
         CodeItem dalvikCode = new CodeItem();
-        String descriptor = ((ConstantUtf8Info) constantPool[javaMethod.descriptorIndex]).value;
+        String descriptor = constantPool.utf8(javaMethod.descriptorIndex);
         MethodDescriptor methodDesc = parseMethodDescriptor(descriptor);
-        dalvikCode.insSize = methodDesc.parameters.size();
+        dalvikCode.insSize = methodDesc.parameterWords;
         if ((javaMethod.accessFlags & 0x0008) == 0) { dalvikCode.insSize++; }
         
-        // TODO: This doesn't account for wide (long/double) params
-        
-        dalvikCode.registersSize = javaCode.maxLocals; 
+        dalvikCode.registersSize = javaCode.maxStack + Math.max(javaCode.maxLocals, dalvikCode.insSize);
         dalvikCode.debugInfoOff = 0;
         
-        List<Short> dalvikInsns = new ArrayList<>();
         byte[] javaBytecode = javaCode.code;
-        StackTracker stack = new StackTracker(dalvikCode.registersSize, dalvikCode.insSize);
-        Map<Integer, Integer> javaPcToDalvikPcMap = new HashMap<>();
-        List<BranchFixup> fixups = new ArrayList<>();
+        InsnBuffer dalvikInsns = context.insns;
+        dalvikInsns.clear();
+        StackTracker stack = context.stack;
+        stack.reset(dalvikCode.registersSize, dalvikCode.insSize, javaCode.maxStack);
+        // Dalvik PC of each Java instruction start, -1 inside an instruction
+        int[] javaPcToDalvikPc = context.javaPcToDalvikPc(javaBytecode.length + 1);
+        List<BranchFixup> fixups = context.fixups;
+        fixups.clear();
+        boolean[] javaHandlerPcs = context.handlerStarts(javaBytecode.length);
+        for (ExceptionTableEntry entry : javaCode.exceptionTable) {
+            if (entry.handlerPc < javaBytecode.length) javaHandlerPcs[entry.handlerPc] = true;
+        }
         
+        DexConversionStats stats = context.stats;
+        int skippedBefore = (stats != null) ? stats.skippedOpcodes.size() : 0;
         int i = 0;
         
         // --- PASS 1: Translate and Record ---
         while (i < javaBytecode.length) {
             
-            javaPcToDalvikPcMap.put(i, dalvikInsns.size());
+            javaPcToDalvikPc[i] = dalvikInsns.size();
+            if (javaHandlerPcs[i]) {
+                // A handler starts with only the caught exception on the operand stack
+                stack.stackPointer = 0;
+                dalvikInsns.add((short) ((stack.push() << 8) | DALVIK_MOVE_EXCEPTION));
+            }
             int opcode = javaBytecode[i] & 0xFF; 
+            if (stats != null) stats.opcodeCounts[opcode]++;
             
             switch (opcode) {
 
@@ -1965,7 +4609,7 @@ public class PureCodeDEXGenerator {
                     i++; break;
                 case JAVA_LDC2_W: 
                     // TODO: Implement const-wide helper
-                    System.out.println("Warning: Skipping ldc2_w (long)");
+                    reportSkipped(context, constantPool, javaMethod, i, "ldc2_w");
                     i += 3; break;
                 case JAVA_LADD: {
                     int srcReg2 = stack.popWide(); int srcReg1 = stack.popWide(); int destReg = stack.pushWide();
@@ -1980,28 +4624,28 @@ public class PureCodeDEXGenerator {
                 
                 // --- 64-BIT LOAD/STORE/RETURN ---
                 case JAVA_LLOAD_0: case JAVA_DLOAD_0:
-                    for(short s : makeMove(DALVIK_MOVE_WIDE_FROM16, stack.pushWide(), stack.getLocalRegister(0))) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_WIDE_FROM16, stack.pushWide(), stack.getLocalRegister(0))) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_LLOAD_1: case JAVA_DLOAD_1:
-                    for(short s : makeMove(DALVIK_MOVE_WIDE_FROM16, stack.pushWide(), stack.getLocalRegister(1))) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_WIDE_FROM16, stack.pushWide(), stack.getLocalRegister(1))) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_LLOAD_2: case JAVA_DLOAD_2:
-                    for(short s : makeMove(DALVIK_MOVE_WIDE_FROM16, stack.pushWide(), stack.getLocalRegister(2))) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_WIDE_FROM16, stack.pushWide(), stack.getLocalRegister(2))) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_LLOAD_3: case JAVA_DLOAD_3:
-                    for(short s : makeMove(DALVIK_MOVE_WIDE_FROM16, stack.pushWide(), stack.getLocalRegister(3))) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_WIDE_FROM16, stack.pushWide(), stack.getLocalRegister(3))) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_LSTORE_0: case JAVA_DSTORE_0:
-                    for(short s : makeMove(DALVIK_MOVE_WIDE_FROM16, stack.getLocalRegister(0), stack.popWide())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_WIDE_FROM16, stack.getLocalRegister(0), stack.popWide())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_LSTORE_1: case JAVA_DSTORE_1:
-                    for(short s : makeMove(DALVIK_MOVE_WIDE_FROM16, stack.getLocalRegister(1), stack.popWide())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_WIDE_FROM16, stack.getLocalRegister(1), stack.popWide())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_LSTORE_2: case JAVA_DSTORE_2:
-                    for(short s : makeMove(DALVIK_MOVE_WIDE_FROM16, stack.getLocalRegister(2), stack.popWide())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_WIDE_FROM16, stack.getLocalRegister(2), stack.popWide())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_LSTORE_3: case JAVA_DSTORE_3:
-                    for(short s : makeMove(DALVIK_MOVE_WIDE_FROM16, stack.getLocalRegister(3), stack.popWide())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_WIDE_FROM16, stack.getLocalRegister(3), stack.popWide())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_LRETURN: case JAVA_DRETURN:
                     dalvikInsns.add(makeReturn(DALVIK_RETURN_WIDE, stack.popWide()));
@@ -2009,44 +4653,89 @@ public class PureCodeDEXGenerator {
                     
                 // --- 32-BIT LOAD/STORE ---
                 case JAVA_ISTORE_0:
-                    for(short s : makeMove(DALVIK_MOVE_FROM16, stack.getLocalRegister(0), stack.pop())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.getLocalRegister(0), stack.pop())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ISTORE_1:
-                    for(short s : makeMove(DALVIK_MOVE_FROM16, stack.getLocalRegister(1), stack.pop())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.getLocalRegister(1), stack.pop())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ISTORE_2:
-                    for(short s : makeMove(DALVIK_MOVE_FROM16, stack.getLocalRegister(2), stack.pop())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.getLocalRegister(2), stack.pop())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ISTORE_3:
-                    for(short s : makeMove(DALVIK_MOVE_FROM16, stack.getLocalRegister(3), stack.pop())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.getLocalRegister(3), stack.pop())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ASTORE_0:
-                    for(short s : makeMove(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(0), stack.pop())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(0), stack.pop())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ASTORE_1:
-                    for(short s : makeMove(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(1), stack.pop())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(1), stack.pop())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ASTORE_2:
-                    for(short s : makeMove(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(2), stack.pop())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(2), stack.pop())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ASTORE_3:
-                    for(short s : makeMove(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(3), stack.pop())) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(3), stack.pop())) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ALOAD_0:
-                    for(short s : makeMove(DALVIK_MOVE_OBJECT_FROM16, stack.push(), stack.getLocalRegister(0))) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.push(), stack.getLocalRegister(0))) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ALOAD_1:
-                    for(short s : makeMove(DALVIK_MOVE_OBJECT_FROM16, stack.push(), stack.getLocalRegister(1))) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.push(), stack.getLocalRegister(1))) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ILOAD_0:
-                    for(short s : makeMove(DALVIK_MOVE_FROM16, stack.push(), stack.getLocalRegister(0))) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.push(), stack.getLocalRegister(0))) { dalvikInsns.add(s); }
                     i++; break;
                 case JAVA_ILOAD_1:
-                    for(short s : makeMove(DALVIK_MOVE_FROM16, stack.push(), stack.getLocalRegister(1))) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.push(), stack.getLocalRegister(1))) { dalvikInsns.add(s); }
                     i++; break; 
+                case JAVA_ALOAD_2:
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.push(), stack.getLocalRegister(2))) { dalvikInsns.add(s); }
+                    i++; break;
+                case JAVA_ALOAD_3:
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.push(), stack.getLocalRegister(3))) { dalvikInsns.add(s); }
+                    i++; break;
+                case JAVA_ILOAD_2:
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.push(), stack.getLocalRegister(2))) { dalvikInsns.add(s); }
+                    i++; break;
+                case JAVA_ILOAD_3:
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.push(), stack.getLocalRegister(3))) { dalvikInsns.add(s); }
+                    i++; break;
+                case JAVA_ALOAD:
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.push(), stack.getLocalRegister(javaBytecode[i+1] & 0xFF))) { dalvikInsns.add(s); }
+                    i += 2; break;
+                case JAVA_ILOAD:
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.push(), stack.getLocalRegister(javaBytecode[i+1] & 0xFF))) { dalvikInsns.add(s); }
+                    i += 2; break;
+                case JAVA_ASTORE:
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, stack.getLocalRegister(javaBytecode[i+1] & 0xFF), stack.pop())) { dalvikInsns.add(s); }
+                    i += 2; break;
+                case JAVA_ISTORE:
+                    for(short s : makeMoveTo(DALVIK_MOVE_FROM16, stack.getLocalRegister(javaBytecode[i+1] & 0xFF), stack.pop())) { dalvikInsns.add(s); }
+                    i += 2; break;
+                case JAVA_WIDE: {
+                    // wide iload/aload/istore/astore carry a two-byte local index
+                    int wideOpcode = javaBytecode[i+1] & 0xFF;
+                    int localReg = stack.getLocalRegister(((javaBytecode[i+2] & 0xFF) << 8) | (javaBytecode[i+3] & 0xFF));
+                    if (wideOpcode == JAVA_ILOAD || wideOpcode == JAVA_ALOAD) {
+                        int op = (wideOpcode == JAVA_ALOAD) ? DALVIK_MOVE_OBJECT_FROM16 : DALVIK_MOVE_FROM16;
+                        for (short s : makeMoveTo(op, stack.push(), localReg)) { dalvikInsns.add(s); }
+                    } else if (wideOpcode == JAVA_ISTORE || wideOpcode == JAVA_ASTORE) {
+                        int op = (wideOpcode == JAVA_ASTORE) ? DALVIK_MOVE_OBJECT_FROM16 : DALVIK_MOVE_FROM16;
+                        for (short s : makeMoveTo(op, localReg, stack.pop())) { dalvikInsns.add(s); }
+                    } else {
+                        reportSkipped(context, constantPool, javaMethod, i, "wide 0x" + Integer.toHexString(wideOpcode));
+                    }
+                    i += javaInstructionLength(javaBytecode, 0, i); break;
+                }
+                case JAVA_ATHROW:
+                    dalvikInsns.add((short) ((stack.pop() << 8) | DALVIK_THROW));
+                    i++; break;
+                case JAVA_ACONST_NULL:
+                    for (short s : makeConst16(stack.push(), 0)) { dalvikInsns.add(s); }
+                    i++; break;
                 case JAVA_DUP: {
                     int regToDup = stack.peek(); int newReg = stack.push();
-                    for(short s : makeMove(DALVIK_MOVE_OBJECT_FROM16, newReg, regToDup)) { dalvikInsns.add(s); }
+                    for(short s : makeMoveTo(DALVIK_MOVE_OBJECT_FROM16, newReg, regToDup)) { dalvikInsns.add(s); }
                     i++; break;
                 }
                 
@@ -2070,9 +4759,8 @@ public class PureCodeDEXGenerator {
                 case JAVA_NEWARRAY: {
                     int sizeReg = stack.pop(); int destReg = stack.push();
                     int arrayType = javaBytecode[i+1] & 0xFF; 
-                    String typeName;
-                    if (arrayType == 10) { typeName = "[I"; } // T_INT
-                    else { throw new Exception("Unsupported primitive array type: " + arrayType); }
+                    String typeName = primitiveArrayDescriptor(arrayType);
+                    if (typeName == null) { throw new Exception("Unsupported primitive array type: " + arrayType); }
                     Integer dexTypeId = typeSection.typeIdMap.get(typeName);
                     if (dexTypeId == null) { throw new Exception("Missing type ID for primitive array: " + typeName); }
                     for (short s : makeNewArray(destReg, sizeReg, dexTypeId)) { dalvikInsns.add(s); }
@@ -2081,9 +4769,7 @@ public class PureCodeDEXGenerator {
                 case JAVA_ANEWARRAY: {
                     int sizeReg = stack.pop(); int destReg = stack.push();
                     int javaClassIndex = ((javaBytecode[i+1] & 0xFF) << 8) | (javaBytecode[i+2] & 0xFF);
-                    ConstantClassInfo classInfo = (ConstantClassInfo) constantPool[javaClassIndex];
-                    String baseClassName = ((ConstantUtf8Info) constantPool[classInfo.nameIndex]).value;
-                    String arrayTypeName = "[L" + baseClassName + ";";
+                    String arrayTypeName = "[" + classDescriptor(constantPool, javaClassIndex);
                     Integer dexTypeId = typeSection.typeIdMap.get(arrayTypeName);
                     if (dexTypeId == null) { throw new Exception("Missing type ID for object array: " + arrayTypeName); }
                     for (short s : makeNewArray(destReg, sizeReg, dexTypeId)) { dalvikInsns.add(s); }
@@ -2188,8 +4874,10 @@ public class PureCodeDEXGenerator {
                         i += 3;
                         continue;
                     }
-                    int op = isObject(field.fieldType) ? DALVIK_SGET_OBJECT : DALVIK_SGET;
-                    for (short s : makeStaticFieldOp(op, stack.push(), field.fieldId)) { dalvikInsns.add(s); }
+                    int op = isObject(field.fieldType) ? DALVIK_SGET_OBJECT
+                           : MethodDescriptor.isWide(field.fieldType) ? DALVIK_SGET_WIDE : DALVIK_SGET;
+                    int valReg = MethodDescriptor.isWide(field.fieldType) ? stack.pushWide() : stack.push();
+                    for (short s : makeStaticFieldOp(op, valReg, field.fieldId)) { dalvikInsns.add(s); }
                     i += 3; break;
                 }
                 case JAVA_PUTSTATIC: {
@@ -2199,48 +4887,49 @@ public class PureCodeDEXGenerator {
                         i += 3;
                         continue;
                     }
-                    int op = isObject(field.fieldType) ? DALVIK_SPUT_OBJECT : DALVIK_SPUT;
-                    for (short s : makeStaticFieldOp(op, stack.pop(), field.fieldId)) { dalvikInsns.add(s); }
+                    int op = isObject(field.fieldType) ? DALVIK_SPUT_OBJECT
+                           : MethodDescriptor.isWide(field.fieldType) ? DALVIK_SPUT_WIDE : DALVIK_SPUT;
+                    int valReg = MethodDescriptor.isWide(field.fieldType) ? stack.popWide() : stack.pop();
+                    for (short s : makeStaticFieldOp(op, valReg, field.fieldId)) { dalvikInsns.add(s); }
                     i += 3; break;
                 }
                 case JAVA_INVOKESTATIC: {
                     int javaMethodIndex = ((javaBytecode[i+1] & 0xFF) << 8) | (javaBytecode[i+2] & 0xFF);
                     int dexMethodId = findDexMethodId(constantPool, javaMethodIndex, stringSection, typeSection, protoSection, methodSection);
-                    ConstantRefInfo ref = (ConstantRefInfo) constantPool[javaMethodIndex];
-                    ConstantNameAndTypeInfo nat = (ConstantNameAndTypeInfo) constantPool[ref.nameAndTypeIndex];
-                    String descStr = ((ConstantUtf8Info) constantPool[nat.descriptorIndex]).value;
-                    int argCount = parseMethodDescriptor(descStr).parameters.size();
-                    dalvikCode.maxOuts = Math.max(dalvikCode.maxOuts, argCount);
-                    int[] argRegs = new int[argCount];
-                    for (int j = argCount - 1; j >= 0; j--) { argRegs[j] = stack.pop(); }
-                    int firstReg = (argCount > 0) ? argRegs[0] : 0;
-                    for (short s : makeInvokeRange(DALVIK_INVOKE_STATIC_RANGE, argCount, firstReg, dexMethodId)) { dalvikInsns.add(s); }
+                    String descStr = constantPool.refDescriptor(javaMethodIndex);
+                    MethodDescriptor callee = parseMethodDescriptor(descStr);
+                    int argWords = callee.parameterWords;
+                    dalvikCode.maxOuts = Math.max(dalvikCode.maxOuts, argWords);
+                    int firstReg = 0;
+                    for (int j = 0; j < argWords; j++) { firstReg = stack.pop(); } // one slot per word, two for J/D
+                    for (short s : makeInvokeRange(DALVIK_INVOKE_STATIC_RANGE, argWords, firstReg, dexMethodId)) { dalvikInsns.add(s); }
+                    pushInvokeResult(callee.returnType, stack, dalvikInsns);
                     i += 3; break;
                 }
                 case JAVA_INVOKEVIRTUAL: {
                     int javaMethodIndex = ((javaBytecode[i+1] & 0xFF) << 8) | (javaBytecode[i+2] & 0xFF);
                     int dexMethodId = findDexMethodId(constantPool, javaMethodIndex, stringSection, typeSection, protoSection, methodSection);
-                    ConstantRefInfo ref = (ConstantRefInfo) constantPool[javaMethodIndex];
-                    ConstantNameAndTypeInfo nat = (ConstantNameAndTypeInfo) constantPool[ref.nameAndTypeIndex];
-                    String descStr = ((ConstantUtf8Info) constantPool[nat.descriptorIndex]).value;
-                    int argCount = parseMethodDescriptor(descStr).parameters.size() + 1;
-                    dalvikCode.maxOuts = Math.max(dalvikCode.maxOuts, argCount);
-                    int[] argRegs = new int[argCount];
-                    for (int j = argCount - 1; j >= 0; j--) { argRegs[j] = stack.pop(); }
-                    for (short s : makeInvokeRange(DALVIK_INVOKE_VIRTUAL_RANGE, argCount, argRegs[0], dexMethodId)) { dalvikInsns.add(s); }
+                    String descStr = constantPool.refDescriptor(javaMethodIndex);
+                    MethodDescriptor callee = parseMethodDescriptor(descStr);
+                    int argWords = callee.parameterWords + 1;
+                    dalvikCode.maxOuts = Math.max(dalvikCode.maxOuts, argWords);
+                    int firstReg = 0;
+                    for (int j = 0; j < argWords; j++) { firstReg = stack.pop(); } // one slot per word, two for J/D
+                    for (short s : makeInvokeRange(DALVIK_INVOKE_VIRTUAL_RANGE, argWords, firstReg, dexMethodId)) { dalvikInsns.add(s); }
+                    pushInvokeResult(callee.returnType, stack, dalvikInsns);
                     i += 3; break;
                 }
                 case JAVA_INVOKESPECIAL: {
                     int javaMethodIndex = ((javaBytecode[i+1] & 0xFF) << 8) | (javaBytecode[i+2] & 0xFF);
                     int dexMethodId = findDexMethodId(constantPool, javaMethodIndex, stringSection, typeSection, protoSection, methodSection);
-                    ConstantRefInfo ref = (ConstantRefInfo) constantPool[javaMethodIndex];
-                    ConstantNameAndTypeInfo nat = (ConstantNameAndTypeInfo) constantPool[ref.nameAndTypeIndex];
-                    String descStr = ((ConstantUtf8Info) constantPool[nat.descriptorIndex]).value;
-                    int argCount = parseMethodDescriptor(descStr).parameters.size() + 1;
-                    dalvikCode.maxOuts = Math.max(dalvikCode.maxOuts, argCount);
-                    int[] argRegs = new int[argCount];
-                    for (int j = argCount - 1; j >= 0; j--) { argRegs[j] = stack.pop(); }
-                    for (short s : makeInvokeRange(DALVIK_INVOKE_DIRECT_RANGE, argCount, argRegs[0], dexMethodId)) { dalvikInsns.add(s); }
+                    String descStr = constantPool.refDescriptor(javaMethodIndex);
+                    MethodDescriptor callee = parseMethodDescriptor(descStr);
+                    int argWords = callee.parameterWords + 1;
+                    dalvikCode.maxOuts = Math.max(dalvikCode.maxOuts, argWords);
+                    int firstReg = 0;
+                    for (int j = 0; j < argWords; j++) { firstReg = stack.pop(); } // one slot per word, two for J/D
+                    for (short s : makeInvokeRange(DALVIK_INVOKE_DIRECT_RANGE, argWords, firstReg, dexMethodId)) { dalvikInsns.add(s); }
+                    pushInvokeResult(callee.returnType, stack, dalvikInsns);
                     i += 3; break;
                 }
                 case JAVA_GETFIELD: {
@@ -2250,8 +4939,10 @@ public class PureCodeDEXGenerator {
                         i += 3;
                         continue;
                     }
-                    int objReg = stack.pop(); int valReg = stack.push();
-                    int op = isObject(field.fieldType) ? DALVIK_IGET_OBJECT : DALVIK_IGET;
+                    int objReg = stack.pop();
+                    int valReg = MethodDescriptor.isWide(field.fieldType) ? stack.pushWide() : stack.push();
+                    int op = isObject(field.fieldType) ? DALVIK_IGET_OBJECT
+                           : MethodDescriptor.isWide(field.fieldType) ? DALVIK_IGET_WIDE : DALVIK_IGET;
                     for (short s : makeFieldOp(op, valReg, objReg, field.fieldId)) { dalvikInsns.add(s); }
                     i += 3; break;
                 }
@@ -2262,33 +4953,49 @@ public class PureCodeDEXGenerator {
                         i += 3;
                         continue;
                     }
-                    int valReg = stack.pop(); int objReg = stack.pop();
-                    int op = isObject(field.fieldType) ? DALVIK_IPUT_OBJECT : DALVIK_IPUT;
+                    int valReg = MethodDescriptor.isWide(field.fieldType) ? stack.popWide() : stack.pop();
+                    int objReg = stack.pop();
+                    int op = isObject(field.fieldType) ? DALVIK_IPUT_OBJECT
+                           : MethodDescriptor.isWide(field.fieldType) ? DALVIK_IPUT_WIDE : DALVIK_IPUT;
                     for (short s : makeFieldOp(op, valReg, objReg, field.fieldId)) { dalvikInsns.add(s); }
                     i += 3; break;
                 }
                 
                 // --- CONSTANTS & RETURNS ---
-                case JAVA_LDC: {
-                    int javaConstIndex = javaBytecode[i+1] & 0xFF;
-                    CpInfo constant = constantPool[javaConstIndex];
+                case JAVA_LDC:
+                case JAVA_LDC_W: {
+                    int javaConstIndex = (opcode == JAVA_LDC) ? javaBytecode[i+1] & 0xFF
+                        : ((javaBytecode[i+1] & 0xFF) << 8) | (javaBytecode[i+2] & 0xFF);
+                    int constantTag = constantPool.tag(javaConstIndex);
                     int destReg = stack.push();
-                    if (constant.tag == CONSTANT_String) {
-                        ConstantStringInfo stringInfo = (ConstantStringInfo) constant;
-                        String strValue = ((ConstantUtf8Info) constantPool[stringInfo.stringIndex]).value;
+                    if (constantTag == CONSTANT_String) {
+                        String strValue = constantPool.utf8(constantPool.stringIndex(javaConstIndex));
                         int dexStringId = stringSection.stringIdMap.get(strValue);
-                        for (short s : makeConstString(destReg, dexStringId)) { dalvikInsns.add(s); }
-                    } else if (constant.tag == CONSTANT_Integer) {
-                        int intValue = ((ConstantIntegerInfo) constant).value;
+                        // Large merged dex files can have more than 64K strings
+                        short[] load = (dexStringId > 0xFFFF) ? makeConstStringJumbo(destReg, dexStringId)
+                                                              : makeConstString(destReg, dexStringId);
+                        for (short s : load) { dalvikInsns.add(s); }
+                        if (dalvikCode.stringIds == null) dalvikCode.stringIds = new ArrayList<>();
+                        dalvikCode.stringIds.add(dexStringId);
+                    } else if (constantTag == CONSTANT_Integer) {
+                        int intValue = constantPool.intValue(javaConstIndex);
                         if (intValue >= -8 && intValue <= 7) {
                             dalvikInsns.add(makeConst4(destReg, intValue));
-                        } else {
+                        } else if (intValue >= Short.MIN_VALUE && intValue <= Short.MAX_VALUE) {
                             for (short s : makeConst16(destReg, intValue)) { dalvikInsns.add(s); }
+                        } else {
+                            for (short s : makeConst(destReg, intValue)) { dalvikInsns.add(s); }
                         }
+                    } else if (constantTag == CONSTANT_Float) {
+                        // A float register holds the raw bits
+                        for (short s : makeConst(destReg, constantPool.intValue(javaConstIndex))) { dalvikInsns.add(s); }
                     } else {
-                        // TODO: Handle other constant types
+                        // Class, MethodType, MethodHandle and dynamic constants have no
+                        // translation yet; report them and hold the slot with null
+                        reportSkipped(context, constantPool, javaMethod, i, "ldc (tag " + constantTag + ")");
+                        dalvikInsns.add(makeConst4(destReg, 0));
                     }
-                    i += 2; break;
+                    i += (opcode == JAVA_LDC) ? 2 : 3; break;
                 }
                 case JAVA_ICONST_M1: dalvikInsns.add(makeConst4(stack.push(), -1)); i++; break;
                 case JAVA_ICONST_0: dalvikInsns.add(makeConst4(stack.push(), 0)); i++; break;
@@ -2297,72 +5004,34 @@ public class PureCodeDEXGenerator {
                 case JAVA_ICONST_3: dalvikInsns.add(makeConst4(stack.push(), 3)); i++; break;
                 case JAVA_ICONST_4: dalvikInsns.add(makeConst4(stack.push(), 4)); i++; break;
                 case JAVA_ICONST_5: dalvikInsns.add(makeConst4(stack.push(), 5)); i++; break;
+                case JAVA_BIPUSH:
+                    for (short s : makeConst16(stack.push(), javaBytecode[i+1])) { dalvikInsns.add(s); }
+                    i += 2; break;
+                case JAVA_SIPUSH:
+                    for (short s : makeConst16(stack.push(), (short) (((javaBytecode[i+1] & 0xFF) << 8) | (javaBytecode[i+2] & 0xFF)))) { dalvikInsns.add(s); }
+                    i += 3; break;
                 case JAVA_IRETURN: dalvikInsns.add(makeReturn(DALVIK_RETURN, stack.pop())); i++; break;
                 case JAVA_ARETURN: dalvikInsns.add(makeReturn(DALVIK_RETURN_OBJECT, stack.pop())); i++; break;
                 case JAVA_FRETURN: dalvikInsns.add(makeReturn(DALVIK_RETURN, stack.pop())); i++; break;
                 case JAVA_RETURN: dalvikInsns.add((short) DALVIK_RETURN_VOID); i++; break;
                     
                 default:
-                    System.out.println("Warning: Skipping unknown Java opcode: 0x" + Integer.toHexString(opcode));
-                    // A real translator would parse the opcode length table here
-                    i++; 
+                    reportSkipped(context, constantPool, javaMethod, i, "0x" + Integer.toHexString(opcode));
+                    i += javaInstructionLength(javaBytecode, 0, i);
             }
         }
         
-        javaPcToDalvikPcMap.put(javaBytecode.length, dalvikInsns.size());
+        javaPcToDalvikPc[javaBytecode.length] = dalvikInsns.size();
+        if (stats != null && stats.skippedOpcodes.size() > skippedBefore) stats.methodsWithSkippedOpcodes++;
 
         // --- PROCESS EXCEPTIONS ---
         if (javaCode.exceptionTable.length > 0) {
-            Map<String, List<ExceptionTableEntry>> groupedTries = new HashMap<>();
-            for (ExceptionTableEntry entry : javaCode.exceptionTable) {
-                String key = entry.startPc + ":" + entry.endPc;
-                if (!groupedTries.containsKey(key)) {
-                    groupedTries.put(key, new ArrayList<ExceptionTableEntry>());
-                }
-                groupedTries.get(key).add(entry);
-            }
-            Map<DalvikHandlerList, Integer> handlerListIndexMap = new HashMap<>();
-            for (String key : groupedTries.keySet()) {
-                List<ExceptionTableEntry> javaHandlers = groupedTries.get(key);
-                DalvikHandlerList handlerList = new DalvikHandlerList();
-                for (ExceptionTableEntry javaEntry : javaHandlers) {
-                    if (javaEntry.catchType == 0) {
-                        handlerList.javaCatchAllPc = javaEntry.handlerPc;
-                    } else {
-                        int typeId = findDexTypeId(constantPool, javaEntry.catchType, typeSection);
-                        handlerList.handlers.add(new DalvikCatchHandler(typeId, javaEntry.handlerPc));
-                    }
-                }
-                
-                int handlerListIndex;
-                if (handlerListIndexMap.containsKey(handlerList)) {
-                    handlerListIndex = handlerListIndexMap.get(handlerList);
-                } else {
-                    handlerListIndex = dalvikCode.handlerLists.size();
-                    dalvikCode.handlerLists.add(handlerList);
-                    handlerListIndexMap.put(handlerList, handlerListIndex);
-                }
-                
-                int javaStartPc = javaHandlers.get(0).startPc;
-                int javaEndPc = javaHandlers.get(0).endPc;
-                Integer dalvikStartPc = javaPcToDalvikPcMap.get(javaStartPc);
-                Integer dalvikEndPc = javaPcToDalvikPcMap.get(javaEndPc);
-
-            dalvikCode.tries.add(new DalvikTryItem(dalvikStartPc, dalvikEndPc - dalvikStartPc, handlerListIndex));
-            }
-
-            for (DalvikHandlerList handlerList : dalvikCode.handlerLists) {
-                for (DalvikCatchHandler handler : handlerList.handlers) {
-                    handler.dalvikHandlerPc = javaPcToDalvikPcMap.get(handler.javaHandlerPc);
-                }
-                if (handlerList.javaCatchAllPc != 0) {
-                    handlerList.dalvikCatchAllPc = javaPcToDalvikPcMap.get(handlerList.javaCatchAllPc);
-                }
-            }
+            buildTryItems(dalvikCode, javaCode.exceptionTable, javaPcToDalvikPc, javaBytecode.length,
+                          constantPool, typeSection);
         }
 
         for (BranchFixup fixup : fixups) {
-            Integer dalvikTargetPc = javaPcToDalvikPcMap.get(fixup.javaTargetOffset);
+            int dalvikTargetPc = javaPcToDalvikPc[fixup.javaTargetOffset];
             int offset = dalvikTargetPc - fixup.dalvikInsnIndex;
             short[] newBranch = null;
             switch (fixup.javaOpcode) {
@@ -2389,16 +5058,139 @@ public class PureCodeDEXGenerator {
             }
         }
 
-        dalvikCode.insns = new short[dalvikInsns.size()];
-        for (int j = 0; j < dalvikInsns.size(); j++) {
-            dalvikCode.insns[j] = dalvikInsns.get(j);
-        }
+        dalvikCode.insns = dalvikInsns.toArray();
 
         dalvikCode.insnsSize = dalvikCode.insns.length;
-        dalvikCode.outsSize = stack.stackPointer;
+        dalvikCode.outsSize = dalvikCode.maxOuts;
         dalvikCode.triesSize = dalvikCode.tries.size();
 
-        return writeCodeItem(writer, dalvikCode, mapBuilder);
+        return dalvikCode;
+    }
+
+    /**
+     * Builds the try_items and handler lists for a method from its Java exception table.
+     * Java ranges may overlap, Dalvik try_items may not, so the table is swept over every
+     * distinct range boundary: each segment gets the handlers of all entries covering it
+     * (in table order, first match wins), adjacent segments with identical handlers are
+     * merged, and identical handler lists are shared between try_items.
+     */
+    private static void buildTryItems(CodeItem dalvikCode, ExceptionTableEntry[] exceptionTable,
+                                      int[] javaPcToDalvikPc, int javaCodeLength,
+                                      ConstantPool constantPool, TypeSection typeSection) throws Exception {
+        // Collect the sorted, distinct range boundaries
+        int[] boundaries = new int[exceptionTable.length * 2];
+        for (int k = 0; k < exceptionTable.length; k++) {
+            boundaries[2 * k] = exceptionTable[k].startPc;
+            boundaries[2 * k + 1] = exceptionTable[k].endPc;
+        }
+        Arrays.sort(boundaries);
+        int boundaryCount = 0;
+        for (int k = 0; k < boundaries.length; k++) {
+            if (boundaryCount == 0 || boundaries[boundaryCount - 1] != boundaries[k]) {
+                boundaries[boundaryCount++] = boundaries[k];
+            }
+        }
+
+        Map<DalvikHandlerList, Integer> handlerListIndexMap = new HashMap<>();
+        DalvikTryItem openTry = null;
+        int openTryEnd = -1;
+
+        for (int b = 0; b + 1 < boundaryCount; b++) {
+            int segmentStart = boundaries[b];
+            int segmentEnd = boundaries[b + 1];
+
+            DalvikHandlerList handlerList = new DalvikHandlerList();
+            for (ExceptionTableEntry entry : exceptionTable) {
+                if (entry.startPc > segmentStart || entry.endPc < segmentEnd) continue;
+                if (entry.catchType == 0) {
+                    // Catch-all: any later entry for this segment is unreachable
+                    handlerList.javaCatchAllPc = entry.handlerPc;
+                    break;
+                }
+                int typeId = findDexTypeId(constantPool, entry.catchType, typeSection);
+                boolean shadowed = false;
+                for (DalvikCatchHandler existing : handlerList.handlers) {
+                    if (existing.typeId == typeId) { shadowed = true; break; }
+                }
+                if (!shadowed) {
+                    handlerList.handlers.add(new DalvikCatchHandler(typeId, entry.handlerPc));
+                }
+            }
+            if (handlerList.handlers.isEmpty() && handlerList.javaCatchAllPc == -1) {
+                openTry = null;
+                continue;
+            }
+
+            int dalvikStartPc = dalvikPcAt(javaPcToDalvikPc, javaCodeLength, segmentStart);
+            int dalvikEndPc = dalvikPcAt(javaPcToDalvikPc, javaCodeLength, segmentEnd);
+            if (dalvikStartPc == -1 || dalvikEndPc == -1) {
+                throw new Exception("Exception range " + segmentStart + "-" + segmentEnd +
+                                    " does not fall on instruction boundaries");
+            }
+            if (dalvikEndPc == dalvikStartPc) continue;
+
+            Integer handlerListIndex = handlerListIndexMap.get(handlerList);
+            if (handlerListIndex == null) {
+                handlerListIndex = dalvikCode.handlerLists.size();
+                dalvikCode.handlerLists.add(handlerList);
+                handlerListIndexMap.put(handlerList, handlerListIndex);
+            }
+
+            // Extend the previous try_item when it ends here with the same handlers
+            if (openTry != null && openTry.handlerIndex == handlerListIndex &&
+                openTryEnd == dalvikStartPc &&
+                openTry.insnCount + (dalvikEndPc - dalvikStartPc) <= 0xFFFF) {
+                openTry.insnCount += dalvikEndPc - dalvikStartPc;
+            } else {
+                int start = dalvikStartPc;
+                // insn_count is a u2, so very long ranges are split, each piece ending at the
+                // last instruction start that fits; Java instruction starts are Dalvik ones
+                int javaPc = segmentStart;
+                while (dalvikEndPc - start > 0xFFFF) {
+                    int splitPc = -1;
+                    for (; javaPc < segmentEnd; javaPc++) {
+                        int dalvikPc = javaPcToDalvikPc[javaPc];
+                        if (dalvikPc <= start) continue;
+                        if (dalvikPc - start > 0xFFFF) break;
+                        splitPc = dalvikPc;
+                    }
+                    if (splitPc == -1) {
+                        throw new Exception("Instruction at Java pc " + javaPc + " is too long for a try_item");
+                    }
+                    dalvikCode.tries.add(new DalvikTryItem(start, splitPc - start, handlerListIndex));
+                    start = splitPc;
+                }
+                openTry = new DalvikTryItem(start, dalvikEndPc - start, handlerListIndex);
+                dalvikCode.tries.add(openTry);
+            }
+            openTryEnd = dalvikEndPc;
+        }
+
+        for (DalvikHandlerList handlerList : dalvikCode.handlerLists) {
+            for (DalvikCatchHandler handler : handlerList.handlers) {
+                handler.dalvikHandlerPc = javaPcToDalvikPc[handler.javaHandlerPc];
+            }
+            if (handlerList.javaCatchAllPc != -1) {
+                handlerList.dalvikCatchAllPc = javaPcToDalvikPc[handlerList.javaCatchAllPc];
+            }
+        }
+    }
+
+    /** Records an untranslated opcode in the stats, or prints a warning when nobody collects them. */
+    private static void reportSkipped(ConversionContext context, ConstantPool constantPool,
+                                      MethodInfo javaMethod, int pc, String opcode) {
+        if (context.stats == null) {
+            System.out.println("Warning: Skipping unsupported Java opcode: " + opcode);
+            return;
+        }
+        String method = context.currentClass + "->" + constantPool.utf8(javaMethod.nameIndex) +
+                        constantPool.utf8(javaMethod.descriptorIndex);
+        context.stats.skipped(method, pc, opcode);
+    }
+
+    /** Returns the Dalvik PC of a Java PC, or -1 if it isn't an instruction boundary. */
+    private static int dalvikPcAt(int[] javaPcToDalvikPc, int javaCodeLength, int javaPc) {
+        return (javaPc >= 0 && javaPc <= javaCodeLength) ? javaPcToDalvikPc[javaPc] : -1;
     }
 }
 
@@ -1,55 +1,66 @@
 package com.mobileforge.compiler;
 
 import android.util.Log;
+import com.mobileforge.PureCodeDEXGenerator;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MFNLCompiler {
     private static final String TAG = "MFNLCompiler";
+    private static final String ACTIVITY_CLASS = "com.mobileforge.generated.MainActivity";
+
+    // Writes the optional on-disk copies of generated classes off the build thread
+    private static final ExecutorService mirrorExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mfnl-class-mirror");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static class CompileResult {
         public boolean success;
         public String message;
-        public List<File> generatedClassFiles;
+        public List<File> generatedClassFiles; // On-disk mirror copies, written in the background
+        // Generated class bytes by internal name, handed straight to the dex stage
+        public Map<String, byte[]> generatedClasses;
+        // Startup profile rules for the generated entry points (onCreate runs the 'when loaded' code)
+        public List<String> startupMethods;
+        // Classes from compileToDalvik, ready for the dex writer
+        public List<PureCodeDEXGenerator.DalvikClass> dalvikClasses;
 
         public CompileResult(boolean success, String message) {
             this.success = success;
             this.message = message;
             this.generatedClassFiles = new ArrayList<>();
+            this.generatedClasses = new LinkedHashMap<>();
+            this.startupMethods = new ArrayList<>();
+            this.dalvikClasses = new ArrayList<>();
         }
     }
 
+    /**
+     * Compiles an MFNL file to class bytes, returned in the result. If outputDir is
+     * not null the .class files are also mirrored there in the background.
+     */
     public static CompileResult compile(File mfnlFile, File outputDir) {
         Log.d(TAG, "Compiling MFNL file: " + mfnlFile.getAbsolutePath());
 
         try {
-            // Read MFNL source
-            String source = readFile(mfnlFile);
-            if (source == null || source.trim().isEmpty()) {
+            ASTNode.Program program = parseFile(mfnlFile);
+            if (program == null) {
                 return new CompileResult(false, "ERROR: Empty or unreadable MFNL file");
             }
 
-            Log.d(TAG, "MFNL source length: " + source.length() + " chars");
-
-            // Lexical analysis
-            Log.d(TAG, "Starting lexical analysis...");
-            Lexer lexer = new Lexer(source);
-            List<Token> tokens = lexer.tokenize();
-            Log.d(TAG, "Tokenization complete: " + tokens.size() + " tokens");
-
-            // Syntax analysis
-            Log.d(TAG, "Starting syntax analysis...");
-            Parser parser = new Parser(tokens);
-            ASTNode.Program program = parser.parse();
-            Log.d(TAG, "Parsing complete: " + program.statements.size() + " statements");
-
             // Bytecode generation
             Log.d(TAG, "Starting bytecode generation...");
             SimpleJavaCompiler.CompileResult compileResult =
-                SimpleJavaCompiler.compileFromAST(program, "com.mobileforge.generated.MainActivity");
+                SimpleJavaCompiler.compileFromAST(program, ACTIVITY_CLASS);
 
             if (!compileResult.success) {
                 return new CompileResult(false, compileResult.message);
@@ -57,24 +68,56 @@ public class MFNLCompiler {
 
             Log.d(TAG, "Bytecode generation complete: " + compileResult.classData.length + " bytes");
 
-            // Write .class file
-            if (!outputDir.exists()) {
-                outputDir.mkdirs();
+            String internalName = ACTIVITY_CLASS.replace('.', '/');
+            CompileResult result = new CompileResult(true, "SUCCESS: MFNL compiled to bytecode\nGenerated: " +
+                internalName.substring(internalName.lastIndexOf('/') + 1) + ".class");
+            result.generatedClasses.put(internalName, compileResult.classData);
+            if (compileResult.listenerClassData != null) {
+                result.generatedClasses.put(compileResult.listenerClassName, compileResult.listenerClassData);
+            }
+            if (outputDir != null) {
+                for (Map.Entry<String, byte[]> generated : result.generatedClasses.entrySet()) {
+                    File classFile = new File(outputDir, generated.getKey() + ".class");
+                    mirrorClassFile(classFile, generated.getValue());
+                    result.generatedClassFiles.add(classFile);
+                }
             }
+            addStartupMethods(result, compileResult);
+            return result;
 
-            // Create package directory
-            File packageDir = new File(outputDir, "com/mobileforge/generated");
-            if (!packageDir.exists()) {
-                packageDir.mkdirs();
+        } catch (Exception e) {
+            Log.e(TAG, "Compilation error", e);
+            return new CompileResult(false, "ERROR: " + e.getMessage() + "\n" + getStackTrace(e));
+        }
+    }
+
+    /**
+     * Compiles an MFNL file straight to Dalvik code for the dex writer. Nothing is
+     * written to disk and there is no .class file to parse and translate.
+     */
+    public static CompileResult compileToDalvik(File mfnlFile) {
+        Log.d(TAG, "Compiling MFNL file to Dalvik: " + mfnlFile.getAbsolutePath());
+
+        try {
+            ASTNode.Program program = parseFile(mfnlFile);
+            if (program == null) {
+                return new CompileResult(false, "ERROR: Empty or unreadable MFNL file");
             }
 
-            File classFile = new File(packageDir, "MainActivity.class");
-            writeFile(classFile, compileResult.classData);
+            Log.d(TAG, "Starting Dalvik code generation...");
+            SimpleJavaCompiler.CompileResult compileResult =
+                SimpleJavaCompiler.compileToDalvik(program, ACTIVITY_CLASS);
 
-            Log.d(TAG, ".class file written: " + classFile.getAbsolutePath());
+            if (!compileResult.success) {
+                return new CompileResult(false, compileResult.message);
+            }
 
-            CompileResult result = new CompileResult(true, "SUCCESS: MFNL compiled to bytecode\nGenerated: " + classFile.getName());
-            result.generatedClassFiles.add(classFile);
+            CompileResult result = new CompileResult(true, "SUCCESS: MFNL compiled to Dalvik code");
+            result.dalvikClasses.add(compileResult.dalvikClass);
+            if (compileResult.listenerDalvikClass != null) {
+                result.dalvikClasses.add(compileResult.listenerDalvikClass);
+            }
+            addStartupMethods(result, compileResult);
             return result;
 
         } catch (Exception e) {
@@ -83,8 +126,51 @@ public class MFNLCompiler {
         }
     }
 
+    /** Reads, tokenizes and parses an MFNL file; returns null if it is empty or unreadable. */
+    private static ASTNode.Program parseFile(File mfnlFile) {
+        // Read MFNL source
+        String source = readFile(mfnlFile);
+        if (source == null || source.trim().isEmpty()) {
+            return null;
+        }
+
+        Log.d(TAG, "MFNL source length: " + source.length() + " chars");
+
+        // Lexical analysis
+        Log.d(TAG, "Starting lexical analysis...");
+        Lexer lexer = new Lexer(source);
+        List<Token> tokens = lexer.tokenize();
+        Log.d(TAG, "Tokenization complete: " + tokens.size() + " tokens");
+
+        // Syntax analysis
+        Log.d(TAG, "Starting syntax analysis...");
+        Parser parser = new Parser(tokens);
+        ASTNode.Program program = parser.parse();
+        Log.d(TAG, "Parsing complete: " + program.statements.size() + " statements");
+        return program;
+    }
+
+    /**
+     * Adds profile rules for the constructor, onCreate, the build<Section> methods
+     * onCreate calls and the click dispatcher's constructor, which onCreate also runs.
+     * Both backends generate every method named here.
+     */
+    private static void addStartupMethods(CompileResult result, SimpleJavaCompiler.CompileResult compileResult) {
+        String activity = "L" + ACTIVITY_CLASS.replace('.', '/') + ";";
+        result.startupMethods.add(activity + "-><init>()V");
+        result.startupMethods.add(activity + "->onCreate(Landroid/os/Bundle;)V");
+        for (String section : compileResult.sectionMethods) {
+            result.startupMethods.add(activity + "->" + section + "(Landroid/widget/LinearLayout;)V");
+        }
+        if (compileResult.listenerClassName != null) {
+            result.startupMethods.add("L" + compileResult.listenerClassName + ";-><init>()V");
+        }
+    }
+
     public static CompileResult compileMultiple(List<File> mfnlFiles, File outputDir) {
         List<File> allGeneratedFiles = new ArrayList<>();
+        Map<String, byte[]> allGeneratedClasses = new LinkedHashMap<>();
+        List<String> startupMethods = new ArrayList<>();
         StringBuilder messages = new StringBuilder();
 
         for (File mfnlFile : mfnlFiles) {
@@ -93,14 +179,31 @@ public class MFNLCompiler {
                 return result; // Return first error
             }
             allGeneratedFiles.addAll(result.generatedClassFiles);
+            allGeneratedClasses.putAll(result.generatedClasses);
+            startupMethods.addAll(result.startupMethods);
             messages.append(result.message).append("\n");
         }
 
         CompileResult finalResult = new CompileResult(true, messages.toString());
         finalResult.generatedClassFiles = allGeneratedFiles;
+        finalResult.generatedClasses = allGeneratedClasses;
+        finalResult.startupMethods = startupMethods;
         return finalResult;
     }
 
+    /** Queues a copy of a generated class for disk; the build never waits on it. */
+    private static void mirrorClassFile(final File classFile, final byte[] classData) {
+        mirrorExecutor.execute(() -> {
+            try {
+                classFile.getParentFile().mkdirs();
+                writeFile(classFile, classData);
+                Log.d(TAG, ".class file mirrored: " + classFile.getAbsolutePath());
+            } catch (Exception e) {
+                Log.e(TAG, "Error mirroring " + classFile.getAbsolutePath(), e);
+            }
+        });
+    }
+
     private static String readFile(File file) {
         try {
             FileInputStream fis = new FileInputStream(file);
@@ -1,8 +1,10 @@
 package com.mobileforge.compiler;
 
 import android.util.Log;
+import com.mobileforge.PureCodeDEXGenerator;
 import java.io.*;
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * Bytecode compiler that works directly on MFNL AST
@@ -15,6 +17,12 @@ public class SimpleJavaCompiler {
         public boolean success;
         public String message;
         public byte[] classData;
+        public PureCodeDEXGenerator.DalvikClass dalvikClass; // Set by compileToDalvik instead of classData
+        public List<String> sectionMethods = new ArrayList<>(); // build<Section> methods onCreate calls
+        // The activity's click dispatcher, if any view has a 'when clicked' handler
+        public String listenerClassName; // Internal name, e.g. ".../MainActivity$ClickDispatcher"
+        public byte[] listenerClassData;
+        public PureCodeDEXGenerator.DalvikClass listenerDalvikClass;
 
         public CompileResult(boolean success, String message, byte[] classData) {
             this.success = success;
@@ -23,12 +31,44 @@ public class SimpleJavaCompiler {
         }
     }
 
+    /** Bytes of code a generated method may reach before the next view goes into a new section. */
+    public static final int DEFAULT_METHOD_BUDGET = 8 * 1024;
+
+    // Section methods take the parent layout: private void buildSectionN(LinearLayout root)
+    private static final String SECTION_DESCRIPTOR = "(Landroid/widget/LinearLayout;)V";
+
+    // Registers of the direct backend's methods: [root, view, scratch x2][this, parameter]
+    private static final int REG_ROOT = 0;
+    private static final int REG_VIEW = 1;
+    private static final int REG_TEMP = 2;
+    private static final int REG_TEMP2 = 3;
+    private static final int ON_CREATE_LOCALS = 4;
+
+    private static final String CLICK_LISTENER = "android/view/View$OnClickListener";
+    private static final String ON_CLICK_DESCRIPTOR = "(Landroid/view/View;)V";
+
     public static CompileResult compileFromAST(ASTNode.Program program, String className) {
+        return compileFromAST(program, className, DEFAULT_METHOD_BUDGET);
+    }
+
+    /**
+     * Compiles the AST to a .class file. Views are built in onCreate until its code
+     * passes methodBudget bytes; the rest go into private build<Section> methods
+     * that onCreate calls in order, each up to the same budget.
+     */
+    public static CompileResult compileFromAST(ASTNode.Program program, String className, int methodBudget) {
         try {
             Log.d(TAG, "Compiling AST to bytecode for class: " + className);
 
             ClassBuilder classBuilder = new ClassBuilder(className);
 
+            // public <init>() { super(); } - the framework instantiates activities through it
+            MethodBuilder init = classBuilder.startMethod("<init>", "()V", true);
+            init.addAload(0);
+            init.addMethodCall("android/app/Activity", "<init>", "()V", false);
+            init.addReturn();
+            classBuilder.endMethod(init);
+
             // Generate onCreate method
             MethodBuilder onCreate = classBuilder.startMethod("onCreate", "(Landroid/os/Bundle;)V", true);
 
@@ -58,12 +98,13 @@ public class SimpleJavaCompiler {
             onCreate.addMethodCall("android/widget/LinearLayout$LayoutParams", "<init>", "(II)V", false);
             onCreate.addMethodCall("android/widget/LinearLayout", "setLayoutParams", "(Landroid/view/ViewGroup$LayoutParams;)V", false);
 
-            int nextLocalVar = 3;
-
             // Process all statements in the program
+            ViewSections sections = new ViewSections(classBuilder, onCreate, methodBudget);
+            ClickHandlers clicks = new ClickHandlers(classBuilder.className);
             for (ASTNode.Statement stmt : program.statements) {
-                nextLocalVar = generateStatement(onCreate, stmt, 2, nextLocalVar, classBuilder);
+                generateSectioned(sections, stmt, classBuilder, clicks);
             }
+            sections.finish();
 
             // setContentView(rootLayout)
             onCreate.addAload(0); // this
@@ -76,7 +117,89 @@ public class SimpleJavaCompiler {
             byte[] classData = classBuilder.build();
 
             Log.d(TAG, "Bytecode generation successful: " + classData.length + " bytes");
-            return new CompileResult(true, "Bytecode compilation successful", classData);
+            CompileResult result = new CompileResult(true, "Bytecode compilation successful", classData);
+            result.sectionMethods.addAll(sections.names);
+            if (!clicks.bodies.isEmpty()) {
+                result.listenerClassName = clicks.listenerClass;
+                result.listenerClassData = clicks.buildClass();
+            }
+            return result;
+
+        } catch (Exception e) {
+            Log.e(TAG, "Compilation failed", e);
+            StringWriter sw = new StringWriter();
+            e.printStackTrace(new PrintWriter(sw));
+            return new CompileResult(false, "Compilation failed: " + e.getMessage() + "\n" + sw.toString(), null);
+        }
+    }
+
+    /**
+     * Compiles the AST straight to Dalvik register code, skipping the .class file
+     * and its parse and stack translation in the dex stage. Every view of a place
+     * statement reuses the same register, so the register count stays constant.
+     */
+    public static CompileResult compileToDalvik(ASTNode.Program program, String className) {
+        return compileToDalvik(program, className, DEFAULT_METHOD_BUDGET);
+    }
+
+    /** Compiles the AST to Dalvik code, splitting view construction like compileFromAST. */
+    public static CompileResult compileToDalvik(ASTNode.Program program, String className, int methodBudget) {
+        try {
+            Log.d(TAG, "Compiling AST to Dalvik code for class: " + className);
+
+            String classDescriptor = "L" + className.replace('.', '/') + ";";
+            PureCodeDEXGenerator.DalvikClass dalvikClass =
+                new PureCodeDEXGenerator.DalvikClass(classDescriptor, "Landroid/app/Activity;", 0x0001);
+
+            // public <init>() { super(); }
+            RegisterMethodBuilder init = new RegisterMethodBuilder(
+                dalvikClass.addMethod("<init>", "()V", 0x10001), 0, 1);
+            init.addInvokeDirect("android/app/Activity", "<init>", "()V", init.param(0));
+            init.addReturnVoid();
+
+            RegisterMethodBuilder onCreate = new RegisterMethodBuilder(
+                dalvikClass.addMethod("onCreate", "(Landroid/os/Bundle;)V", 0x0001), ON_CREATE_LOCALS, 2);
+            int self = onCreate.param(0);
+
+            // super.onCreate(savedInstanceState)
+            onCreate.addInvokeSuper("android/app/Activity", "onCreate", "(Landroid/os/Bundle;)V",
+                self, onCreate.param(1));
+
+            // Root LinearLayout, vertical, MATCH_PARENT in both directions
+            onCreate.addNewInstance(REG_ROOT, "android/widget/LinearLayout");
+            onCreate.addInvokeDirect("android/widget/LinearLayout", "<init>", "(Landroid/content/Context;)V",
+                REG_ROOT, self);
+            onCreate.addConst(REG_TEMP, 1); // LinearLayout.VERTICAL
+            onCreate.addInvokeVirtual("android/widget/LinearLayout", "setOrientation", "(I)V", REG_ROOT, REG_TEMP);
+            onCreate.addNewInstance(REG_TEMP, "android/widget/LinearLayout$LayoutParams");
+            onCreate.addConst(REG_TEMP2, -1); // MATCH_PARENT
+            onCreate.addInvokeDirect("android/widget/LinearLayout$LayoutParams", "<init>", "(II)V",
+                REG_TEMP, REG_TEMP2, REG_TEMP2);
+            onCreate.addInvokeVirtual("android/widget/LinearLayout", "setLayoutParams",
+                "(Landroid/view/ViewGroup$LayoutParams;)V", REG_ROOT, REG_TEMP);
+
+            DalvikViewSections sections = new DalvikViewSections(dalvikClass,
+                className.replace('.', '/'), onCreate, methodBudget);
+            ClickHandlers clicks = new ClickHandlers(className.replace('.', '/'));
+            for (ASTNode.Statement stmt : program.statements) {
+                generateDalvikSectioned(sections, stmt, clicks);
+            }
+            sections.finish();
+
+            // setContentView(rootLayout)
+            onCreate.addInvokeVirtual("android/app/Activity", "setContentView", "(Landroid/view/View;)V",
+                self, REG_ROOT);
+            onCreate.addReturnVoid();
+
+            Log.d(TAG, "Dalvik code generation successful");
+            CompileResult result = new CompileResult(true, "Dalvik compilation successful", null);
+            result.dalvikClass = dalvikClass;
+            result.sectionMethods.addAll(sections.names);
+            if (!clicks.bodies.isEmpty()) {
+                result.listenerClassName = clicks.listenerClass;
+                result.listenerDalvikClass = clicks.buildDalvikClass();
+            }
+            return result;
 
         } catch (Exception e) {
             Log.e(TAG, "Compilation failed", e);
@@ -86,12 +209,132 @@ public class SimpleJavaCompiler {
         }
     }
 
+    /** Emits a statement, descending into build blocks so that splits fall between their views. */
+    private static void generateDalvikSectioned(DalvikViewSections sections, ASTNode.Statement stmt,
+                                                ClickHandlers clicks) {
+        if (stmt instanceof ASTNode.BuildStatement) {
+            for (ASTNode.Statement bodyStmt : ((ASTNode.BuildStatement) stmt).body) {
+                generateDalvikSectioned(sections, bodyStmt, clicks);
+            }
+        } else {
+            RegisterMethodBuilder method = sections.current();
+            generateDalvikStatement(method, stmt, sections.rootRegister(), clicks);
+        }
+    }
+
+    private static void generateDalvikStatement(RegisterMethodBuilder method, ASTNode.Statement stmt, int root,
+                                                ClickHandlers clicks) {
+        int self = method.param(0);
+        if (stmt instanceof ASTNode.BuildStatement) {
+            for (ASTNode.Statement bodyStmt : ((ASTNode.BuildStatement) stmt).body) {
+                generateDalvikStatement(method, bodyStmt, root, clicks);
+            }
+        } else if (stmt instanceof ASTNode.PlaceStatement) {
+            ASTNode.PlaceStatement place = (ASTNode.PlaceStatement) stmt;
+            String viewClass = getAndroidViewClass(place.objectType);
+
+            method.addNewInstance(REG_VIEW, viewClass);
+            method.addInvokeDirect(viewClass, "<init>", "(Landroid/content/Context;)V", REG_VIEW, self);
+
+            if (place.name != null && !place.name.isEmpty()) {
+                if (viewClass.equals("android/widget/TextView") ||
+                    viewClass.equals("android/widget/Button")) {
+                    method.addConstString(REG_TEMP, place.name);
+                    method.addInvokeVirtual(viewClass, "setText", "(Ljava/lang/CharSequence;)V", REG_VIEW, REG_TEMP);
+                }
+            }
+
+            for (ASTNode.Statement bodyStmt : place.body) {
+                if (bodyStmt instanceof ASTNode.PropertyStatement) {
+                    applyDalvikProperty(method, (ASTNode.PropertyStatement) bodyStmt);
+                } else if (bodyStmt instanceof ASTNode.WhenStatement) {
+                    generateDalvikWhenStatement(method, (ASTNode.WhenStatement) bodyStmt, clicks);
+                }
+            }
+
+            method.addInvokeVirtual("android/widget/LinearLayout", "addView", "(Landroid/view/View;)V",
+                root, REG_VIEW);
+
+        } else if (stmt instanceof ASTNode.ActionStatement) {
+            generateDalvikAction(method, (ASTNode.ActionStatement) stmt, self);
+        }
+    }
+
+    /** Emits an action; context is the register holding the Context (the activity, or the clicked view's). */
+    private static void generateDalvikAction(RegisterMethodBuilder method, ASTNode.ActionStatement action,
+                                             int context) {
+        if (action.action.equals("show") && action.target != null && action.target.equals("message")) {
+            // Toast.makeText(context, message, Toast.LENGTH_SHORT).show()
+            if (action.value instanceof ASTNode.StringLiteral) {
+                method.addConstString(REG_TEMP, ((ASTNode.StringLiteral) action.value).value);
+            } else {
+                method.addConstString(REG_TEMP, "Message");
+            }
+            method.addConst(REG_TEMP2, 0); // Toast.LENGTH_SHORT
+            method.addInvokeStatic("android/widget/Toast", "makeText",
+                "(Landroid/content/Context;Ljava/lang/CharSequence;I)Landroid/widget/Toast;",
+                context, REG_TEMP, REG_TEMP2);
+            method.addMoveResultObject(REG_TEMP);
+            method.addInvokeVirtual("android/widget/Toast", "show", "()V", REG_TEMP);
+        }
+    }
+
+    private static void applyDalvikProperty(RegisterMethodBuilder method, ASTNode.PropertyStatement prop) {
+        String propName = prop.property.toLowerCase();
+
+        if (propName.equals("large")) {
+            method.addConst(REG_TEMP, 24.0f);
+            method.addInvokeVirtual("android/widget/TextView", "setTextSize", "(F)V", REG_VIEW, REG_TEMP);
+        } else if (propName.equals("bold")) {
+            // setTypeface(null, Typeface.BOLD)
+            method.addConst(REG_TEMP, 0);
+            method.addConst(REG_TEMP2, 1);
+            method.addInvokeVirtual("android/widget/TextView", "setTypeface",
+                "(Landroid/graphics/Typeface;I)V", REG_VIEW, REG_TEMP, REG_TEMP2);
+        } else if (propName.equals("small")) {
+            method.addConst(REG_TEMP, 12.0f);
+            method.addInvokeVirtual("android/widget/TextView", "setTextSize", "(F)V", REG_VIEW, REG_TEMP);
+        }
+    }
+
+    private static void generateDalvikWhenStatement(RegisterMethodBuilder method, ASTNode.WhenStatement when,
+                                                    ClickHandlers clicks) {
+        if (when.eventType.toLowerCase().contains("click")) {
+            // view.setId(handlerId); view.setOnClickListener(new ClickDispatcher())
+            method.addConst(REG_TEMP, clicks.register(when.body));
+            method.addInvokeVirtual("android/view/View", "setId", "(I)V", REG_VIEW, REG_TEMP);
+            method.addNewInstance(REG_TEMP, clicks.listenerClass);
+            method.addInvokeDirect(clicks.listenerClass, "<init>", "()V", REG_TEMP);
+            method.addInvokeVirtual("android/view/View", "setOnClickListener",
+                "(L" + CLICK_LISTENER + ";)V", REG_VIEW, REG_TEMP);
+        }
+    }
+
+    /**
+     * Emits a statement, descending into build blocks so that splits fall between
+     * their views. A view's local is dead once it is added to the parent, so every
+     * statement starts from the same first free local.
+     */
+    private static void generateSectioned(ViewSections sections, ASTNode.Statement stmt,
+                                          ClassBuilder classBuilder, ClickHandlers clicks) {
+        if (stmt instanceof ASTNode.BuildStatement) {
+            for (ASTNode.Statement bodyStmt : ((ASTNode.BuildStatement) stmt).body) {
+                generateSectioned(sections, bodyStmt, classBuilder, clicks);
+            }
+        } else {
+            MethodBuilder method = sections.current();
+            int parentVar = sections.parentVar();
+            generateStatement(method, stmt, parentVar, parentVar + 1, classBuilder, clicks);
+        }
+    }
+
     private static int generateStatement(MethodBuilder method, ASTNode.Statement stmt,
-                                         int parentVar, int nextVar, ClassBuilder classBuilder) {
+                                         int parentVar, int nextVar, ClassBuilder classBuilder,
+                                         ClickHandlers clicks) {
         if (stmt instanceof ASTNode.BuildStatement) {
             ASTNode.BuildStatement build = (ASTNode.BuildStatement) stmt;
             for (ASTNode.Statement bodyStmt : build.body) {
-                nextVar = generateStatement(method, bodyStmt, parentVar, nextVar, classBuilder);
+                nextVar = generateStatement(method, bodyStmt, parentVar, nextVar, classBuilder, clicks);
             }
         } else if (stmt instanceof ASTNode.PlaceStatement) {
             ASTNode.PlaceStatement place = (ASTNode.PlaceStatement) stmt;
@@ -122,7 +365,7 @@ public class SimpleJavaCompiler {
                                           viewClass, nextVar, classBuilder);
                 } else if (bodyStmt instanceof ASTNode.WhenStatement) {
                     nextVar = generateWhenStatement(method, viewVar, (ASTNode.WhenStatement) bodyStmt,
-                                                   nextVar, classBuilder);
+                                                   nextVar, clicks);
                 }
             }
 
@@ -132,25 +375,29 @@ public class SimpleJavaCompiler {
             method.addMethodCall("android/widget/LinearLayout", "addView", "(Landroid/view/View;)V", false);
 
         } else if (stmt instanceof ASTNode.ActionStatement) {
-            ASTNode.ActionStatement action = (ASTNode.ActionStatement) stmt;
-            if (action.action.equals("show") && action.target != null && action.target.equals("message")) {
-                // Toast.makeText(this, message, Toast.LENGTH_SHORT).show()
-                method.addAload(0); // this
-                if (action.value instanceof ASTNode.StringLiteral) {
-                    method.addLdc(((ASTNode.StringLiteral) action.value).value);
-                } else {
-                    method.addLdc("Message");
-                }
-                method.addIconst(0); // Toast.LENGTH_SHORT
-                method.addMethodCall("android/widget/Toast", "makeText",
-                    "(Landroid/content/Context;Ljava/lang/CharSequence;I)Landroid/widget/Toast;", true);
-                method.addMethodCall("android/widget/Toast", "show", "()V", false);
-            }
+            generateAction(method, (ASTNode.ActionStatement) stmt, 0); // this
         }
 
         return nextVar;
     }
 
+    /** Emits an action; contextVar is the local holding the Context (the activity, or the clicked view's). */
+    private static void generateAction(MethodBuilder method, ASTNode.ActionStatement action, int contextVar) {
+        if (action.action.equals("show") && action.target != null && action.target.equals("message")) {
+            // Toast.makeText(context, message, Toast.LENGTH_SHORT).show()
+            method.addAload(contextVar);
+            if (action.value instanceof ASTNode.StringLiteral) {
+                method.addLdc(((ASTNode.StringLiteral) action.value).value);
+            } else {
+                method.addLdc("Message");
+            }
+            method.addIconst(0); // Toast.LENGTH_SHORT
+            method.addMethodCall("android/widget/Toast", "makeText",
+                "(Landroid/content/Context;Ljava/lang/CharSequence;I)Landroid/widget/Toast;", true);
+            method.addMethodCall("android/widget/Toast", "show", "()V", false);
+        }
+    }
+
     private static int applyProperty(MethodBuilder method, int viewVar, ASTNode.PropertyStatement prop,
                                     String viewClass, int nextVar, ClassBuilder classBuilder) {
         String propName = prop.property.toLowerCase();
@@ -176,23 +423,26 @@ public class SimpleJavaCompiler {
         return nextVar;
     }
 
+    /**
+     * Tags the view with its handler's ID and attaches the activity's single
+     * ClickDispatcher, whose onClick runs the handler for that ID.
+     */
     private static int generateWhenStatement(MethodBuilder method, int viewVar,
                                             ASTNode.WhenStatement when, int nextVar,
-                                            ClassBuilder classBuilder) {
+                                            ClickHandlers clicks) {
         if (when.eventType.toLowerCase().contains("click")) {
-            // Generate anonymous OnClickListener class inline
-            // For now, just attach a simple listener that shows a toast
-
-            // Create a Runnable that executes the body
-            // view.setOnClickListener(new View.OnClickListener() {
-            //     public void onClick(View v) { ... }
-            // })
+            // view.setId(handlerId)
+            method.addAload(viewVar);
+            method.addIconst(clicks.register(when.body));
+            method.addMethodCall("android/view/View", "setId", "(I)V", false);
 
-            // This is complex - for now, add a simple click listener
+            // view.setOnClickListener(new ClickDispatcher())
             method.addAload(viewVar);
-            method.addAconst_null(); // Simple null listener for now
+            method.addNew(clicks.listenerClass);
+            method.addDup();
+            method.addMethodCall(clicks.listenerClass, "<init>", "()V", false);
             method.addMethodCall("android/view/View", "setOnClickListener",
-                "(Landroid/view/View$OnClickListener;)V", false);
+                "(L" + CLICK_LISTENER + ";)V", false);
         }
 
         return nextVar;
@@ -209,53 +459,243 @@ public class SimpleJavaCompiler {
         }
     }
 
+    /**
+     * Where view construction goes: onCreate until its code passes the budget, then
+     * private build<Section>(LinearLayout root) methods that onCreate calls in order.
+     */
+    static class ViewSections {
+        ClassBuilder classBuilder;
+        MethodBuilder onCreate;
+        MethodBuilder current;
+        int budget;
+        List<String> names = new ArrayList<>();
+
+        ViewSections(ClassBuilder classBuilder, MethodBuilder onCreate, int budget) {
+            this.classBuilder = classBuilder;
+            this.onCreate = onCreate;
+            this.current = onCreate;
+            this.budget = budget;
+        }
+
+        /** Returns the method the next statement goes into, starting a section if this one is full. */
+        MethodBuilder current() {
+            if (current.code.size() >= budget) {
+                if (current != onCreate) {
+                    current.addReturn();
+                }
+                String name = "buildSection" + (names.size() + 1);
+                names.add(name);
+                onCreate.addAload(0);
+                onCreate.addAload(2); // rootLayout
+                onCreate.addInvokeSpecial(classBuilder.className, name, SECTION_DESCRIPTOR);
+                current = classBuilder.startMethod(name, SECTION_DESCRIPTOR, 0x0002); // private
+            }
+            return current;
+        }
+
+        /** The local holding the root layout: local 2 in onCreate, the parameter in a section. */
+        int parentVar() {
+            return (current == onCreate) ? 2 : 1;
+        }
+
+        void finish() {
+            if (current != onCreate) {
+                current.addReturn();
+            }
+        }
+    }
+
+    /** ViewSections for the direct backend; the budget counts two bytes per code unit. */
+    static class DalvikViewSections {
+        PureCodeDEXGenerator.DalvikClass dalvikClass;
+        String className;
+        RegisterMethodBuilder onCreate;
+        RegisterMethodBuilder current;
+        int budget;
+        List<String> names = new ArrayList<>();
+
+        DalvikViewSections(PureCodeDEXGenerator.DalvikClass dalvikClass, String className,
+                           RegisterMethodBuilder onCreate, int budget) {
+            this.dalvikClass = dalvikClass;
+            this.className = className;
+            this.onCreate = onCreate;
+            this.current = onCreate;
+            this.budget = budget;
+        }
+
+        RegisterMethodBuilder current() {
+            if (current.method.insnsSize() * 2 >= budget) {
+                if (current != onCreate) {
+                    current.addReturnVoid();
+                }
+                String name = "buildSection" + (names.size() + 1);
+                names.add(name);
+                onCreate.addInvokeDirect(className, name, SECTION_DESCRIPTOR, onCreate.param(0), REG_ROOT);
+                current = new RegisterMethodBuilder(
+                    dalvikClass.addMethod(name, SECTION_DESCRIPTOR, 0x0002), ON_CREATE_LOCALS, 2);
+            }
+            return current;
+        }
+
+        /** The register holding the root layout: REG_ROOT in onCreate, the parameter in a section. */
+        int rootRegister() {
+            return (current == onCreate) ? REG_ROOT : current.param(1);
+        }
+
+        void finish() {
+            if (current != onCreate) {
+                current.addReturnVoid();
+            }
+        }
+    }
+
+    /**
+     * The 'when clicked' handlers of one activity. Each clickable view gets its
+     * handler's ID as its view ID, and a single ClickDispatcher class runs the
+     * handler matching the clicked view, so one class serves every handler.
+     */
+    static class ClickHandlers {
+        String listenerClass;
+        List<List<ASTNode.Statement>> bodies = new ArrayList<>();
+
+        ClickHandlers(String activityClass) {
+            this.listenerClass = activityClass + "$ClickDispatcher";
+        }
+
+        /** Records a handler body and returns its ID, counting from 1. */
+        int register(List<ASTNode.Statement> body) {
+            bodies.add(body);
+            return bodies.size();
+        }
+
+        /**
+         * public void onClick(View v) {
+         *     Context context = v.getContext(); int id = v.getId();
+         *     if (id == 1) { ...; return; }  if (id == 2) { ...; return; }  ...
+         * }
+         */
+        byte[] buildClass() throws IOException {
+            ClassBuilder classBuilder = new ClassBuilder(listenerClass, "java/lang/Object", CLICK_LISTENER);
+
+            MethodBuilder init = classBuilder.startMethod("<init>", "()V", true);
+            init.addAload(0);
+            init.addMethodCall("java/lang/Object", "<init>", "()V", false);
+            init.addReturn();
+            classBuilder.endMethod(init);
+
+            MethodBuilder onClick = classBuilder.startMethod("onClick", ON_CLICK_DESCRIPTOR, true);
+            onClick.addAload(1);
+            onClick.addMethodCall("android/view/View", "getContext", "()Landroid/content/Context;", false);
+            onClick.addAstore(2); // context
+            onClick.addAload(1);
+            onClick.addMethodCall("android/view/View", "getId", "()I", false);
+            onClick.addIstore(3); // id
+            onClick.setBranchTargetLocals("android/content/Context", "I");
+            for (int i = 0; i < bodies.size(); i++) {
+                onClick.addIload(3);
+                onClick.addIconst(i + 1);
+                int branch = onClick.addIfIcmpne();
+                for (ASTNode.Statement stmt : bodies.get(i)) {
+                    if (stmt instanceof ASTNode.ActionStatement) {
+                        generateAction(onClick, (ASTNode.ActionStatement) stmt, 2);
+                    }
+                }
+                onClick.addReturn();
+                onClick.bindBranch(branch);
+            }
+            onClick.addReturn();
+            classBuilder.endMethod(onClick);
+
+            return classBuilder.build();
+        }
+
+        /** The same class as Dalvik code for the direct backend. */
+        PureCodeDEXGenerator.DalvikClass buildDalvikClass() {
+            PureCodeDEXGenerator.DalvikClass dalvikClass = new PureCodeDEXGenerator.DalvikClass(
+                "L" + listenerClass + ";", "Ljava/lang/Object;", 0x0001);
+            dalvikClass.addInterface("L" + CLICK_LISTENER + ";");
+
+            RegisterMethodBuilder init = new RegisterMethodBuilder(
+                dalvikClass.addMethod("<init>", "()V", 0x10001), 0, 1);
+            init.addInvokeDirect("java/lang/Object", "<init>", "()V", init.param(0));
+            init.addReturnVoid();
+
+            // onClick has no root or view, so their registers hold the context and the ID
+            final int context = REG_ROOT;
+            final int id = REG_VIEW;
+            RegisterMethodBuilder onClick = new RegisterMethodBuilder(
+                dalvikClass.addMethod("onClick", ON_CLICK_DESCRIPTOR, 0x0001), ON_CREATE_LOCALS, 2);
+            int view = onClick.param(1);
+            onClick.addInvokeVirtual("android/view/View", "getContext", "()Landroid/content/Context;", view);
+            onClick.addMoveResultObject(context);
+            onClick.addInvokeVirtual("android/view/View", "getId", "()I", view);
+            onClick.addMoveResult(id);
+            for (int i = 0; i < bodies.size(); i++) {
+                onClick.addConst(REG_TEMP, i + 1);
+                int branch = onClick.addIfNe(id, REG_TEMP);
+                for (ASTNode.Statement stmt : bodies.get(i)) {
+                    if (stmt instanceof ASTNode.ActionStatement) {
+                        generateDalvikAction(onClick, (ASTNode.ActionStatement) stmt, context);
+                    }
+                }
+                onClick.addReturnVoid();
+                onClick.bindBranch(branch);
+            }
+            onClick.addReturnVoid();
+
+            return dalvikClass;
+        }
+    }
+
     // Constant pool entry types
     static class ConstantPool {
+        // constant_pool_count is a u2, so index 65534 is the last usable one
+        static final int MAX_ENTRIES = 65535;
+
         List<Object> entries = new ArrayList<>();
-        Map<String, Integer> stringCache = new HashMap<>();
-        Map<String, Integer> classCache = new HashMap<>();
+        // Every entry is interned under its kind and contents, so each constant appears once
+        Map<String, Integer> entryCache = new HashMap<>();
 
         public ConstantPool() {
             entries.add(null); // Index 0 is reserved
         }
 
-        public int addUtf8(String value) {
-            if (stringCache.containsKey(value)) {
-                return stringCache.get(value);
+        /** Returns the index of the entry stored under key, adding the one the factory makes if it is new. */
+        private int intern(String key, Supplier<Object> factory) {
+            Integer index = entryCache.get(key);
+            if (index != null) {
+                return index;
+            }
+            Object entry = factory.get(); // May add the entries it refers to first
+            index = entries.size();
+            if (index >= MAX_ENTRIES) {
+                throw new IllegalStateException("Constant pool overflow: more than " + (MAX_ENTRIES - 1) +
+                    " entries; split the screen into smaller files");
             }
-            int index = entries.size();
-            entries.add(new Utf8Entry(value));
-            stringCache.put(value, index);
+            entries.add(entry);
+            entryCache.put(key, index);
             return index;
         }
 
+        public int addUtf8(String value) {
+            return intern("utf8:" + value, () -> new Utf8Entry(value));
+        }
+
         public int addClass(String className) {
-            String key = "class:" + className;
-            if (classCache.containsKey(key)) {
-                return classCache.get(key);
-            }
-            int nameIndex = addUtf8(className);
-            int index = entries.size();
-            entries.add(new ClassEntry(nameIndex));
-            classCache.put(key, index);
-            return index;
+            return intern("class:" + className, () -> new ClassEntry(addUtf8(className)));
         }
 
         public int addString(String value) {
-            int utf8Index = addUtf8(value);
-            int index = entries.size();
-            entries.add(new StringEntry(utf8Index));
-            return index;
+            return intern("string:" + value, () -> new StringEntry(addUtf8(value)));
         }
 
         public int addMethodRef(String className, String methodName, String descriptor) {
-            int classIndex = addClass(className);
-            // Also add all types from the descriptor as Class entries
-            addTypesFromDescriptor(descriptor);
-            int nameAndTypeIndex = addNameAndType(methodName, descriptor);
-            int index = entries.size();
-            entries.add(new MethodRefEntry(classIndex, nameAndTypeIndex));
-            return index;
+            return intern("method:" + className + "." + methodName + ":" + descriptor, () -> {
+                int classIndex = addClass(className);
+                // Also add all types from the descriptor as Class entries
+                addTypesFromDescriptor(descriptor);
+                return new MethodRefEntry(classIndex, addNameAndType(methodName, descriptor));
+            });
         }
 
         private void addTypesFromDescriptor(String descriptor) {
@@ -290,33 +730,26 @@ public class SimpleJavaCompiler {
         }
 
         public int addFieldRef(String className, String fieldName, String descriptor) {
-            int classIndex = addClass(className);
-            // Also add the field type as a Class entry if it's an object
-            addTypesFromDescriptor(descriptor);
-            int nameAndTypeIndex = addNameAndType(fieldName, descriptor);
-            int index = entries.size();
-            entries.add(new FieldRefEntry(classIndex, nameAndTypeIndex));
-            return index;
+            return intern("field:" + className + "." + fieldName + ":" + descriptor, () -> {
+                int classIndex = addClass(className);
+                // Also add the field type as a Class entry if it's an object
+                addTypesFromDescriptor(descriptor);
+                return new FieldRefEntry(classIndex, addNameAndType(fieldName, descriptor));
+            });
         }
 
         public int addNameAndType(String name, String descriptor) {
-            int nameIndex = addUtf8(name);
-            int descIndex = addUtf8(descriptor);
-            int index = entries.size();
-            entries.add(new NameAndTypeEntry(nameIndex, descIndex));
-            return index;
+            return intern("nat:" + name + ":" + descriptor,
+                () -> new NameAndTypeEntry(addUtf8(name), addUtf8(descriptor)));
         }
 
         public int addFloat(float value) {
-            int index = entries.size();
-            entries.add(new FloatEntry(value));
-            return index;
+            // Keyed by bit pattern, so -0.0f and 0.0f stay distinct
+            return intern("float:" + Float.floatToRawIntBits(value), () -> new FloatEntry(value));
         }
 
         public int addInteger(int value) {
-            int index = entries.size();
-            entries.add(new IntegerEntry(value));
-            return index;
+            return intern("int:" + value, () -> new IntegerEntry(value));
         }
 
         public void write(DataOutputStream dos) throws IOException {
@@ -409,16 +842,28 @@ public class SimpleJavaCompiler {
 
     static class ClassBuilder {
         String className;
+        String superName;
+        String[] interfaces;
         ConstantPool pool;
         List<MethodBuilder> methods = new ArrayList<>();
 
         public ClassBuilder(String className) {
+            this(className, "android/app/Activity");
+        }
+
+        public ClassBuilder(String className, String superName, String... interfaces) {
             this.className = className.replace('.', '/');
+            this.superName = superName;
+            this.interfaces = interfaces;
             this.pool = new ConstantPool();
         }
 
         public MethodBuilder startMethod(String name, String descriptor, boolean isPublic) {
-            MethodBuilder method = new MethodBuilder(name, descriptor, isPublic, pool);
+            return startMethod(name, descriptor, isPublic ? 0x0001 : 0x0000);
+        }
+
+        public MethodBuilder startMethod(String name, String descriptor, int accessFlags) {
+            MethodBuilder method = new MethodBuilder(name, descriptor, accessFlags, pool);
             methods.add(method);
             return method;
         }
@@ -430,7 +875,11 @@ public class SimpleJavaCompiler {
         public byte[] build() throws IOException {
             // First pass: ensure all constant pool entries are added
             int thisClassIndex = pool.addClass(className);
-            int superClassIndex = pool.addClass("android/app/Activity");
+            int superClassIndex = pool.addClass(superName);
+            int[] interfaceIndexes = new int[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaceIndexes[i] = pool.addClass(interfaces[i]);
+            }
 
             // Pre-add method metadata to pool
             for (MethodBuilder method : methods) {
@@ -461,7 +910,10 @@ public class SimpleJavaCompiler {
             dos.writeShort(superClassIndex);
 
             // Interfaces
-            dos.writeShort(0);
+            dos.writeShort(interfaceIndexes.length);
+            for (int interfaceIndex : interfaceIndexes) {
+                dos.writeShort(interfaceIndex);
+            }
 
             // Fields
             dos.writeShort(0);
@@ -482,38 +934,97 @@ public class SimpleJavaCompiler {
     static class MethodBuilder {
         String name;
         String descriptor;
-        boolean isPublic;
+        int accessFlags;
         ConstantPool pool;
         ByteArrayOutputStream code = new ByteArrayOutputStream();
-        int maxStack = 10;
-        int maxLocals = 10;
-
-        public MethodBuilder(String name, String descriptor, boolean isPublic, ConstantPool pool) {
+        // Tracked as instructions are emitted; branches only happen on an empty stack, so this is exact
+        int stackDepth = 0;
+        int maxStack = 0;
+        int maxLocals;
+        // Branch targets share one StackMapTable frame: the parameters plus these locals, empty stack
+        List<String> branchTargetLocals = new ArrayList<>();
+        List<Integer> branchPositions = new ArrayList<>();
+        List<Integer> branchTargets = new ArrayList<>(); // Patched into the branches by write()
+
+        public MethodBuilder(String name, String descriptor, int accessFlags, ConstantPool pool) {
             this.name = name;
             this.descriptor = descriptor;
-            this.isPublic = isPublic;
+            this.accessFlags = accessFlags;
             this.pool = pool;
+            this.maxLocals = 1 + argumentWords(descriptor); // this + parameters
+        }
+
+        private void push(int words) {
+            stackDepth += words;
+            maxStack = Math.max(maxStack, stackDepth);
+        }
+
+        private void pop(int words) {
+            stackDepth -= words;
+        }
+
+        private void useLocal(int index) {
+            maxLocals = Math.max(maxLocals, index + 1);
+        }
+
+        /** Writes a load or store with a local index operand, through wide past index 255. */
+        private void writeLocalOp(int opcode, int index) {
+            if (index > 0xFFFF) {
+                throw new IllegalStateException("Local variable index out of range: " + index);
+            }
+            if (index > 0xFF) {
+                code.write(0xc4); // wide
+                code.write(opcode);
+                code.write((index >> 8) & 0xFF);
+                code.write(index & 0xFF);
+            } else {
+                code.write(opcode);
+                code.write(index);
+            }
         }
 
         public void addAload(int index) {
+            useLocal(index);
+            push(1);
             if (index <= 3) {
                 code.write(0x2a + index); // aload_0 to aload_3
             } else {
-                code.write(0x19); // aload
-                code.write(index);
+                writeLocalOp(0x19, index); // aload
             }
         }
 
         public void addAstore(int index) {
+            useLocal(index);
+            pop(1);
             if (index <= 3) {
                 code.write(0x4b + index); // astore_0 to astore_3
             } else {
-                code.write(0x3a); // astore
-                code.write(index);
+                writeLocalOp(0x3a, index); // astore
+            }
+        }
+
+        public void addIload(int index) {
+            useLocal(index);
+            push(1);
+            if (index <= 3) {
+                code.write(0x1a + index); // iload_0 to iload_3
+            } else {
+                writeLocalOp(0x15, index); // iload
+            }
+        }
+
+        public void addIstore(int index) {
+            useLocal(index);
+            pop(1);
+            if (index <= 3) {
+                code.write(0x3b + index); // istore_0 to istore_3
+            } else {
+                writeLocalOp(0x36, index); // istore
             }
         }
 
         public void addIconst(int value) {
+            push(1);
             if (value >= -1 && value <= 5) {
                 code.write(0x03 + value); // iconst_m1 to iconst_5
             } else if (value >= -128 && value <= 127) {
@@ -528,6 +1039,7 @@ public class SimpleJavaCompiler {
 
         public void addLdc(String value) {
             int index = pool.addString(value);
+            push(1);
             if (index < 256) {
                 code.write(0x12); // ldc
                 code.write(index);
@@ -540,6 +1052,7 @@ public class SimpleJavaCompiler {
 
         public void addLdc(float value) {
             int index = pool.addFloat(value);
+            push(1);
             if (index < 256) {
                 code.write(0x12); // ldc
                 code.write(index);
@@ -552,21 +1065,26 @@ public class SimpleJavaCompiler {
 
         public void addNew(String className) {
             int index = pool.addClass(className);
+            push(1);
             code.write(0xbb); // new
             code.write((index >> 8) & 0xFF);
             code.write(index & 0xFF);
         }
 
         public void addDup() {
+            push(1);
             code.write(0x59); // dup
         }
 
         public void addAconst_null() {
+            push(1);
             code.write(0x01); // aconst_null
         }
 
         public void addMethodCall(String className, String methodName, String descriptor, boolean isStatic) {
             int index = pool.addMethodRef(className, methodName, descriptor);
+            pop(argumentWords(descriptor) + (isStatic ? 0 : 1));
+            push(returnWords(descriptor));
             if (isStatic) {
                 code.write(0xb8); // invokestatic
             } else if (methodName.equals("<init>")) {
@@ -578,20 +1096,121 @@ public class SimpleJavaCompiler {
             code.write(index & 0xFF);
         }
 
+        /** Calls a private method of the class being built. */
+        public void addInvokeSpecial(String className, String methodName, String descriptor) {
+            int index = pool.addMethodRef(className, methodName, descriptor);
+            pop(argumentWords(descriptor) + 1);
+            push(returnWords(descriptor));
+            code.write(0xb7); // invokespecial
+            code.write((index >> 8) & 0xFF);
+            code.write(index & 0xFF);
+        }
+
         public void addReturn() {
             code.write(0xb1); // return
         }
 
+        /**
+         * Declares the locals after the parameters that are live at every branch
+         * target, as internal class names or "I", for the StackMapTable.
+         */
+        public void setBranchTargetLocals(String... types) {
+            branchTargetLocals = Arrays.asList(types);
+        }
+
+        /** Emits if_icmpne with its offset left for bindBranch; returns the instruction's position. */
+        public int addIfIcmpne() {
+            pop(2);
+            int position = code.size();
+            code.write(0xa0); // if_icmpne
+            code.write(0);
+            code.write(0);
+            return position;
+        }
+
+        /** Points a forward branch at the next instruction emitted. */
+        public void bindBranch(int position) {
+            branchPositions.add(position);
+            branchTargets.add(code.size());
+        }
+
+        /** Counts the local/stack slots a method descriptor's parameters take; long and double take two. */
+        static int argumentWords(String descriptor) {
+            int words = 0;
+            int i = 1; // skip '('
+            while (descriptor.charAt(i) != ')') {
+                char c = descriptor.charAt(i);
+                if (c == 'J' || c == 'D') {
+                    words += 2;
+                    i++;
+                    continue;
+                }
+                while (c == '[') c = descriptor.charAt(++i);
+                i = (c == 'L') ? descriptor.indexOf(';', i) + 1 : i + 1;
+                words++;
+            }
+            return words;
+        }
+
+        /** Counts the stack slots a method descriptor's return value takes. */
+        static int returnWords(String descriptor) {
+            char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+            return (c == 'V') ? 0 : (c == 'J' || c == 'D') ? 2 : 1;
+        }
+
         public void ensurePoolEntries(ConstantPool pool) {
             // Pre-add all strings this method needs
             pool.addUtf8(name);
             pool.addUtf8(descriptor);
             pool.addUtf8("Code");
+            if (!branchTargets.isEmpty()) {
+                pool.addUtf8("StackMapTable");
+                for (String type : branchTargetLocals) {
+                    if (!type.equals("I")) pool.addClass(type);
+                }
+            }
+        }
+
+        /**
+         * The StackMapTable body: an append_frame with branchTargetLocals at the
+         * first target, then same_frames. Returns null if the method has no branches.
+         */
+        private byte[] stackMapTable(ConstantPool pool) throws IOException {
+            if (branchTargets.isEmpty()) return null;
+            if (branchTargetLocals.isEmpty() || branchTargetLocals.size() > 3) {
+                throw new IllegalStateException("Unsupported branch target locals: " + branchTargetLocals);
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.writeShort(branchTargets.size());
+            int previous = -1;
+            for (int target : branchTargets) {
+                int delta = target - previous - 1;
+                if (previous == -1) {
+                    out.writeByte(251 + branchTargetLocals.size()); // append_frame
+                    out.writeShort(delta);
+                    for (String type : branchTargetLocals) {
+                        if (type.equals("I")) {
+                            out.writeByte(1); // Integer_variable_info
+                        } else {
+                            out.writeByte(7); // Object_variable_info
+                            out.writeShort(pool.addClass(type));
+                        }
+                    }
+                } else if (delta < 64) {
+                    out.writeByte(delta); // same_frame
+                } else {
+                    out.writeByte(251); // same_frame_extended
+                    out.writeShort(delta);
+                }
+                previous = target;
+            }
+            return baos.toByteArray();
         }
 
         public void write(DataOutputStream dos, ConstantPool pool) throws IOException {
             // Access flags
-            dos.writeShort(isPublic ? 0x0001 : 0x0000);
+            dos.writeShort(accessFlags);
 
             // Name index (already in pool)
             int nameIndex = pool.addUtf8(name);
@@ -609,13 +1228,145 @@ public class SimpleJavaCompiler {
             dos.writeShort(codeAttrIndex);
 
             byte[] codeBytes = code.toByteArray();
-            dos.writeInt(12 + codeBytes.length); // attribute_length
+            for (int i = 0; i < branchPositions.size(); i++) {
+                int position = branchPositions.get(i);
+                int offset = branchTargets.get(i) - position;
+                codeBytes[position + 1] = (byte) (offset >> 8);
+                codeBytes[position + 2] = (byte) offset;
+            }
+            byte[] stackMap = stackMapTable(pool);
+            int stackMapLength = (stackMap == null) ? 0 : 6 + stackMap.length;
+            dos.writeInt(12 + codeBytes.length + stackMapLength); // attribute_length
             dos.writeShort(maxStack);
             dos.writeShort(maxLocals);
             dos.writeInt(codeBytes.length);
             dos.write(codeBytes);
             dos.writeShort(0); // exception_table_length
-            dos.writeShort(0); // attributes_count
+            if (stackMap == null) {
+                dos.writeShort(0); // attributes_count
+            } else {
+                dos.writeShort(1); // attributes_count
+                dos.writeShort(pool.addUtf8("StackMapTable"));
+                dos.writeInt(stackMap.length);
+                dos.write(stackMap);
+            }
+        }
+    }
+
+    /**
+     * Emits Dalvik instructions into a DalvikMethod. Registers are laid out as
+     * [locals][parameters] like a dex code_item; every register an invoke uses
+     * must be below 16 so the compact invoke-kind {vC..vG} form always fits.
+     */
+    static class RegisterMethodBuilder {
+        PureCodeDEXGenerator.DalvikMethod method;
+        int locals;
+
+        public RegisterMethodBuilder(PureCodeDEXGenerator.DalvikMethod method, int locals, int ins) {
+            this.method = method;
+            this.locals = locals;
+            method.registersSize = locals + ins;
+        }
+
+        /** Returns the register of parameter index, with 'this' as parameter 0 of an instance method. */
+        public int param(int index) {
+            return locals + index;
+        }
+
+        public void addNewInstance(int reg, String className) {
+            method.addUnit(0x22 | (reg << 8)); // new-instance vAA, type@BBBB
+            method.addTypeRef(typeDescriptor(className));
+        }
+
+        public void addConstString(int reg, String value) {
+            method.addUnit(0x1a | (reg << 8)); // const-string vAA, string@BBBB
+            method.addStringRef(value);
+        }
+
+        public void addConst(int reg, int value) {
+            if (value >= -8 && value <= 7 && reg < 16) {
+                method.addUnit(0x12 | (reg << 8) | ((value & 0xF) << 12)); // const/4
+            } else if (value >= -32768 && value <= 32767) {
+                method.addUnit(0x13 | (reg << 8)); // const/16
+                method.addUnit(value & 0xFFFF);
+            } else if ((value & 0xFFFF) == 0) {
+                method.addUnit(0x15 | (reg << 8)); // const/high16
+                method.addUnit(value >>> 16);
+            } else {
+                method.addUnit(0x14 | (reg << 8)); // const
+                method.addUnit(value & 0xFFFF);
+                method.addUnit(value >>> 16);
+            }
+        }
+
+        public void addConst(int reg, float value) {
+            addConst(reg, Float.floatToIntBits(value));
+        }
+
+        public void addMoveResult(int reg) {
+            method.addUnit(0x0a | (reg << 8)); // move-result vAA
+        }
+
+        public void addMoveResultObject(int reg) {
+            method.addUnit(0x0c | (reg << 8)); // move-result-object vAA
+        }
+
+        /** Emits if-ne vA, vB with its offset left for bindBranch; returns the instruction's position. */
+        public int addIfNe(int regA, int regB) {
+            if (regA > 15 || regB > 15) {
+                throw new IllegalArgumentException("Register too high for if-ne");
+            }
+            int position = method.insnsSize();
+            method.addUnit(0x33 | (regA << 8) | (regB << 12)); // if-ne vA, vB, +CCCC
+            method.addUnit(0);
+            return position;
+        }
+
+        /** Points a forward branch at the next instruction emitted. */
+        public void bindBranch(int position) {
+            method.setUnit(position + 1, method.insnsSize() - position);
+        }
+
+        public void addInvokeVirtual(String className, String methodName, String descriptor, int... args) {
+            addInvoke(0x6e, className, methodName, descriptor, args);
+        }
+
+        public void addInvokeSuper(String className, String methodName, String descriptor, int... args) {
+            addInvoke(0x6f, className, methodName, descriptor, args);
+        }
+
+        public void addInvokeDirect(String className, String methodName, String descriptor, int... args) {
+            addInvoke(0x70, className, methodName, descriptor, args);
+        }
+
+        public void addInvokeStatic(String className, String methodName, String descriptor, int... args) {
+            addInvoke(0x71, className, methodName, descriptor, args);
+        }
+
+        /** invoke-kind {vC, vD, vE, vF, vG}, meth@BBBB */
+        private void addInvoke(int opcode, String className, String methodName, String descriptor, int[] args) {
+            if (args.length > 5) {
+                throw new IllegalArgumentException("Too many arguments for invoke: " + methodName);
+            }
+            int[] regs = new int[5];
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] > 15) {
+                    throw new IllegalArgumentException("Register v" + args[i] + " too high for invoke");
+                }
+                regs[i] = args[i];
+            }
+            method.addUnit(opcode | (regs[4] << 8) | (args.length << 12));
+            method.addMethodRef(typeDescriptor(className), methodName, descriptor);
+            method.addUnit(regs[0] | (regs[1] << 4) | (regs[2] << 8) | (regs[3] << 12));
+            method.outsSize = Math.max(method.outsSize, args.length);
+        }
+
+        public void addReturnVoid() {
+            method.addUnit(0x0e); // return-void
+        }
+
+        private static String typeDescriptor(String className) {
+            return "L" + className + ";";
         }
     }
 }
@@ -0,0 +1,56 @@
+package com.mobileforge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end convertClassToDex: with the thread's reused context, with a fresh
+ * context per call (the cost of the scratch state), and without the SHA-1.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConvertBenchmark {
+
+    @Param({"1", "16", "128"})
+    public int methods;
+
+    private byte[] classData;
+    private PureCodeDEXGenerator.DexOptions unsigned;
+
+    @Setup
+    public void setUp() {
+        classData = SyntheticClasses.generate("bench/Convert", methods, 64);
+        unsigned = new PureCodeDEXGenerator.DexOptions();
+        unsigned.computeSignature = false;
+    }
+
+    @Benchmark
+    public byte[] convertClassToDex() throws Exception {
+        return PureCodeDEXGenerator.convertClassToDex(classData);
+    }
+
+    @Benchmark
+    public byte[] convertWithFreshContext() throws Exception {
+        return new PureCodeDEXGenerator.ConversionContext().convertClassToDex(classData,
+            new PureCodeDEXGenerator.DexOptions());
+    }
+
+    @Benchmark
+    public byte[] convertUnsigned() throws Exception {
+        return PureCodeDEXGenerator.convertClassToDex(classData, unsigned);
+    }
+}
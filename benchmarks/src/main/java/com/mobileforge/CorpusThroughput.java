@@ -0,0 +1,219 @@
+package com.mobileforge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Converts a corpus of real .class files one by one with convertClassToDex and
+ * reports class MB/s, dex bytes per class byte and how many methods translated
+ * without skipping an opcode. Classes that fail to convert are counted by
+ * exception type, so a crash shows up in the report instead of only
+ * shrinking the corpus. By default the corpus is the running JDK's
+ * java.lang and java.util classes; directories or jars of MFNL-generated
+ * classes (e.g. a pulled build/mfnl_generated) are added as arguments.
+ *
+ *   ./gradlew :benchmarks:corpusBenchmark -PcorpusArgs='path/to/mfnl_generated --rounds 10'
+ *
+ * Options: --rounds N (measured rounds, default 5), --warmup N (default 3),
+ * --jdk-packages a/,b/ (JDK package prefixes), --no-jdk.
+ */
+public class CorpusThroughput {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = 5;
+        int warmup = 3;
+        List<String> jdkPackages = Arrays.asList("java/lang/", "java/util/");
+        boolean includeJdk = true;
+        List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rounds": rounds = Integer.parseInt(args[++i]); break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--jdk-packages": jdkPackages = Arrays.asList(args[++i].split(",")); break;
+                case "--no-jdk": includeJdk = false; break;
+                default: inputs.add(new File(args[i]));
+            }
+        }
+
+        List<byte[]> corpus = new ArrayList<>();
+        if (includeJdk) readJdkClasses(jdkPackages, corpus);
+        for (File input : inputs) readClasses(input, corpus);
+        if (corpus.isEmpty()) throw new IllegalArgumentException("Empty corpus");
+
+        for (int round = 0; round < warmup; round++) convertAll(corpus);
+        Result total = new Result();
+        for (int round = 0; round < rounds; round++) {
+            Result result = convertAll(corpus);
+            System.out.println("round " + (round + 1) + ": " + result.throughput());
+            total.add(result);
+        }
+        System.out.println();
+        System.out.println(total.report(corpus.size(), rounds));
+    }
+
+    /** One pass over the corpus. */
+    private static Result convertAll(List<byte[]> corpus) {
+        Result result = new Result();
+        PureCodeDEXGenerator.DexOptions options = new PureCodeDEXGenerator.DexOptions();
+        options.stats = new PureCodeDEXGenerator.DexConversionStats();
+        long start = System.nanoTime();
+        for (byte[] classData : corpus) {
+            result.classBytes += classData.length;
+            try {
+                result.dexBytes += PureCodeDEXGenerator.convertClassToDex(classData, options).length;
+                result.convertedClassBytes += classData.length;
+            } catch (Exception | StackOverflowError e) {
+                result.failedClasses++;
+                result.failures.merge(failureKey(e), 1, Integer::sum);
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+        result.stats = options.stats;
+        return result;
+    }
+
+    /**
+     * Groups a conversion failure by exception class. The converter's own checks
+     * all throw plain Exception, so those are further split by the message text
+     * before its first colon (e.g. "Missing type ID for object array").
+     */
+    private static String failureKey(Throwable e) {
+        String key = e.getClass().getName();
+        String message = e.getMessage();
+        if (e.getClass() == Exception.class && message != null) {
+            int colon = message.indexOf(':');
+            key += ": " + (colon < 0 ? message : message.substring(0, colon));
+        }
+        return key;
+    }
+
+    private static void readJdkClasses(List<String> packages, List<byte[]> corpus) throws IOException {
+        File rtJar = new File(System.getProperty("java.home"), "lib/rt.jar");
+        if (rtJar.exists()) {
+            readJar(rtJar, packages, corpus);
+            return;
+        }
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        Path base = jrt.getPath("/modules/java.base");
+        try (Stream<Path> paths = Files.walk(base)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = base.relativize(path).toString();
+                if (name.endsWith(".class") && startsWithAny(name, packages)) {
+                    corpus.add(Files.readAllBytes(path));
+                }
+            }
+        }
+    }
+
+    private static void readClasses(File input, List<byte[]> corpus) throws IOException {
+        if (input.isDirectory()) {
+            File[] children = input.listFiles();
+            if (children == null) return;
+            Arrays.sort(children);
+            for (File child : children) readClasses(child, corpus);
+        } else if (input.getName().endsWith(".class")) {
+            try (InputStream in = new FileInputStream(input)) {
+                corpus.add(readFully(in));
+            }
+        } else if (input.getName().endsWith(".jar") || input.getName().endsWith(".zip")) {
+            readJar(input, null, corpus);
+        }
+    }
+
+    private static void readJar(File jar, List<String> packages, List<byte[]> corpus) throws IOException {
+        try (ZipFile zip = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(".class") || (packages != null && !startsWithAny(name, packages))) continue;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    corpus.add(readFully(in));
+                }
+            }
+        }
+    }
+
+    private static boolean startsWithAny(String name, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    /** Totals for one or more rounds. */
+    private static final class Result {
+        long nanos;
+        long classBytes;
+        long convertedClassBytes;
+        long dexBytes;
+        int failedClasses;
+        final Map<String, Integer> failures = new TreeMap<>();
+        PureCodeDEXGenerator.DexConversionStats stats = new PureCodeDEXGenerator.DexConversionStats();
+
+        void add(Result other) {
+            nanos += other.nanos;
+            classBytes += other.classBytes;
+            convertedClassBytes += other.convertedClassBytes;
+            dexBytes += other.dexBytes;
+            failedClasses += other.failedClasses;
+            for (Map.Entry<String, Integer> failure : other.failures.entrySet()) {
+                failures.merge(failure.getKey(), failure.getValue(), Integer::sum);
+            }
+            stats.merge(other.stats);
+        }
+
+        String throughput() {
+            return String.format("%.2f class MB/s", classBytes / 1e6 / (nanos / 1e9));
+        }
+
+        String report(int classCount, int rounds) {
+            int methods = stats.methodCount;
+            int fullyTranslated = methods - stats.methodsWithSkippedOpcodes;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Corpus: %d classes, %.2f MB%n", classCount, classBytes / 1e6 / rounds));
+            sb.append(String.format("Throughput: %s (%.1f us/class)%n", throughput(),
+                                    nanos / 1e3 / ((long) classCount * rounds)));
+            sb.append(String.format("Failed classes: %d of %d (%.1f%%)%n", failedClasses / rounds, classCount,
+                                    100.0 * failedClasses / ((long) classCount * rounds)));
+            for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+                sb.append(String.format("  %d x %s%n", failure.getValue() / rounds, failure.getKey()));
+            }
+            sb.append(String.format("Dex bytes per class byte: %.3f%n",
+                                    convertedClassBytes == 0 ? 0.0 : (double) dexBytes / convertedClassBytes));
+            sb.append(String.format("Methods translated fully: %d of %d (%.1f%%), with skipped opcodes: %d%n",
+                                    fullyTranslated / rounds, methods / rounds,
+                                    methods == 0 ? 0.0 : 100.0 * fullyTranslated / methods,
+                                    stats.methodsWithSkippedOpcodes / rounds));
+            sb.append(String.format("Time over all rounds: parse %d ms, ids %d ms, translate %d ms, finalize %d ms",
+                                    stats.parseNanos / 1000000, stats.idSectionsNanos / 1000000,
+                                    stats.translateNanos / 1000000, stats.finalizeNanos / 1000000));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.mobileforge;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** LEB128 encoding of 1024 values spread over one- to five-byte encodings. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Leb128Benchmark {
+
+    private final int[] values = new int[1024];
+    private PureCodeDEXGenerator.ByteWriter writer;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < values.length; i++) {
+            int bits = 1 + random.nextInt(31);
+            values[i] = random.nextInt(1 << (bits - 1)) * (random.nextBoolean() ? 1 : -1);
+        }
+        writer = new PureCodeDEXGenerator.ByteWriter(values.length * 5);
+    }
+
+    @Benchmark
+    public int writeUleb128() {
+        writer.buffer.clear();
+        for (int value : values) writer.writeUleb128(value & 0x7FFFFFFF);
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public int writeSleb128() {
+        writer.buffer.clear();
+        for (int value : values) writer.writeSleb128(value);
+        return writer.getPosition();
+    }
+}
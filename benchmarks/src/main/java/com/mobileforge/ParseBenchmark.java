@@ -0,0 +1,39 @@
+package com.mobileforge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Parsing a .class file into the converter's ClassFile model. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    @Param({"4", "64"})
+    public int methods;
+
+    private byte[] classData;
+
+    @Setup
+    public void setUp() {
+        classData = SyntheticClasses.generate("bench/Parse", methods, 64);
+    }
+
+    @Benchmark
+    public Object parseClassFile() throws Exception {
+        return PureCodeDEXGenerator.parseClassFile(classData);
+    }
+}
@@ -0,0 +1,89 @@
+package com.mobileforge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Each section writer on its own, fed from one planned 32-method class. */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SectionWriterBenchmark {
+
+    private PureCodeDEXGenerator.DexPlan plan;
+    private PureCodeDEXGenerator.ByteWriter writer;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] classData = SyntheticClasses.generate("bench/Sections", 32, 64);
+        plan = PureCodeDEXGenerator.planDex(PureCodeDEXGenerator.parseClassFile(classData));
+        writer = new PureCodeDEXGenerator.ByteWriter(plan.fileSize);
+    }
+
+    @Benchmark
+    public int writeHeader() {
+        writer.buffer.clear();
+        PureCodeDEXGenerator.writeHeader(writer, plan);
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public int writeStringData() {
+        writer.buffer.clear();
+        PureCodeDEXGenerator.writeStringData(writer, plan.stringSection);
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public int writeTypeLists() {
+        writer.buffer.clear();
+        PureCodeDEXGenerator.writeTypeLists(writer, plan.protoSection);
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public int writeClassDefs() {
+        writer.buffer.clear();
+        for (PureCodeDEXGenerator.ClassDefItem classDef : plan.classDefs) {
+            PureCodeDEXGenerator.writeClassDef(writer, classDef);
+        }
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public int writeCodeItems() {
+        writer.buffer.clear();
+        for (PureCodeDEXGenerator.CodeItem codeItem : plan.codeItems) {
+            writer.alignTo4();
+            PureCodeDEXGenerator.writeCodeItem(writer, codeItem);
+        }
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public int writeClassData() {
+        writer.buffer.clear();
+        for (PureCodeDEXGenerator.ClassDataItem classData : plan.classData) {
+            PureCodeDEXGenerator.writeClassData(writer, classData);
+        }
+        return writer.getPosition();
+    }
+
+    @Benchmark
+    public int writeMapList() {
+        writer.buffer.clear();
+        plan.mapBuilder.write(writer);
+        return writer.getPosition();
+    }
+}
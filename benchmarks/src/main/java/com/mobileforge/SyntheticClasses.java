@@ -0,0 +1,166 @@
+package com.mobileforge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds .class files for the benchmarks, using only opcodes the translator
+ * supports, so every run converts the same input without touching the disk.
+ */
+final class SyntheticClasses {
+
+    private SyntheticClasses() {}
+
+    /**
+     * A class with a constructor and the given number of static int(int) methods.
+     * Each body repeats a block of arithmetic and local stores, with a string
+     * constant and a static call in every fourth block, until it holds about
+     * insnsPerMethod instructions.
+     */
+    static byte[] generate(String className, int methodCount, int insnsPerMethod) {
+        try {
+            ConstantPool pool = new ConstantPool();
+            int thisClass = pool.classRef(className);
+            int superClass = pool.classRef("java/lang/Object");
+            int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+            int mathAbs = pool.methodRef("java/lang/Math", "abs", "(I)I");
+            int codeName = pool.utf8("Code");
+
+            List<byte[]> methods = new ArrayList<>();
+            methods.add(method(0x0001, pool.utf8("<init>"), pool.utf8("()V"), codeName, 1, 1,
+                new byte[] { 0x2a, (byte) 0xb7, hi(objectInit), lo(objectInit), (byte) 0xb1 }));
+            for (int m = 0; m < methodCount; m++) {
+                ByteArrayOutputStream code = new ByteArrayOutputStream();
+                int insns = 0;
+                for (int block = 0; insns < insnsPerMethod; block++) {
+                    // iload_0; iconst_1; iadd; istore_0
+                    code.write(0x1a); code.write(0x04); code.write(0x60); code.write(0x3b);
+                    insns += 4;
+                    if (block % 4 == 3) {
+                        // ldc "sN"; astore_1 (a bounded set of strings keeps ldc's index in one byte)
+                        int string = pool.string("s" + (block % 64));
+                        if (string > 0xFF) throw new IllegalStateException("ldc index out of range");
+                        code.write(0x12); code.write(string); code.write(0x4c);
+                        // iload_0; invokestatic Math.abs; istore_0
+                        code.write(0x1a); code.write(0xb8); code.write(hi(mathAbs)); code.write(lo(mathAbs)); code.write(0x3b);
+                        insns += 5;
+                    }
+                }
+                code.write(0x1a); code.write(0xac); // iload_0; ireturn
+                methods.add(method(0x0009, pool.utf8("m" + m), pool.utf8("(I)I"), codeName, 2, 2,
+                                   code.toByteArray()));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(50);
+            pool.write(out);
+            out.writeShort(0x0021);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] method(int accessFlags, int name, int descriptor, int codeName,
+                                 int maxStack, int maxLocals, byte[] code) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(accessFlags);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+        return bytes.toByteArray();
+    }
+
+    private static byte hi(int index) {
+        return (byte) (index >> 8);
+    }
+
+    private static byte lo(int index) {
+        return (byte) index;
+    }
+
+    /** A write-once constant pool that shares identical entries. */
+    private static final class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) throws IOException {
+            Integer index = entries.get("U" + value);
+            if (index != null) return index;
+            out.writeByte(1);
+            out.writeUTF(value);
+            return add("U" + value);
+        }
+
+        int classRef(String internalName) throws IOException {
+            Integer index = entries.get("C" + internalName);
+            if (index != null) return index;
+            int name = utf8(internalName);
+            out.writeByte(7);
+            out.writeShort(name);
+            return add("C" + internalName);
+        }
+
+        int string(String value) throws IOException {
+            Integer index = entries.get("S" + value);
+            if (index != null) return index;
+            int utf8 = utf8(value);
+            out.writeByte(8);
+            out.writeShort(utf8);
+            return add("S" + value);
+        }
+
+        int methodRef(String owner, String name, String descriptor) throws IOException {
+            String key = "M" + owner + "." + name + descriptor;
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            int classIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            int nameAndType = add("N" + name + descriptor);
+            out.writeByte(10);
+            out.writeShort(classIndex);
+            out.writeShort(nameAndType);
+            return add(key);
+        }
+
+        private int add(String key) {
+            entries.put(key, count);
+            return count++;
+        }
+
+        void write(DataOutputStream target) throws IOException {
+            target.writeShort(count);
+            bytes.writeTo(target);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.mobileforge;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Method code on synthetic bodies of growing size: translating Java bytecode to
+ * a code_item, and writing the finished code_item.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TranslateBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int insns;
+
+    private PureCodeDEXGenerator.ClassFile classFile;
+    private PureCodeDEXGenerator.MethodInfo method;
+    private PureCodeDEXGenerator.DexPlan plan;
+    private PureCodeDEXGenerator.CodeItem codeItem;
+    private PureCodeDEXGenerator.ByteWriter writer;
+
+    @Setup
+    public void setUp() throws Exception {
+        classFile = PureCodeDEXGenerator.parseClassFile(SyntheticClasses.generate("bench/Translate", 1, insns));
+        plan = PureCodeDEXGenerator.planDex(classFile);
+        for (PureCodeDEXGenerator.MethodInfo candidate : classFile.methods) {
+            if (classFile.constantPool.utf8(candidate.nameIndex).equals("m0")) method = candidate;
+        }
+        codeItem = translate();
+        writer = new PureCodeDEXGenerator.ByteWriter(plan.fileSize);
+    }
+
+    @Benchmark
+    public Object translateMethodCode() throws Exception {
+        return translate();
+    }
+
+    @Benchmark
+    public int writeCodeItem() {
+        writer.buffer.clear();
+        PureCodeDEXGenerator.writeCodeItem(writer, codeItem);
+        return writer.getPosition();
+    }
+
+    private PureCodeDEXGenerator.CodeItem translate() throws Exception {
+        return PureCodeDEXGenerator.translateMethodCode(method, classFile.constantPool,
+            plan.stringSection, plan.typeSection, plan.protoSection, plan.fieldSection, plan.methodSection);
+    }
+}